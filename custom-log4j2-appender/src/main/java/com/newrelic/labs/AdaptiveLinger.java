@@ -0,0 +1,111 @@
+package com.newrelic.labs;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Chooses how long the appender lingers before the next flush. Instead of a fixed
+ * interval, the deadline is derived from the observed arrival rate so that:
+ * <ul>
+ * <li>an entry never waits in the queue longer than the configured latency
+ * SLO,</li>
+ * <li>a flush happens as soon as the queue is expected to reach the byte target,
+ * and</li>
+ * <li>an idle appender sleeps up to the maximum linger.</li>
+ * </ul>
+ */
+public class AdaptiveLinger {
+
+    private static final long MIN_LINGER = 10; // milliseconds
+    private static final double RATE_SMOOTHING = 0.3; // weight of the latest sample
+
+    private final long latencySlo;
+    private final long maxLinger;
+    private final long flushBytes;
+    private final LongAdder arrivals = new LongAdder();
+    private long lastSampleTime;
+    private double eventsPerMilli = 0;
+
+    public AdaptiveLinger(long latencySlo, long maxLinger, long flushBytes) {
+	this.latencySlo = latencySlo;
+	this.maxLinger = Math.max(maxLinger, latencySlo);
+	this.flushBytes = flushBytes;
+	this.lastSampleTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Records one accepted entry. Called on the logging thread, so it only bumps a
+     * striped counter.
+     */
+    public void recordArrival() {
+	arrivals.increment();
+    }
+
+    /**
+     * @return true once the queued cost reaches the byte target and the batch
+     *         should be sent without waiting for the deadline.
+     */
+    public boolean isFull(long queuedCost) {
+	return queuedCost >= flushBytes;
+    }
+
+    /**
+     * Computes the delay until the next flush. Must be called from the single
+     * flushing thread.
+     *
+     * @param queuedCost   Cost of the entries currently queued.
+     * @param queuedCount  Number of entries currently queued.
+     * @param pendingSince Time the oldest queued entry was added, or 0 if none.
+     * @param sendTime     Time a send currently takes, in milliseconds; the
+     *                     flush starts that much before the SLO runs out.
+     * @return Delay in milliseconds.
+     */
+    public long nextDelay(long queuedCost, int queuedCount, long pendingSince, long sendTime) {
+	return nextDelay(queuedCost, queuedCount, pendingSince, sendTime, System.currentTimeMillis());
+    }
+
+    long nextDelay(long queuedCost, int queuedCount, long pendingSince, long sendTime, long now) {
+	sampleRate(now);
+
+	if (queuedCount == 0 || pendingSince == 0) {
+	    // Nothing to deliver; the first arrival pulls the deadline in again
+	    return maxLinger;
+	}
+
+	long delay = pendingSince + latencySlo - sendTime - now;
+
+	if (eventsPerMilli > 0) {
+	    double avgCost = (double) queuedCost / queuedCount;
+	    double bytesPerMilli = eventsPerMilli * avgCost;
+	    long remaining = flushBytes - queuedCost;
+	    long timeToFill = remaining <= 0 ? 0 : (long) (remaining / bytesPerMilli);
+	    delay = Math.min(delay, timeToFill);
+	}
+
+	return Math.max(MIN_LINGER, Math.min(delay, maxLinger));
+    }
+
+    /**
+     * @param sendTime Time a send currently takes, in milliseconds.
+     * @return Delay to use when the first entry arrives in an empty queue.
+     */
+    public long firstArrivalDelay(long sendTime) {
+	return Math.max(MIN_LINGER, latencySlo - sendTime);
+    }
+
+    /**
+     * @return The smoothed arrival rate in events per second.
+     */
+    public double getArrivalRate() {
+	return eventsPerMilli * 1000;
+    }
+
+    private void sampleRate(long now) {
+	long elapsed = now - lastSampleTime;
+	if (elapsed <= 0) {
+	    return;
+	}
+	double sample = (double) arrivals.sumThenReset() / elapsed;
+	eventsPerMilli = RATE_SMOOTHING * sample + (1 - RATE_SMOOTHING) * eventsPerMilli;
+	lastSampleTime = now;
+    }
+}
@@ -0,0 +1,77 @@
+package com.newrelic.labs;
+
+/**
+ * Facade for the appender's Java Flight Recorder events. When the running JVM
+ * has JFR ({@code jdk.jfr.Event}), {@link #get()} returns
+ * {@link JfrAppenderEvents}; otherwise, or with
+ * {@code -Dnewrelic.appender.jfr=false}, every method is a no-op. Nothing in this
+ * class refers to {@code jdk.jfr} so it loads on any Java 8 runtime.
+ */
+abstract class AppenderEvents {
+
+    static final AppenderEvents NONE = new AppenderEvents() {
+    };
+
+    private static final AppenderEvents INSTANCE = load();
+
+    static AppenderEvents get() {
+	return INSTANCE;
+    }
+
+    private static AppenderEvents load() {
+	if (!Boolean.parseBoolean(System.getProperty("newrelic.appender.jfr", "true"))) {
+	    return NONE;
+	}
+	try {
+	    Class.forName("jdk.jfr.Event", false, AppenderEvents.class.getClassLoader());
+	    return (AppenderEvents) Class.forName("com.newrelic.labs.JfrAppenderEvents").getDeclaredConstructor()
+		    .newInstance();
+	} catch (Throwable t) {
+	    // ClassNotFoundException, or a LinkageError on a runtime without a usable JFR
+	    return NONE;
+	}
+    }
+
+    /**
+     * @return {@code true} when slow appends are being recorded, so append is
+     *         worth timing.
+     */
+    boolean isTimingAppends() {
+	return false;
+    }
+
+    /**
+     * @return {@code true} when drained batches are being recorded, so their cost
+     *         is worth computing.
+     */
+    boolean isRecordingBatches() {
+	return false;
+    }
+
+    void slowAppend(String loggerName, long durationNanos) {
+    }
+
+    void batchDrained(int count, long cost) {
+    }
+
+    void payloadSerialized(int eventCount, long rawBytes, long compressedBytes, long durationNanos) {
+    }
+
+    void requestSent(String destination, int eventCount, long bytes) {
+    }
+
+    void requestCompleted(String destination, int eventCount, int status, String outcome, long latencyNanos) {
+    }
+
+    void evicted(int count, long cost) {
+    }
+
+    void requeued(int count) {
+    }
+
+    void capacityAdjusted(long previous, long capacity, int heapUsedPercent) {
+    }
+
+    void heavyHitter(String ranking, int rank, String loggerName, String format, long events, long bytes) {
+    }
+}
@@ -0,0 +1,172 @@
+package com.newrelic.labs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing what the appender did with the log events it received.
+ * All counters are cumulative since the appender started.
+ */
+public class AppenderMetrics {
+
+    private final AtomicLong sentPayloads = new AtomicLong(0);
+    private final AtomicLong throttledResponses = new AtomicLong(0);
+    private final AtomicLong serverErrors = new AtomicLong(0);
+    private final AtomicLong networkErrors = new AtomicLong(0);
+    private final AtomicLong rejectedPayloads = new AtomicLong(0);
+    private final AtomicLong rejectedEvents = new AtomicLong(0);
+    private final AtomicLong pausedMillis = new AtomicLong(0);
+    private final AtomicLong pauses = new AtomicLong(0);
+    private final AtomicLong expiredRetries = new AtomicLong(0);
+    private final AtomicLong discardedRetries = new AtomicLong(0);
+    private final AtomicLong obfuscationOverruns = new AtomicLong(0);
+    private final AtomicLong capacityReductions = new AtomicLong(0);
+    private final AtomicLong capacityIncreases = new AtomicLong(0);
+
+    public void recordSent() {
+	sentPayloads.incrementAndGet();
+    }
+
+    public void recordThrottled() {
+	throttledResponses.incrementAndGet();
+    }
+
+    public void recordServerError() {
+	serverErrors.incrementAndGet();
+    }
+
+    public void recordNetworkError() {
+	networkErrors.incrementAndGet();
+    }
+
+    /**
+     * Records a payload the Logs API refused with a non-retryable 4xx status.
+     */
+    public void recordRejected(int eventCount) {
+	rejectedPayloads.incrementAndGet();
+	rejectedEvents.addAndGet(eventCount);
+    }
+
+    /**
+     * Records that sending was paused, or a pause was extended, by the given time.
+     */
+    public void recordPause(long millis) {
+	pauses.incrementAndGet();
+	pausedMillis.addAndGet(millis);
+    }
+
+    /**
+     * Records requeued entries dropped because they were older than retryMaxAge.
+     */
+    public void recordExpiredRetries(int eventCount) {
+	expiredRetries.addAndGet(eventCount);
+    }
+
+    /**
+     * Records requeued entries dropped after maxRetries failed sends in a row.
+     */
+    public void recordDiscardedRetries(int eventCount) {
+	discardedRetries.addAndGet(eventCount);
+    }
+
+    /**
+     * Records a message on which obfuscationPatterns ran past their time budget.
+     */
+    public void recordObfuscationOverrun() {
+	obfuscationOverruns.incrementAndGet();
+    }
+
+    /**
+     * Records a change of the queue's effective capacity under heap pressure.
+     */
+    public void recordCapacityAdjustment(long previous, long capacity) {
+	if (capacity < previous) {
+	    capacityReductions.incrementAndGet();
+	} else if (capacity > previous) {
+	    capacityIncreases.incrementAndGet();
+	}
+    }
+
+    public long getSentPayloads() {
+	return sentPayloads.get();
+    }
+
+    public long getThrottledResponses() {
+	return throttledResponses.get();
+    }
+
+    public long getServerErrors() {
+	return serverErrors.get();
+    }
+
+    public long getNetworkErrors() {
+	return networkErrors.get();
+    }
+
+    public long getRejectedPayloads() {
+	return rejectedPayloads.get();
+    }
+
+    public long getRejectedEvents() {
+	return rejectedEvents.get();
+    }
+
+    /**
+     * @return Total time in milliseconds that sending was paused by 429/503
+     *         responses or error backoff.
+     */
+    public long getPausedMillis() {
+	return pausedMillis.get();
+    }
+
+    public long getPauses() {
+	return pauses.get();
+    }
+
+    public long getExpiredRetries() {
+	return expiredRetries.get();
+    }
+
+    public long getDiscardedRetries() {
+	return discardedRetries.get();
+    }
+
+    public long getObfuscationOverruns() {
+	return obfuscationOverruns.get();
+    }
+
+    public long getCapacityReductions() {
+	return capacityReductions.get();
+    }
+
+    public long getCapacityIncreases() {
+	return capacityIncreases.get();
+    }
+
+    /**
+     * @return A point-in-time copy of all counters, keyed by name.
+     */
+    public Map<String, Long> snapshot() {
+	Map<String, Long> snapshot = new LinkedHashMap<>();
+	snapshot.put("sentPayloads", getSentPayloads());
+	snapshot.put("throttledResponses", getThrottledResponses());
+	snapshot.put("serverErrors", getServerErrors());
+	snapshot.put("networkErrors", getNetworkErrors());
+	snapshot.put("rejectedPayloads", getRejectedPayloads());
+	snapshot.put("rejectedEvents", getRejectedEvents());
+	snapshot.put("pauses", getPauses());
+	snapshot.put("pausedMillis", getPausedMillis());
+	snapshot.put("expiredRetries", getExpiredRetries());
+	snapshot.put("discardedRetries", getDiscardedRetries());
+	snapshot.put("obfuscationOverruns", getObfuscationOverruns());
+	snapshot.put("capacityReductions", getCapacityReductions());
+	snapshot.put("capacityIncreases", getCapacityIncreases());
+	return snapshot;
+    }
+
+    @Override
+    public String toString() {
+	return snapshot().toString();
+    }
+}
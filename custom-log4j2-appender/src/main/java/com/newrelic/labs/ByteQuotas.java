@@ -0,0 +1,182 @@
+package com.newrelic.labs;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * Byte quotas that split a buffer's capacity between logger name prefixes. Each
+ * prefix has space reserved for it; whatever is left of the capacity forms a
+ * shared pool used by loggers without a prefix and by prefixes over their quota.
+ * The usage counters are striped, so accounting on the append path does not
+ * contend between logging threads.
+ */
+public final class ByteQuotas<T> {
+
+    /**
+     * Name under which loggers that match no prefix are reported.
+     */
+    public static final String SHARED = "*";
+
+    private static final Logger logger = StatusLogger.getLogger();
+    // Logger names are few in practice; past this many the lookup is not cached
+    private static final int MAX_CACHED_KEYS = 10000;
+
+    private final List<Group> prefixes;
+    private final Group shared;
+    private final Function<T, String> keyOf;
+    private final Map<String, Group> groupByKey = new ConcurrentHashMap<>();
+
+    /**
+     * @param spec     Comma-separated {@code prefix=bytes} pairs, e.g.
+     *                 {@code com.acme.security=262144,com.acme.payments=131072}.
+     * @param capacity The capacity of the buffer the quotas apply to.
+     * @param keyOf    Returns the logger name of an element.
+     */
+    public ByteQuotas(String spec, long capacity, Function<T, String> keyOf) {
+	this.keyOf = keyOf;
+	this.prefixes = parse(spec);
+	// Longest prefix first, so the most specific one wins
+	this.prefixes.sort(Comparator.comparingInt((Group g) -> g.name.length()).reversed());
+	long reserved = 0;
+	for (Group group : prefixes) {
+	    reserved += group.quota;
+	}
+	if (reserved >= capacity) {
+	    logger.warn("Logger quotas reserve {} bytes of a {} byte queue, leaving no shared pool", reserved,
+		    capacity);
+	}
+	this.shared = new Group(SHARED, 0);
+    }
+
+    private static List<Group> parse(String spec) {
+	List<Group> groups = new ArrayList<>();
+	if (spec == null || spec.trim().isEmpty()) {
+	    return groups;
+	}
+	for (String pair : spec.split(",")) {
+	    String[] keyValue = pair.split("=");
+	    if (keyValue.length != 2 || keyValue[0].trim().isEmpty()) {
+		logger.warn("Ignoring logger quota '{}', expected prefix=bytes", pair);
+		continue;
+	    }
+	    try {
+		long quota = Long.parseLong(keyValue[1].trim());
+		if (quota > 0) {
+		    groups.add(new Group(keyValue[0].trim(), quota));
+		}
+	    } catch (NumberFormatException e) {
+		logger.warn("Ignoring logger quota '{}', expected prefix=bytes", pair);
+	    }
+	}
+	return groups;
+    }
+
+    /**
+     * @return true if no prefix was configured.
+     */
+    public boolean isEmpty() {
+	return prefixes.isEmpty();
+    }
+
+    Group groupOf(T element) {
+	String key = keyOf.apply(element);
+	if (key == null) {
+	    return shared;
+	}
+	Group group = groupByKey.get(key);
+	if (group == null) {
+	    group = match(key);
+	    if (groupByKey.size() < MAX_CACHED_KEYS) {
+		groupByKey.put(key, group);
+	    }
+	}
+	return group;
+    }
+
+    private Group match(String key) {
+	for (Group group : prefixes) {
+	    if (key.startsWith(group.name)
+		    && (key.length() == group.name.length() || key.charAt(group.name.length()) == '.')) {
+		return group;
+	    }
+	}
+	return shared;
+    }
+
+    void added(T element, long cost) {
+	groupOf(element).usage.add(cost);
+    }
+
+    void removed(T element, long cost) {
+	groupOf(element).usage.add(-cost);
+    }
+
+    void evicted(T element, long cost) {
+	Group group = groupOf(element);
+	group.usage.add(-cost);
+	group.evicted.incrementAndGet();
+    }
+
+    void clear() {
+	for (Group group : prefixes) {
+	    group.usage.reset();
+	}
+	shared.usage.reset();
+    }
+
+    /**
+     * @return The bytes queued per prefix, with loggers that match no prefix under
+     *         {@link #SHARED}.
+     */
+    public Map<String, Long> usage() {
+	Map<String, Long> usage = new LinkedHashMap<>();
+	for (Group group : prefixes) {
+	    usage.put(group.name, group.usage.sum());
+	}
+	usage.put(SHARED, shared.usage.sum());
+	return usage;
+    }
+
+    /**
+     * @return The entries evicted per prefix, with loggers that match no prefix
+     *         under {@link #SHARED}.
+     */
+    public Map<String, Long> evictions() {
+	Map<String, Long> evictions = new LinkedHashMap<>();
+	for (Group group : prefixes) {
+	    evictions.put(group.name, group.evicted.get());
+	}
+	evictions.put(SHARED, shared.evicted.get());
+	return evictions;
+    }
+
+    static final class Group {
+	final String name;
+	final long quota;
+	final LongAdder usage = new LongAdder();
+	final AtomicLong evicted = new AtomicLong(0);
+
+	Group(String name, long quota) {
+	    this.name = name;
+	    this.quota = quota;
+	}
+
+	/**
+	 * @return true if adding the given cost would take the group past its
+	 *         reserved space and into the shared pool.
+	 */
+	boolean exceedsQuota(long cost) {
+	    return usage.sum() + cost > quota;
+	}
+    }
+}
@@ -0,0 +1,66 @@
+package com.newrelic.labs;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import okhttp3.Dns;
+
+/**
+ * Resolves through the system resolver and keeps each result for a fixed time,
+ * so that a new connection to the Logs API does not wait for a DNS lookup. When
+ * a refresh fails, for example while the network of a new instance is still
+ * coming up, the last addresses are used until a lookup succeeds again.
+ */
+public final class CachingDns implements Dns {
+
+    private static final Logger logger = StatusLogger.getLogger();
+
+    private final long ttlMillis;
+    private final Dns delegate;
+    private final Map<String, Resolved> cache = new ConcurrentHashMap<>();
+
+    public CachingDns(long ttlMillis) {
+	this(ttlMillis, Dns.SYSTEM);
+    }
+
+    CachingDns(long ttlMillis, Dns delegate) {
+	this.ttlMillis = ttlMillis;
+	this.delegate = delegate;
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+	long now = System.currentTimeMillis();
+	Resolved resolved = cache.get(hostname);
+	if (resolved != null && now < resolved.expiresAt) {
+	    return resolved.addresses;
+	}
+	try {
+	    List<InetAddress> addresses = delegate.lookup(hostname);
+	    cache.put(hostname, new Resolved(addresses, now + ttlMillis));
+	    return addresses;
+	} catch (UnknownHostException e) {
+	    if (resolved == null) {
+		throw e;
+	    }
+	    logger.debug("Unable to resolve {}, using the addresses resolved before: {}", hostname, e.getMessage());
+	    return resolved.addresses;
+	}
+    }
+
+    private static final class Resolved {
+	final List<InetAddress> addresses;
+	final long expiresAt;
+
+	Resolved(List<InetAddress> addresses, long expiresAt) {
+	    this.addresses = addresses;
+	    this.expiresAt = expiresAt;
+	}
+    }
+}
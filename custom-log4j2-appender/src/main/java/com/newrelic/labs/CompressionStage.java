@@ -0,0 +1,251 @@
+package com.newrelic.labs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntFunction;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import com.newrelic.labs.StackTraceCache.RenderedTrace;
+
+/**
+ * Daemon worker that keeps one {@link OpenBatch} open and moves queued entries
+ * into it as soon as they arrive, so serialization and compression are spread
+ * over the time the batch is filling instead of running in one burst at flush
+ * time. The batch is sent as soon as it holds batchSize entries, when the next
+ * entry would take it past maxMessageSize, or once it has been open for the
+ * linger time. Entries are taken from the queue a few at a time; while the
+ * worker waits to send, the rest stay in the queue, where overflow policies and
+ * quotas apply as usual.
+ */
+public final class CompressionStage {
+
+    private static final Logger logger = StatusLogger.getLogger();
+    private static final int DRAIN_CHUNK = 64;
+    private static final long MAX_WAIT_MILLIS = 1000;
+
+    private final NRBufferWithFifoEviction<LogEntry> queue;
+    private final LogForwarder forwarder;
+    private final int batchSize;
+    private final long linger;
+    private final boolean mergeCustomFields;
+    private final Map<String, Object> customFields;
+    private final BooleanSupplier healthy;
+    private final IntFunction<FlushCallback> callbacks;
+    private final Thread worker;
+    // Set while the worker is parked on an empty queue, so that producers only
+    // unpark it when it needs waking
+    private final AtomicBoolean idle = new AtomicBoolean(false);
+    private volatile boolean stopping = false;
+    private OpenBatch batch; // worker thread only; null until the next entry arrives
+
+    /**
+     * @param linger    Longest time in milliseconds a batch stays open.
+     * @param healthy   false after a failed send; a full batch then waits for its
+     *                  linger instead of going out right away.
+     * @param callbacks Returns the callback for a batch of the given size.
+     */
+    public CompressionStage(String name, NRBufferWithFifoEviction<LogEntry> queue, LogForwarder forwarder,
+	    int batchSize, long linger, boolean mergeCustomFields, Map<String, Object> customFields,
+	    BooleanSupplier healthy, IntFunction<FlushCallback> callbacks) {
+	this.queue = queue;
+	this.forwarder = forwarder;
+	this.batchSize = batchSize;
+	this.linger = linger;
+	this.mergeCustomFields = mergeCustomFields;
+	this.customFields = customFields;
+	this.healthy = healthy;
+	this.callbacks = callbacks;
+	this.worker = new Thread(this::run, name);
+	worker.setDaemon(true);
+    }
+
+    public CompressionStage start() {
+	worker.start();
+	return this;
+    }
+
+    /**
+     * Tells the worker that an entry has been queued. Cheap when the worker is
+     * already busy.
+     */
+    public void wake() {
+	if (idle.get() && idle.compareAndSet(true, false)) {
+	    LockSupport.unpark(worker);
+	}
+    }
+
+    private void run() {
+	List<LogEntry> drained = new ArrayList<>(DRAIN_CHUNK);
+	while (!stopping) {
+	    try {
+		if (forwarder.isPaused()) {
+		    park(remainingPause());
+		    continue;
+		}
+		if (batch != null && System.currentTimeMillis() >= batch.getOpenedAt() + linger) {
+		    send();
+		    continue;
+		}
+		drained.clear();
+		queue.drainTo(drained, DRAIN_CHUNK);
+		if (drained.isEmpty()) {
+		    idle.set(true);
+		    // Re-check after announcing, so an entry queued in between is not missed
+		    if (queue.size() == 0 && !stopping) {
+			park(batch != null ? Math.max(1, batch.getOpenedAt() + linger - System.currentTimeMillis())
+				: 0);
+		    }
+		    idle.set(false);
+		    continue;
+		}
+		for (LogEntry entry : drained) {
+		    append(entry);
+		}
+	    } catch (Exception e) {
+		logger.error("Error in the compression stage", e);
+	    }
+	}
+	// Compress what is still queued without waiting to send, unless the deadline
+	// interrupts it; the caller sends whatever is left
+	try {
+	    while (!Thread.currentThread().isInterrupted()) {
+		drained.clear();
+		queue.drainTo(drained, DRAIN_CHUNK);
+		if (drained.isEmpty()) {
+		    break;
+		}
+		for (LogEntry entry : drained) {
+		    append(entry);
+		}
+	    }
+	    if (batch != null) {
+		send();
+	    }
+	} catch (Exception e) {
+	    logger.error("Error in the compression stage", e);
+	}
+    }
+
+    private void append(LogEntry entry) {
+	Map<String, Object> logEvent = forwarder.toLogEvent(entry, mergeCustomFields, customFields);
+	RenderedTrace trace = LogForwarder.carriedTrace(entry, logEvent);
+	try {
+	    if (batch == null) {
+		batch = forwarder.openBatch(batchSize);
+	    }
+	    // Only the first entry of a batch carries a deduplicated trace in full
+	    boolean shared = trace != null && trace.isDeduplicated() && batch.carries(trace);
+	    if (shared) {
+		logEvent.remove("error.stack");
+	    }
+	    byte[] json = batch.serialize(logEvent);
+	    if (!batch.fits(json.length)) {
+		send();
+		batch = forwarder.openBatch(batchSize);
+		if (shared) {
+		    logEvent.put("error.stack", trace.stack);
+		    json = batch.serialize(logEvent);
+		    shared = false;
+		}
+	    }
+	    batch.add(logEvent, json, shared ? null : trace);
+	    if (batch.isFull()) {
+		send();
+	    }
+	} catch (IOException e) {
+	    logger.error("Unable to serialize log entry, dropping it", e);
+	}
+    }
+
+    private void send() {
+	awaitSendable();
+	OpenBatch sealed = batch;
+	batch = null;
+	logger.debug("Sending {} log entries compressed as they arrived", sealed.size());
+	forwarder.sendAsync(sealed, callbacks.apply(sealed.size()));
+    }
+
+    /**
+     * Holds a batch while sending is paused, and after a failed send until its
+     * linger is up, like the harvest does. Then waits for a send slot, so that
+     * batches do not pile up behind the in-flight limit.
+     */
+    private void awaitSendable() {
+	long deadline = batch.getOpenedAt() + linger;
+	while (!stopping) {
+	    long now = System.currentTimeMillis();
+	    if (forwarder.isPaused()) {
+		park(remainingPause());
+	    } else if (!healthy.getAsBoolean() && now < deadline) {
+		park(deadline - now);
+	    } else {
+		break;
+	    }
+	}
+	if (!stopping) {
+	    forwarder.awaitSendSlot(System.currentTimeMillis() + linger);
+	}
+    }
+
+    private long remainingPause() {
+	return Math.max(1, forwarder.getDestinations().get(0).getRateLimiter().remainingPause());
+    }
+
+    // Parks for up to the given time, 0 for until woken
+    private void park(long millis) {
+	if (millis <= 0) {
+	    LockSupport.park(this);
+	} else {
+	    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.min(millis, MAX_WAIT_MILLIS)));
+	}
+    }
+
+    /**
+     * Compresses and sends everything still queued, without waiting for send
+     * slots. At the deadline the worker is interrupted: it finishes the chunk it
+     * has taken from the queue, hands the open batch to the forwarder and exits.
+     * This only returns once the worker has exited, so nothing appends to a batch
+     * or sends after the caller starts draining; entries still queued are left to
+     * the caller.
+     *
+     * @param deadline Wall-clock time in milliseconds.
+     * @return false if the worker had not finished by the deadline.
+     */
+    public boolean stop(long deadline) {
+	stopping = true;
+	LockSupport.unpark(worker);
+	boolean interrupted = false;
+	boolean finished = true;
+	while (worker.isAlive()) {
+	    try {
+		long remaining = deadline - System.currentTimeMillis();
+		if (finished && remaining > 0) {
+		    worker.join(remaining);
+		} else {
+		    if (finished) {
+			finished = false;
+			worker.interrupt();
+		    }
+		    // Bounded by one chunk: the worker neither parks nor waits for a send slot
+		    // once stopping
+		    worker.join();
+		}
+	    } catch (InterruptedException e) {
+		interrupted = true;
+		deadline = 0;
+	    }
+	}
+	if (interrupted) {
+	    Thread.currentThread().interrupt();
+	}
+	return finished;
+    }
+}
@@ -0,0 +1,178 @@
+package com.newrelic.labs;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.TriConsumer;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+/**
+ * Immutable copy of an event's context data (MDC) held as two parallel arrays.
+ * Capturing it costs one object and two arrays per event instead of a chain of
+ * HashMaps, the cost used for queue accounting is computed once, and it is
+ * written to JSON straight from the arrays.
+ */
+@JsonSerialize(using = ContextDataSnapshot.Serializer.class)
+public final class ContextDataSnapshot extends AbstractMap<String, Object> {
+
+    public static final ContextDataSnapshot EMPTY = new ContextDataSnapshot(new String[0], new Object[0]);
+
+    private static final TriConsumer<String, Object, ContextDataSnapshot> COPY = (key, value, snapshot) -> {
+	snapshot.keys[snapshot.size] = key;
+	snapshot.values[snapshot.size] = value;
+	snapshot.size++;
+    };
+
+    private final String[] keys;
+    private final Object[] values;
+    private int size;
+    private long cost = -1;
+
+    private ContextDataSnapshot(String[] keys, Object[] values) {
+	this.keys = keys;
+	this.values = values;
+	this.size = keys.length;
+    }
+
+    /**
+     * Copies the given context data, typically {@code LogEvent.getContextData()}.
+     */
+    public static ContextDataSnapshot capture(ReadOnlyStringMap contextData) {
+	if (contextData == null || contextData.isEmpty()) {
+	    return EMPTY;
+	}
+	int capacity = contextData.size();
+	ContextDataSnapshot snapshot = new ContextDataSnapshot(new String[capacity], new Object[capacity]);
+	snapshot.size = 0;
+	contextData.forEach(COPY, snapshot);
+	return snapshot;
+    }
+
+    /**
+     * @return The combined length of all keys and values, as used by the queue's
+     *         cost accounting. Computed on first use and then cached.
+     */
+    public long cost() {
+	long c = cost;
+	if (c < 0) {
+	    c = 0;
+	    for (int i = 0; i < size; i++) {
+		c += keys[i].length();
+		Object value = values[i];
+		if (value instanceof String) {
+		    c += ((String) value).length();
+		} else if (value != null) {
+		    c += value.toString().length();
+		}
+	    }
+	    cost = c;
+	}
+	return c;
+    }
+
+    /**
+     * Masks the values of sensitive keys. Only called on a fresh capture, before
+     * the snapshot is queued or its cost is computed.
+     */
+    void redact(KeyRedactor redactor) {
+	for (int i = 0; i < size; i++) {
+	    if (values[i] != null && redactor.matches(keys[i])) {
+		values[i] = KeyRedactor.MASK;
+	    }
+	}
+    }
+
+    @Override
+    public int size() {
+	return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+	return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+	int index = indexOf(key);
+	return index >= 0 ? values[index] : null;
+    }
+
+    private int indexOf(Object key) {
+	for (int i = 0; i < size; i++) {
+	    if (keys[i].equals(key)) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+	return new AbstractSet<Map.Entry<String, Object>>() {
+	    @Override
+	    public Iterator<Map.Entry<String, Object>> iterator() {
+		return new Iterator<Map.Entry<String, Object>>() {
+		    private int next = 0;
+
+		    @Override
+		    public boolean hasNext() {
+			return next < size;
+		    }
+
+		    @Override
+		    public Map.Entry<String, Object> next() {
+			if (next >= size) {
+			    throw new NoSuchElementException();
+			}
+			Map.Entry<String, Object> entry = new SimpleImmutableEntry<>(keys[next], values[next]);
+			next++;
+			return entry;
+		    }
+		};
+	    }
+
+	    @Override
+	    public int size() {
+		return size;
+	    }
+	};
+    }
+
+    /**
+     * Writes the snapshot as a JSON object without creating entry objects.
+     */
+    @SuppressWarnings("serial")
+    static final class Serializer extends StdSerializer<ContextDataSnapshot> {
+
+	Serializer() {
+	    super(ContextDataSnapshot.class);
+	}
+
+	@Override
+	public void serialize(ContextDataSnapshot snapshot, JsonGenerator gen, SerializerProvider provider)
+		throws IOException {
+	    gen.writeStartObject();
+	    for (int i = 0; i < snapshot.size; i++) {
+		gen.writeFieldName(snapshot.keys[i]);
+		Object value = snapshot.values[i];
+		if (value instanceof String) {
+		    gen.writeString((String) value);
+		} else {
+		    provider.defaultSerializeValue(value, gen);
+		}
+	    }
+	    gen.writeEndObject();
+	}
+    }
+}
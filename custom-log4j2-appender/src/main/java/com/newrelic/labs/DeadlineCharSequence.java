@@ -0,0 +1,61 @@
+package com.newrelic.labs;
+
+/**
+ * A {@link CharSequence} that stops a regular expression once a deadline has
+ * passed. {@code java.util.regex} reads its input through {@link #charAt}, so
+ * a pattern that backtracks catastrophically keeps calling it; every 1024
+ * reads the clock is checked and {@link DeadlineExceededException} is thrown
+ * out of the matcher.
+ */
+public final class DeadlineCharSequence implements CharSequence {
+
+    private static final int CHECK_INTERVAL = 1024; // power of two
+
+    private final CharSequence text;
+    private final long deadlineNanos;
+    private int reads = 0;
+
+    /**
+     * @param text          The text to match; may be modified between
+     *                      matches as long as its length does not change.
+     * @param deadlineNanos Deadline in {@link System#nanoTime()} terms.
+     */
+    public DeadlineCharSequence(CharSequence text, long deadlineNanos) {
+	this.text = text;
+	this.deadlineNanos = deadlineNanos;
+    }
+
+    @Override
+    public char charAt(int index) {
+	if ((++reads & (CHECK_INTERVAL - 1)) == 0 && System.nanoTime() - deadlineNanos > 0) {
+	    throw new DeadlineExceededException();
+	}
+	return text.charAt(index);
+    }
+
+    @Override
+    public int length() {
+	return text.length();
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+	return new DeadlineCharSequence(text.subSequence(start, end), deadlineNanos);
+    }
+
+    @Override
+    public String toString() {
+	return text.toString();
+    }
+
+    /**
+     * Thrown when matching runs past the deadline. Carries no stack trace, so
+     * throwing it costs next to nothing.
+     */
+    @SuppressWarnings("serial")
+    public static final class DeadlineExceededException extends RuntimeException {
+	DeadlineExceededException() {
+	    super("Regular expression ran past its time budget", null, false, false);
+	}
+    }
+}
@@ -0,0 +1,75 @@
+package com.newrelic.labs;
+
+/**
+ * The {@code error.*} attributes of a log entry. The stack trace is either a
+ * shared {@link StackTraceCache} rendering or, for entries rebuilt from a
+ * serialized event, the plain strings that were sent before.
+ */
+public final class ExceptionInfo {
+
+    private final String errorClass;
+    private final String errorMessage;
+    private final StackTraceCache.RenderedTrace trace;
+    private final String stack;
+    private final String stackHash;
+
+    ExceptionInfo(String errorClass, String errorMessage, StackTraceCache.RenderedTrace trace) {
+	this.errorClass = errorClass;
+	this.errorMessage = errorMessage;
+	this.trace = trace;
+	this.stack = null;
+	this.stackHash = trace.hash;
+    }
+
+    public ExceptionInfo(String errorClass, String errorMessage, String stack, String stackHash) {
+	this.errorClass = errorClass;
+	this.errorMessage = errorMessage;
+	this.trace = null;
+	this.stack = stack;
+	this.stackHash = stackHash;
+    }
+
+    public String getErrorClass() {
+	return errorClass;
+    }
+
+    public String getErrorMessage() {
+	return errorMessage;
+    }
+
+    public String getStackHash() {
+	return stackHash;
+    }
+
+    /**
+     * @return The stack trace to send with an event serialized at {@code now},
+     *         or {@code null} when a payload carrying the same trace was accepted
+     *         within the dedup window and only the hash is sent.
+     */
+    String stackToSend(long now) {
+	if (trace != null) {
+	    return trace.sentWithin(now) ? null : trace.stack;
+	}
+	return stack;
+    }
+
+    /**
+     * @return The shared rendering, or {@code null} for an entry rebuilt from a
+     *         serialized event.
+     */
+    StackTraceCache.RenderedTrace getTrace() {
+	return trace;
+    }
+
+    /**
+     * @return Queued size of the attributes. A cached rendering is shared between
+     *         entries and only its hash is charged.
+     */
+    long cost() {
+	long cost = errorClass != null ? errorClass.length() : 0;
+	cost += errorMessage != null ? errorMessage.length() : 0;
+	cost += stackHash != null ? stackHash.length() : 0;
+	cost += stack != null ? stack.length() : 0;
+	return cost;
+    }
+}
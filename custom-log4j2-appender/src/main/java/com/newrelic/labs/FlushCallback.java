@@ -6,5 +6,30 @@ import java.util.Map;
 public interface FlushCallback {
     void onSuccess();
 
+    /**
+     * Called instead of {@link #onSuccess()} with the number of log events the
+     * request delivered.
+     */
+    default void onSuccess(int sentCount) {
+	onSuccess();
+    }
+
     void onFailure(List<Map<String, Object>> failedLogEvents);
-}
\ No newline at end of file
+
+    /**
+     * Called when the Logs API answered 429 or 503. Sending is paused for the
+     * Retry-After time, so the events should be retried without counting the
+     * attempt against maxRetries.
+     */
+    default void onThrottled(List<Map<String, Object>> throttledLogEvents) {
+	onFailure(throttledLogEvents);
+    }
+
+    /**
+     * Called when the Logs API refused the payload with a 4xx status that will not
+     * succeed on retry (bad request, invalid key, payload too large). The events
+     * are dropped by default.
+     */
+    default void onRejected(List<Map<String, Object>> rejectedLogEvents, int statusCode) {
+    }
+}
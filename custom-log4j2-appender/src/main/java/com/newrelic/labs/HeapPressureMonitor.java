@@ -0,0 +1,273 @@
+package com.newrelic.labs;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * Lowers the capacity of a pipeline's buffers while the heap stays full after
+ * garbage collection, and raises it again once the heap has eased. Only the
+ * tenured pool is watched: the young pools are full after most collections by
+ * design, so their usage says nothing about memory the queue could give back.
+ * The JVM reports when the tenured pool's usage after a collection reaches
+ * the threshold; each report halves the capacity, evicting the oldest entries, down to
+ * 1/{@value #MIN_FRACTION} of the configured one. While the capacity is
+ * lowered, the heap is checked every {@value #RECHECK_MILLIS} ms and the
+ * capacity doubles each time usage after collection is
+ * {@value #HYSTERESIS_PERCENT} points below the threshold.
+ */
+public final class HeapPressureMonitor implements NotificationListener {
+
+    private static final Logger logger = StatusLogger.getLogger();
+    private static final int MIN_FRACTION = 16;
+    private static final int HYSTERESIS_PERCENT = 10;
+    private static final long RECHECK_MILLIS = 5000;
+
+    private final int thresholdPercent;
+    private final NRBufferWithFifoEviction<?>[] buffers;
+    private final long[] configured;
+    private final AppenderMetrics metrics;
+    private final ScheduledExecutorService scheduler;
+    // Monitors started and not yet stopped, and the threshold each pool had before
+    // the first of them lowered it; guarded by the class
+    private static final List<HeapPressureMonitor> active = new ArrayList<>();
+    private static final Map<String, Long> originalThresholds = new HashMap<>();
+
+    private MemoryPoolMXBean pool; // null when the JVM has no suitable pool
+    private long threshold; // in bytes, on pool
+    private final Object lock = new Object();
+    private int divisor = 1; // guarded by lock; the capacity is the configured one divided by this
+    private ScheduledFuture<?> recheck; // guarded by lock
+    private boolean listening = false;
+
+    /**
+     * @param thresholdPercent Heap usage after collection, in percent of the
+     *                         tenured pool's maximum, that counts as pressure.
+     * @param scheduler        Runs the checks while the capacity is lowered.
+     * @param buffers          Scaled together, each relative to the capacity it
+     *                         has now.
+     */
+    public HeapPressureMonitor(int thresholdPercent, AppenderMetrics metrics, ScheduledExecutorService scheduler,
+	    NRBufferWithFifoEviction<?>... buffers) {
+	this.thresholdPercent = thresholdPercent;
+	this.metrics = metrics;
+	this.scheduler = scheduler;
+	this.buffers = buffers;
+	this.configured = new long[buffers.length];
+	for (int i = 0; i < buffers.length; i++) {
+	    configured[i] = buffers[i].getCapacity();
+	}
+    }
+
+    /**
+     * Sets the collection usage threshold of the tenured pool and listens for it
+     * being exceeded. The threshold is shared by the whole JVM: while several
+     * monitors run, the pool has the lowest of their thresholds, and reports
+     * above our own are ignored. {@link #stop()} puts back the threshold the pool
+     * had before.
+     */
+    public HeapPressureMonitor start() {
+	pool = tenuredPool();
+	if (pool == null) {
+	    logger.warn("No heap memory pool reports its usage after collection, heapPressureThreshold is ignored");
+	    return this;
+	}
+	threshold = pool.getUsage().getMax() / 100 * thresholdPercent;
+	synchronized (HeapPressureMonitor.class) {
+	    if (!originalThresholds.containsKey(pool.getName())) {
+		originalThresholds.put(pool.getName(), pool.getCollectionUsageThreshold());
+	    }
+	    active.add(this);
+	    applyLowestThreshold(pool);
+	}
+	((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+	listening = true;
+	return this;
+    }
+
+    /**
+     * @return The heap pool that outlives young collections: the one named old or
+     *         tenured generation, otherwise the largest heap pool that reports its
+     *         usage after collection, which is the only one for single-pool
+     *         collectors such as ZGC and Shenandoah.
+     */
+    private static MemoryPoolMXBean tenuredPool() {
+	MemoryPoolMXBean largest = null;
+	for (MemoryPoolMXBean candidate : ManagementFactory.getMemoryPoolMXBeans()) {
+	    long max = candidate.getUsage().getMax();
+	    if (candidate.getType() != MemoryType.HEAP || !candidate.isCollectionUsageThresholdSupported()
+		    || max <= 0) {
+		continue;
+	    }
+	    String name = candidate.getName();
+	    if (name.contains("Old Gen") || name.contains("Tenured Gen")) {
+		return candidate;
+	    }
+	    if (largest == null || max > largest.getUsage().getMax()) {
+		largest = candidate;
+	    }
+	}
+	return largest;
+    }
+
+    // Caller holds the class lock
+    private static void applyLowestThreshold(MemoryPoolMXBean pool) {
+	long lowest = originalThresholds.get(pool.getName());
+	for (HeapPressureMonitor monitor : active) {
+	    if (monitor.pool.getName().equals(pool.getName()) && (lowest == 0 || monitor.threshold < lowest)) {
+		lowest = monitor.threshold;
+	    }
+	}
+	if (pool.getCollectionUsageThreshold() != lowest) {
+	    pool.setCollectionUsageThreshold(lowest);
+	}
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+	if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+	    return;
+	}
+	MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData) notification.getUserData());
+	if (!info.getPoolName().equals(pool.getName())) {
+	    return; // another pool, whose threshold someone else set
+	}
+	int percent = percentOf(info.getUsage());
+	if (percent >= thresholdPercent) {
+	    onHeapPressure(percent);
+	}
+    }
+
+    /**
+     * Halves the capacity, unless it is already at its lowest.
+     */
+    void onHeapPressure(int heapUsedPercent) {
+	synchronized (lock) {
+	    if (divisor < MIN_FRACTION) {
+		divisor *= 2;
+		apply(heapUsedPercent);
+	    }
+	    if (recheck == null) {
+		try {
+		    recheck = scheduler.scheduleWithFixedDelay(() -> recheck(heapUsedAfterCollection()),
+			    RECHECK_MILLIS, RECHECK_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+		    logger.debug("Pipeline is stopping, heap pressure not rechecked");
+		}
+	    }
+	}
+    }
+
+    /**
+     * Doubles the capacity if the heap has eased, until it is back at the
+     * configured one.
+     */
+    void recheck(int heapUsedPercent) {
+	synchronized (lock) {
+	    if (divisor == 1 || heapUsedPercent > thresholdPercent - HYSTERESIS_PERCENT) {
+		return;
+	    }
+	    divisor /= 2;
+	    apply(heapUsedPercent);
+	    if (divisor == 1 && recheck != null) {
+		recheck.cancel(false);
+		recheck = null;
+	    }
+	}
+    }
+
+    private void apply(int heapUsedPercent) {
+	long previous = buffers[0].getCapacity();
+	for (int i = 0; i < buffers.length; i++) {
+	    buffers[i].setCapacity(configured[i] / divisor);
+	}
+	long capacity = buffers[0].getCapacity();
+	metrics.recordCapacityAdjustment(previous, capacity);
+	AppenderEvents.get().capacityAdjusted(previous, capacity, heapUsedPercent);
+	if (capacity < previous) {
+	    logger.warn("Heap {}% full after garbage collection, lowering the log queue capacity to {} bytes",
+		    heapUsedPercent, capacity);
+	} else {
+	    logger.info("Heap {}% full after garbage collection, raising the log queue capacity to {} bytes",
+		    heapUsedPercent, capacity);
+	}
+    }
+
+    private int heapUsedAfterCollection() {
+	MemoryUsage usage = pool.getCollectionUsage();
+	return usage != null ? percentOf(usage) : 0;
+    }
+
+    private static int percentOf(MemoryUsage usage) {
+	return usage.getMax() > 0 ? (int) (usage.getUsed() * 100 / usage.getMax()) : 0;
+    }
+
+    /**
+     * @return The capacity the first buffer has now.
+     */
+    public long getCapacity() {
+	return buffers[0].getCapacity();
+    }
+
+    /**
+     * @return The name of the watched pool, or null when there is none.
+     */
+    String getPoolName() {
+	return pool != null ? pool.getName() : null;
+    }
+
+    /**
+     * Stops listening and puts back the pool's threshold: the lowest of the
+     * monitors still running, or the one it had before the first of them
+     * started. The capacity stays where it is.
+     */
+    public void stop() {
+	synchronized (lock) {
+	    if (recheck != null) {
+		recheck.cancel(false);
+		recheck = null;
+	    }
+	}
+	if (listening) {
+	    try {
+		((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+	    } catch (ListenerNotFoundException e) {
+		// Already removed
+	    }
+	    listening = false;
+	}
+	if (pool != null) {
+	    synchronized (HeapPressureMonitor.class) {
+		if (active.remove(this)) {
+		    applyLowestThreshold(pool);
+		    boolean last = true;
+		    for (HeapPressureMonitor monitor : active) {
+			last &= !monitor.pool.getName().equals(pool.getName());
+		    }
+		    if (last) {
+			originalThresholds.remove(pool.getName());
+		    }
+		}
+	    }
+	}
+    }
+}
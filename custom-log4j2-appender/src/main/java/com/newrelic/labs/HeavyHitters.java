@@ -0,0 +1,359 @@
+package com.newrelic.labs;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.ReusableMessage;
+import org.apache.logging.log4j.message.ReusableParameterizedMessage;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * Finds the loggers and message templates that produce the most events and
+ * bytes, in fixed memory however many distinct ones there are. Every event
+ * updates a Count-Min sketch with atomic adds; only an event whose estimate
+ * beats the smallest of the current top entries tries to take the lock that
+ * guards them, and skips the update when the lock is busy. At the end of each
+ * window the top entries are published, through JMX and as JFR events, and
+ * the counts start again from zero.
+ */
+public final class HeavyHitters implements HeavyHittersMXBean {
+
+    /**
+     * Recorded in place of the format of a message that is not a template.
+     */
+    public static final String NO_TEMPLATE = "(no template)";
+
+    private static final Logger logger = StatusLogger.getLogger();
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 2048; // power of two
+    private static final int MAX_FORMAT_LENGTH = 200;
+    private static final String DOMAIN = "com.newrelic.labs";
+    // Reconfiguration starts the new appender before the old one stops, so the
+    // bean is only unregistered by the instance that registered it last
+    private static final Map<ObjectName, HeavyHitters> REGISTERED = new ConcurrentHashMap<>();
+
+    private final int size;
+    private final long windowMillis;
+    private final AtomicLongArray events = new AtomicLongArray(DEPTH * WIDTH);
+    private final AtomicLongArray bytes = new AtomicLongArray(DEPTH * WIDTH);
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by lock
+    private final Entry[] byEvents;
+    private final Entry[] byBytes;
+    private int byEventsCount = 0;
+    private int byBytesCount = 0;
+    // Smallest counts in the full tables; 0 until a table is full
+    private volatile long minEvents = 0;
+    private volatile long minBytes = 0;
+    private volatile long windowEnd;
+    private volatile List<String> lastByEvents = Collections.emptyList();
+    private volatile List<String> lastByBytes = Collections.emptyList();
+    private ObjectName objectName;
+
+    /**
+     * @param size         Number of top entries kept per ranking.
+     * @param windowMillis Length of a window; counts restart after each one.
+     */
+    public HeavyHitters(int size, long windowMillis) {
+	this.size = size;
+	this.windowMillis = windowMillis;
+	this.byEvents = new Entry[size];
+	this.byBytes = new Entry[size];
+	this.windowEnd = System.currentTimeMillis() + windowMillis;
+    }
+
+    /**
+     * Counts one event. Lock-free unless the event is a candidate for the top
+     * entries.
+     *
+     * @param loggerName The event's logger.
+     * @param format     The message template, e.g. {@code "User {} logged in"};
+     *                   see {@link #templateOf(Message)}.
+     * @param byteCount  Size of the formatted message in UTF-8, as it is sent;
+     *                   see {@link #utf8Length(CharSequence)}.
+     */
+    public void record(String loggerName, String format, long byteCount) {
+	long now = System.currentTimeMillis();
+	if (now >= windowEnd) {
+	    rotate(now);
+	}
+	long key = ((long) hash(loggerName) << 32) | (hash(format) & 0xffffffffL);
+	long eventEstimate = Long.MAX_VALUE;
+	long byteEstimate = Long.MAX_VALUE;
+	for (int row = 0; row < DEPTH; row++) {
+	    int index = row * WIDTH + (int) (mix(key + row) & (WIDTH - 1));
+	    eventEstimate = Math.min(eventEstimate, events.incrementAndGet(index));
+	    byteEstimate = Math.min(byteEstimate, bytes.addAndGet(index, byteCount));
+	}
+	if ((eventEstimate > minEvents || byteEstimate > minBytes) && lock.tryLock()) {
+	    try {
+		byEventsCount = offer(byEvents, byEventsCount, key, loggerName, format, eventEstimate, byteEstimate,
+			true);
+		byBytesCount = offer(byBytes, byBytesCount, key, loggerName, format, eventEstimate, byteEstimate,
+			false);
+		minEvents = byEventsCount == size ? smallest(byEvents, true) : 0;
+		minBytes = byBytesCount == size ? smallest(byBytes, false) : 0;
+	    } finally {
+		lock.unlock();
+	    }
+	}
+    }
+
+    /**
+     * @return The number of bytes the text takes in UTF-8, counted without
+     *         encoding it.
+     */
+    /**
+     * Returns the template of a parameterized message, or {@link #NO_TEMPLATE}.
+     * The format of any other message, such as a {@code SimpleMessage} or an
+     * {@code ObjectMessage}, is the logged text itself and may hold values that
+     * redactKeys and obfuscationPatterns would mask, so it is never recorded.
+     */
+    static String templateOf(Message message) {
+	if (message instanceof ParameterizedMessage || message instanceof ReusableParameterizedMessage) {
+	    return message.getFormat();
+	}
+	if (message instanceof ReusableMessage) {
+	    // A reused event copies the message and no longer tells which kind it
+	    // was: a template has a placeholder for each parameter and differs from
+	    // the text it formats to, while an object message's format is that text
+	    ReusableMessage reusable = (ReusableMessage) message;
+	    String format = reusable.getFormat();
+	    int count = reusable.getParameterCount();
+	    if (format != null && count > 0 && ParameterizedMessage.countArgumentPlaceholders(format) == count
+		    && !format.equals(reusable.getFormattedMessage())) {
+		return format;
+	    }
+	}
+	return NO_TEMPLATE;
+    }
+
+    static long utf8Length(CharSequence text) {
+	long length = text.length();
+	for (int i = 0; i < text.length(); i++) {
+	    char c = text.charAt(i);
+	    if (c >= 0x800) {
+		// 3 bytes, or 4 for a surrogate pair, which is already counted as two chars
+		length += 2;
+		if (Character.isHighSurrogate(c) && i + 1 < text.length()
+			&& Character.isLowSurrogate(text.charAt(i + 1))) {
+		    i++;
+		}
+	    } else if (c >= 0x80) {
+		length += 1;
+	    }
+	}
+	return length;
+    }
+
+    private static int hash(String value) {
+	return value != null ? value.hashCode() : 0;
+    }
+
+    // SplitMix64 finalizer, so that each row spreads the key differently
+    private static long mix(long z) {
+	z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+	z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+	return z ^ (z >>> 31);
+    }
+
+    private int offer(Entry[] table, int count, long key, String loggerName, String format, long eventEstimate,
+	    long byteEstimate, boolean rankByEvents) {
+	for (int i = 0; i < count; i++) {
+	    if (table[i].key == key) {
+		table[i].events = eventEstimate;
+		table[i].bytes = byteEstimate;
+		return count;
+	    }
+	}
+	Entry entry = new Entry(key, loggerName, format, eventEstimate, byteEstimate);
+	if (count < size) {
+	    table[count] = entry;
+	    return count + 1;
+	}
+	int smallest = 0;
+	for (int i = 1; i < count; i++) {
+	    if (table[i].rank(rankByEvents) < table[smallest].rank(rankByEvents)) {
+		smallest = i;
+	    }
+	}
+	if (entry.rank(rankByEvents) > table[smallest].rank(rankByEvents)) {
+	    table[smallest] = entry;
+	}
+	return count;
+    }
+
+    private static long smallest(Entry[] table, boolean rankByEvents) {
+	long smallest = Long.MAX_VALUE;
+	for (Entry entry : table) {
+	    smallest = Math.min(smallest, entry.rank(rankByEvents));
+	}
+	return smallest;
+    }
+
+    private void rotate(long now) {
+	if (!lock.tryLock()) {
+	    return; // another thread is rotating or updating; it will see the window end too
+	}
+	try {
+	    if (now < windowEnd) {
+		return;
+	    }
+	    List<Entry> topEvents = sorted(byEvents, byEventsCount, true);
+	    List<Entry> topBytes = sorted(byBytes, byBytesCount, false);
+	    for (int i = 0; i < events.length(); i++) {
+		events.set(i, 0);
+		bytes.set(i, 0);
+	    }
+	    Arrays.fill(byEvents, null);
+	    Arrays.fill(byBytes, null);
+	    byEventsCount = 0;
+	    byBytesCount = 0;
+	    minEvents = 0;
+	    minBytes = 0;
+	    // A window with no events at all is not reported; the next one starts now
+	    windowEnd = now - (now - windowEnd) % windowMillis + windowMillis;
+	    publish(topEvents, topBytes);
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    private static List<Entry> sorted(Entry[] table, int count, boolean rankByEvents) {
+	List<Entry> entries = new ArrayList<>(Arrays.asList(table).subList(0, count));
+	entries.sort((a, b) -> Long.compare(b.rank(rankByEvents), a.rank(rankByEvents)));
+	return entries;
+    }
+
+    private void publish(List<Entry> topEvents, List<Entry> topBytes) {
+	lastByEvents = describe(topEvents);
+	lastByBytes = describe(topBytes);
+	AppenderEvents jfr = AppenderEvents.get();
+	for (int i = 0; i < topEvents.size(); i++) {
+	    Entry entry = topEvents.get(i);
+	    jfr.heavyHitter("events", i + 1, entry.loggerName, entry.format, entry.events, entry.bytes);
+	}
+	for (int i = 0; i < topBytes.size(); i++) {
+	    Entry entry = topBytes.get(i);
+	    jfr.heavyHitter("bytes", i + 1, entry.loggerName, entry.format, entry.events, entry.bytes);
+	}
+	if (!topEvents.isEmpty()) {
+	    logger.info("Top loggers by events in the last {} ms: {}", windowMillis, lastByEvents);
+	}
+    }
+
+    private static List<String> describe(List<Entry> entries) {
+	List<String> lines = new ArrayList<>(entries.size());
+	for (Entry entry : entries) {
+	    lines.add(entry.toString());
+	}
+	return Collections.unmodifiableList(lines);
+    }
+
+    @Override
+    public List<String> getTopByEvents() {
+	rotateIfDue();
+	return lastByEvents;
+    }
+
+    @Override
+    public List<String> getTopByBytes() {
+	rotateIfDue();
+	return lastByBytes;
+    }
+
+    // Windows are closed by the next event; this closes one that has seen none since
+    private void rotateIfDue() {
+	long now = System.currentTimeMillis();
+	if (now >= windowEnd) {
+	    rotate(now);
+	}
+    }
+
+    @Override
+    public long getWindowMillis() {
+	return windowMillis;
+    }
+
+    /**
+     * Registers this instance as {@code com.newrelic.labs:type=HeavyHitters,name=<appender>}
+     * with the platform MBean server, replacing an earlier appender's bean of the
+     * same name.
+     */
+    public void register(String appenderName) {
+	try {
+	    ObjectName name = new ObjectName(DOMAIN + ":type=HeavyHitters,name=" + ObjectName.quote(appenderName));
+	    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	    synchronized (REGISTERED) {
+		if (server.isRegistered(name)) {
+		    server.unregisterMBean(name);
+		}
+		server.registerMBean(this, name);
+		REGISTERED.put(name, this);
+	    }
+	    objectName = name;
+	} catch (JMException | SecurityException e) {
+	    logger.warn("Unable to register heavy hitters MBean for appender {}", appenderName, e);
+	}
+    }
+
+    /**
+     * Removes the MBean unless a newer appender has replaced it.
+     */
+    public void unregister() {
+	if (objectName == null) {
+	    return;
+	}
+	synchronized (REGISTERED) {
+	    if (REGISTERED.remove(objectName, this)) {
+		try {
+		    ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException | SecurityException e) {
+		    logger.debug("Unable to unregister {}", objectName, e);
+		}
+	    }
+	}
+	objectName = null;
+    }
+
+    private static final class Entry {
+	final long key;
+	final String loggerName;
+	final String format;
+	long events;
+	long bytes;
+
+	Entry(long key, String loggerName, String format, long events, long bytes) {
+	    this.key = key;
+	    this.loggerName = loggerName;
+	    this.format = format != null && format.length() > MAX_FORMAT_LENGTH
+		    ? format.substring(0, MAX_FORMAT_LENGTH)
+		    : format;
+	    this.events = events;
+	    this.bytes = bytes;
+	}
+
+	long rank(boolean byEvents) {
+	    return byEvents ? events : bytes;
+	}
+
+	@Override
+	public String toString() {
+	    return loggerName + " \"" + format + "\" events=" + events + " bytes=" + bytes;
+	}
+    }
+}
@@ -0,0 +1,16 @@
+package com.newrelic.labs;
+
+import java.util.List;
+
+/**
+ * JMX view of {@link HeavyHitters}: the top loggers and message templates of
+ * the last completed window, one line per entry, largest first.
+ */
+public interface HeavyHittersMXBean {
+
+    List<String> getTopByEvents();
+
+    List<String> getTopByBytes();
+
+    long getWindowMillis();
+}
@@ -0,0 +1,295 @@
+package com.newrelic.labs;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR implementation of {@link AppenderEvents}, only loaded when the runtime
+ * provides {@code jdk.jfr}. The events are enabled by default and carry no stack
+ * traces. Without a recording, or when a recording disables them,
+ * {@code shouldCommit()} returns {@code false} right away and nothing is
+ * recorded.
+ */
+final class JfrAppenderEvents extends AppenderEvents {
+
+    private static final String CATEGORY = "New Relic Log Appender";
+
+    private final SlowAppend slowAppendProbe = new SlowAppend();
+    private final BatchDrained batchDrainedProbe = new BatchDrained();
+
+    @Override
+    boolean isTimingAppends() {
+	return slowAppendProbe.isEnabled();
+    }
+
+    @Override
+    boolean isRecordingBatches() {
+	return batchDrainedProbe.isEnabled();
+    }
+
+    @Override
+    void slowAppend(String loggerName, long durationNanos) {
+	SlowAppend event = new SlowAppend();
+	if (event.shouldCommit()) {
+	    event.loggerName = loggerName;
+	    event.appendTime = durationNanos;
+	    event.commit();
+	}
+    }
+
+    @Override
+    void batchDrained(int count, long cost) {
+	BatchDrained event = new BatchDrained();
+	if (event.shouldCommit()) {
+	    event.count = count;
+	    event.cost = cost;
+	    event.commit();
+	}
+    }
+
+    @Override
+    void payloadSerialized(int eventCount, long rawBytes, long compressedBytes, long durationNanos) {
+	PayloadSerialized event = new PayloadSerialized();
+	if (event.shouldCommit()) {
+	    event.eventCount = eventCount;
+	    event.rawBytes = rawBytes;
+	    event.compressedBytes = compressedBytes;
+	    event.serializationTime = durationNanos;
+	    event.commit();
+	}
+    }
+
+    @Override
+    void requestSent(String destination, int eventCount, long bytes) {
+	RequestSent event = new RequestSent();
+	if (event.shouldCommit()) {
+	    event.destination = destination;
+	    event.eventCount = eventCount;
+	    event.bytes = bytes;
+	    event.commit();
+	}
+    }
+
+    @Override
+    void requestCompleted(String destination, int eventCount, int status, String outcome, long latencyNanos) {
+	RequestCompleted event = new RequestCompleted();
+	if (event.shouldCommit()) {
+	    event.destination = destination;
+	    event.eventCount = eventCount;
+	    event.status = status;
+	    event.outcome = outcome;
+	    event.latency = latencyNanos;
+	    event.commit();
+	}
+    }
+
+    @Override
+    void evicted(int count, long cost) {
+	Eviction event = new Eviction();
+	if (event.shouldCommit()) {
+	    event.count = count;
+	    event.cost = cost;
+	    event.commit();
+	}
+    }
+
+    @Override
+    void capacityAdjusted(long previous, long capacity, int heapUsedPercent) {
+	CapacityAdjustment event = new CapacityAdjustment();
+	if (event.shouldCommit()) {
+	    event.previous = previous;
+	    event.capacity = capacity;
+	    event.heapUsedPercent = heapUsedPercent;
+	    event.commit();
+	}
+    }
+
+    @Override
+    void requeued(int count) {
+	Requeue event = new Requeue();
+	if (event.shouldCommit()) {
+	    event.count = count;
+	    event.commit();
+	}
+    }
+
+    @Override
+    void heavyHitter(String ranking, int rank, String loggerName, String format, long events, long bytes) {
+	HeavyHitter event = new HeavyHitter();
+	if (event.shouldCommit()) {
+	    event.ranking = ranking;
+	    event.rank = rank;
+	    event.loggerName = loggerName;
+	    event.format = format;
+	    event.events = events;
+	    event.bytes = bytes;
+	    event.commit();
+	}
+    }
+
+    @Name("com.newrelic.labs.SlowAppend")
+    @Label("Slow Append")
+    @Description("An append call that took longer than the appender's slowAppendThreshold")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class SlowAppend extends Event {
+	@Label("Logger")
+	String loggerName;
+
+	@Label("Append Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long appendTime;
+    }
+
+    @Name("com.newrelic.labs.BatchDrained")
+    @Label("Batch Drained")
+    @Description("Log entries taken from the queue to be sent")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class BatchDrained extends Event {
+	@Label("Entries")
+	int count;
+
+	@Label("Cost")
+	@DataAmount
+	long cost;
+    }
+
+    @Name("com.newrelic.labs.PayloadSerialized")
+    @Label("Payload Serialized")
+    @Description("A batch serialized to JSON and compressed")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class PayloadSerialized extends Event {
+	@Label("Entries")
+	int eventCount;
+
+	@Label("JSON Size")
+	@DataAmount
+	long rawBytes;
+
+	@Label("Compressed Size")
+	@DataAmount
+	long compressedBytes;
+
+	@Label("Serialization Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long serializationTime;
+    }
+
+    @Name("com.newrelic.labs.RequestSent")
+    @Label("Request Sent")
+    @Description("A compressed payload handed to the HTTP client")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class RequestSent extends Event {
+	@Label("Destination")
+	String destination;
+
+	@Label("Entries")
+	int eventCount;
+
+	@Label("Payload Size")
+	@DataAmount
+	long bytes;
+    }
+
+    @Name("com.newrelic.labs.RequestCompleted")
+    @Label("Request Completed")
+    @Description("Response or network error for a payload")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class RequestCompleted extends Event {
+	@Label("Destination")
+	String destination;
+
+	@Label("Entries")
+	int eventCount;
+
+	@Label("HTTP Status")
+	@Description("-1 for a network error")
+	int status;
+
+	@Label("Outcome")
+	String outcome;
+
+	@Label("Request Latency")
+	@Timespan(Timespan.NANOSECONDS)
+	long latency;
+    }
+
+    @Name("com.newrelic.labs.Eviction")
+    @Label("Eviction")
+    @Description("Queued log entries dropped to make room for newer ones")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Eviction extends Event {
+	@Label("Entries")
+	int count;
+
+	@Label("Cost")
+	@DataAmount
+	long cost;
+    }
+
+    @Name("com.newrelic.labs.CapacityAdjustment")
+    @Label("Capacity Adjustment")
+    @Description("Queue capacity lowered under heap pressure or raised after it eased")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class CapacityAdjustment extends Event {
+	@Label("Previous Capacity")
+	@DataAmount
+	long previous;
+
+	@Label("Capacity")
+	@DataAmount
+	long capacity;
+
+	@Label("Heap Used After GC (%)")
+	int heapUsedPercent;
+    }
+
+    @Name("com.newrelic.labs.Requeue")
+    @Label("Requeue")
+    @Description("Log entries put back in the queue after a failed or throttled send")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Requeue extends Event {
+	@Label("Entries")
+	int count;
+    }
+
+    @Name("com.newrelic.labs.HeavyHitter")
+    @Label("Heavy Hitter")
+    @Description("One of the loggers and message templates that logged the most in the last window")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class HeavyHitter extends Event {
+	@Label("Ranking")
+	@Description("events or bytes")
+	String ranking;
+
+	@Label("Rank")
+	int rank;
+
+	@Label("Logger")
+	String loggerName;
+
+	@Label("Message Template")
+	String format;
+
+	@Label("Events")
+	long events;
+
+	@Label("Message Size")
+	@DataAmount
+	long bytes;
+    }
+}
@@ -0,0 +1,249 @@
+package com.newrelic.labs;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Masks the values of sensitive keys in JSON messages and context data. A key
+ * is sensitive when it contains one of the configured terms, ignoring case, so
+ * {@code password} also covers {@code dbPassword} and {@code password_hash}.
+ * The terms are compiled into one Aho-Corasick automaton: checking a key, or a
+ * whole message for whether any term occurs at all, is a single pass over its
+ * characters however many terms there are. JSON is read in one streaming pass
+ * over its tokens, without building a tree, and only the masked values are
+ * replaced in the original text.
+ */
+public final class KeyRedactor {
+
+    public static final String MASK = "XXXXXXXX";
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final int ALPHABET = 128; // terms are matched as lower-case ASCII
+    private static final int NOT_JSON = -1;
+    private static final int MALFORMED = -2;
+
+    // goto function, -1 where there is no edge; row 0 is the root
+    private int[][] next;
+    private int[] fail;
+    private boolean[] terminal;
+    private int states;
+
+    /**
+     * @param terms Comma-separated key terms, e.g. {@code password,secret,token}.
+     */
+    public KeyRedactor(String terms) {
+	List<String> parsed = new ArrayList<>();
+	if (terms != null) {
+	    for (String term : terms.split(",")) {
+		String trimmed = term.trim().toLowerCase(Locale.ROOT);
+		if (!trimmed.isEmpty() && isAscii(trimmed)) {
+		    parsed.add(trimmed);
+		}
+	    }
+	}
+	build(parsed);
+    }
+
+    private static boolean isAscii(String term) {
+	for (int i = 0; i < term.length(); i++) {
+	    if (term.charAt(i) >= ALPHABET) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private void build(List<String> terms) {
+	int maxStates = 1;
+	for (String term : terms) {
+	    maxStates += term.length();
+	}
+	next = new int[maxStates][];
+	fail = new int[maxStates];
+	terminal = new boolean[maxStates];
+	next[0] = newRow();
+	states = 1;
+	for (String term : terms) {
+	    int state = 0;
+	    for (int i = 0; i < term.length(); i++) {
+		char c = term.charAt(i);
+		if (next[state][c] < 0) {
+		    next[states] = newRow();
+		    next[state][c] = states++;
+		}
+		state = next[state][c];
+	    }
+	    terminal[state] = true;
+	}
+	// Breadth-first: complete the goto function with the failure links so that
+	// matching never backtracks
+	Queue<Integer> queue = new ArrayDeque<>();
+	for (int c = 0; c < ALPHABET; c++) {
+	    if (next[0][c] < 0) {
+		next[0][c] = 0;
+	    } else {
+		fail[next[0][c]] = 0;
+		queue.add(next[0][c]);
+	    }
+	}
+	while (!queue.isEmpty()) {
+	    int state = queue.poll();
+	    terminal[state] |= terminal[fail[state]];
+	    for (int c = 0; c < ALPHABET; c++) {
+		int child = next[state][c];
+		if (child < 0) {
+		    next[state][c] = next[fail[state]][c];
+		} else {
+		    fail[child] = next[fail[state]][c];
+		    queue.add(child);
+		}
+	    }
+	}
+    }
+
+    private static int[] newRow() {
+	int[] row = new int[ALPHABET];
+	Arrays.fill(row, -1);
+	return row;
+    }
+
+    /**
+     * @return true if no term was configured.
+     */
+    public boolean isEmpty() {
+	return states == 1;
+    }
+
+    /**
+     * @return true if the text contains any of the terms, ignoring case.
+     */
+    public boolean matches(CharSequence text) {
+	if (text == null || isEmpty()) {
+	    return false;
+	}
+	int state = 0;
+	for (int i = 0; i < text.length(); i++) {
+	    char c = Character.toLowerCase(text.charAt(i));
+	    state = c < ALPHABET ? next[state][c] : 0;
+	    if (terminal[state]) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Masks the values of sensitive keys in every JSON object or array of the
+     * message, at any depth. Text around and between them, such as a
+     * PatternLayout prefix, and every value that is not masked are kept exactly
+     * as written. A '{' or '[' that does not start JSON, such as {@code %X} output
+     * like {@code {user=bob}} or {@code [main]}, is left alone. Messages in which
+     * no term occurs at all are returned unchanged. When JSON is malformed or
+     * truncated after it has started and a term occurs from there on, everything
+     * from its start is masked, since the parser cannot tell which values belong
+     * to sensitive keys.
+     */
+    public String redactJson(String message) {
+	if (message == null || !matches(message)) {
+	    return message;
+	}
+	StringBuilder out = null;
+	int copied = 0; // message[0, copied) is in out
+	int from = 0;
+	while (from < message.length()) {
+	    int start = nextStructStart(message, from);
+	    if (start < 0) {
+		break;
+	    }
+	    List<int[]> masked = new ArrayList<>();
+	    int end = scan(message, start, masked);
+	    if (end == NOT_JSON) {
+		from = start + 1;
+		continue;
+	    }
+	    if (end == MALFORMED) {
+		if (!matches(message.substring(start))) {
+		    from = start + 1;
+		    continue;
+		}
+		// Fail closed rather than send a value unmasked
+		out = out != null ? out : new StringBuilder(message.length());
+		out.append(message, copied, start).append(MASK);
+		copied = message.length();
+		break;
+	    }
+	    for (int[] value : masked) {
+		out = out != null ? out : new StringBuilder(message.length());
+		out.append(message, copied, value[0]).append('"').append(MASK).append('"');
+		copied = value[1];
+	    }
+	    from = end;
+	}
+	if (out == null) {
+	    return message;
+	}
+	out.append(message, copied, message.length());
+	return out.toString();
+    }
+
+    private static int nextStructStart(String message, int from) {
+	for (int i = from; i < message.length(); i++) {
+	    char c = message.charAt(i);
+	    if (c == '{' || c == '[') {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * Parses the JSON value that starts at the given offset and collects the
+     * source ranges of the values of sensitive keys.
+     *
+     * @return The offset just after the value, {@link #NOT_JSON} when the text
+     *         does not start JSON, or {@link #MALFORMED} when it starts JSON that
+     *         is not valid or not complete.
+     */
+    private int scan(String message, int start, List<int[]> masked) {
+	int tokens = 0;
+	try (Reader reader = new StringReader(message)) {
+	    reader.skip(start);
+	    try (JsonParser parser = JSON.createParser(reader)) {
+		int depth = 0;
+		JsonToken token;
+		while ((token = parser.nextToken()) != null) {
+		    tokens++;
+		    if (token == JsonToken.FIELD_NAME && matches(parser.getCurrentName())) {
+			parser.nextToken();
+			int valueStart = start + (int) parser.getTokenLocation().getCharOffset();
+			if (parser.currentToken().isStructStart()) {
+			    parser.skipChildren(); // an object or array value is masked as a whole
+			} else {
+			    parser.getText(); // reads a string to its closing quote
+			}
+			masked.add(new int[] { valueStart, start + (int) parser.getCurrentLocation().getCharOffset() });
+		    } else if (token.isStructStart()) {
+			depth++;
+		    } else if (token.isStructEnd() && --depth == 0) {
+			return start + (int) parser.getCurrentLocation().getCharOffset();
+		    }
+		}
+	    }
+	} catch (IOException e) {
+	    // Failed below
+	}
+	// Only the opening bracket was read: not JSON, e.g. {user=bob} or [main]
+	return tokens > 1 ? MALFORMED : NOT_JSON;
+    }
+}
@@ -0,0 +1,158 @@
+package com.newrelic.labs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A New Relic Logs API endpoint and license key that payloads are sent to, with
+ * its own in-flight limit and retry state. One {@link LogForwarder} serializes
+ * and compresses each batch once and hands the same bytes to every destination.
+ */
+public class LogDestination {
+
+    private final String apiUrl;
+    private final String apiKey;
+    private final int maxInFlight;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    // Payloads waiting for an in-flight slot
+    private final ConcurrentLinkedQueue<LogForwarder.Payload> waiting = new ConcurrentLinkedQueue<>();
+    // Failed payloads of a secondary destination, resent with its next payload
+    private final ConcurrentLinkedQueue<LogForwarder.Payload> retries = new ConcurrentLinkedQueue<>();
+    private final AtomicLong retryBytes = new AtomicLong(0);
+    private final AtomicLong sentPayloads = new AtomicLong(0);
+    private final AtomicLong failedPayloads = new AtomicLong(0);
+    private final AtomicLong droppedPayloads = new AtomicLong(0);
+    private volatile SendRateLimiter rateLimiter;
+
+    public LogDestination(String apiUrl, String apiKey, int maxInFlight) {
+	this.apiUrl = apiUrl;
+	this.apiKey = apiKey;
+	this.maxInFlight = maxInFlight > 0 ? maxInFlight : 1;
+    }
+
+    /**
+     * Parses a comma separated list of apiUrl|apiKey pairs, e.g.
+     * "https://log-api.eu.newrelic.com/log/v1|KEY1,https://...|KEY2".
+     *
+     * @return The parsed destinations; malformed pairs are skipped.
+     */
+    public static List<LogDestination> parse(String destinations, int maxInFlight) {
+	List<LogDestination> parsed = new ArrayList<>();
+	if (destinations == null || destinations.trim().isEmpty()) {
+	    return parsed;
+	}
+	for (String pair : destinations.split(",")) {
+	    int separator = pair.lastIndexOf('|');
+	    if (separator <= 0 || separator == pair.length() - 1) {
+		continue;
+	    }
+	    parsed.add(new LogDestination(pair.substring(0, separator).trim(), pair.substring(separator + 1).trim(),
+		    maxInFlight));
+	}
+	return parsed;
+    }
+
+    public String getApiUrl() {
+	return apiUrl;
+    }
+
+    String getApiKey() {
+	return apiKey;
+    }
+
+    /**
+     * @return The limiter shared by every sender to this destination.
+     */
+    public SendRateLimiter getRateLimiter() {
+	return rateLimiter;
+    }
+
+    void setRateLimiter(SendRateLimiter rateLimiter) {
+	this.rateLimiter = rateLimiter;
+    }
+
+    public int getMaxInFlight() {
+	return maxInFlight;
+    }
+
+    public int getInFlight() {
+	return inFlight.get();
+    }
+
+    public long getSentPayloads() {
+	return sentPayloads.get();
+    }
+
+    public long getFailedPayloads() {
+	return failedPayloads.get();
+    }
+
+    public long getDroppedPayloads() {
+	return droppedPayloads.get();
+    }
+
+    boolean tryAcquire() {
+	while (true) {
+	    int current = inFlight.get();
+	    if (current >= maxInFlight) {
+		return false;
+	    }
+	    if (inFlight.compareAndSet(current, current + 1)) {
+		return true;
+	    }
+	}
+    }
+
+    void release() {
+	inFlight.decrementAndGet();
+    }
+
+    ConcurrentLinkedQueue<LogForwarder.Payload> getWaiting() {
+	return waiting;
+    }
+
+    /**
+     * Keeps a failed payload for the next send, dropping the oldest retries beyond
+     * the byte budget.
+     */
+    void addRetry(LogForwarder.Payload payload, long maxRetryBytes) {
+	retries.add(payload);
+	retryBytes.addAndGet(payload.body.length);
+	while (retryBytes.get() > maxRetryBytes) {
+	    LogForwarder.Payload dropped = retries.poll();
+	    if (dropped == null) {
+		break;
+	    }
+	    retryBytes.addAndGet(-dropped.body.length);
+	    droppedPayloads.incrementAndGet();
+	}
+    }
+
+    LogForwarder.Payload pollRetry() {
+	LogForwarder.Payload payload = retries.poll();
+	if (payload != null) {
+	    retryBytes.addAndGet(-payload.body.length);
+	}
+	return payload;
+    }
+
+    void recordSent() {
+	sentPayloads.incrementAndGet();
+    }
+
+    void recordFailed() {
+	failedPayloads.incrementAndGet();
+    }
+
+    void recordDropped() {
+	droppedPayloads.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+	return apiUrl;
+    }
+}
@@ -17,9 +17,22 @@ public class LogEntry {
 	private final String severity;
 	private final long timestamp;
 	private final Map<String, Object> properties; // Add custom fields
+	private final ExceptionInfo error; // null unless structured exceptions are enabled
+	private final MessagePart part; // null unless the message was split
 
 	public LogEntry(String message, String applicationName, String name, String logtype, String loggername,
 			String loglevel, long timestamp, Map<String, Object> properties, boolean mergeCustomFields) {
+		this(message, applicationName, name, logtype, loggername, loglevel, timestamp, properties, null);
+	}
+
+	public LogEntry(String message, String applicationName, String name, String logtype, String loggername,
+			String loglevel, long timestamp, Map<String, Object> properties, ExceptionInfo error) {
+		this(message, applicationName, name, logtype, loggername, loglevel, timestamp, properties, error, null);
+	}
+
+	public LogEntry(String message, String applicationName, String name, String logtype, String loggername,
+			String loglevel, long timestamp, Map<String, Object> properties, ExceptionInfo error,
+			MessagePart part) {
 		this.message = message;
 		this.applicationName = applicationName;
 		this.name = name;
@@ -28,34 +41,28 @@ public class LogEntry {
 		this.severity = loglevel;
 		this.timestamp = timestamp;
 		this.properties = properties; // Initialize custom fields
+		this.error = error;
+		this.part = part;
 	}
 
 	// Default constructor for Jackson
 	public LogEntry() {
-		this.message = null;
-		this.applicationName = null;
-		this.name = null;
-		this.logtype = null;
-		this.logger = null;
-		this.severity = null;
-		this.timestamp = 0L;
-		this.properties = null; // Initialize custom fields
+		this(null, null, null, null, null, null, 0L, null, false);
 	}
 
 	@JsonCreator
 	public LogEntry(@JsonProperty("message") String message, @JsonProperty("applicationname") String applicationName,
 			@JsonProperty("name") String name, @JsonProperty("logtype") String logtype,
 			@JsonProperty("logger") String logger, @JsonProperty("severity") String severity,
-			@JsonProperty("timestamp") long timestamp, @JsonProperty("custom") Map<String, Object> properties) { // Add
-
-		this.message = message;
-		this.applicationName = applicationName;
-		this.name = name;
-		this.logtype = logtype;
-		this.logger = logger;
-		this.severity = severity;
-		this.timestamp = timestamp;
-		this.properties = properties; // Initialize custom fields
+			@JsonProperty("timestamp") long timestamp, @JsonProperty("custom") Map<String, Object> properties, // Add
+			@JsonProperty("error.class") String errorClass, @JsonProperty("error.message") String errorMessage,
+			@JsonProperty("error.stack") String errorStack, @JsonProperty("error.stack.hash") String errorStackHash,
+			@JsonProperty("message.id") String messageId, @JsonProperty("part.index") int partIndex,
+			@JsonProperty("part.count") int partCount) {
+
+		this(message, applicationName, name, logtype, logger, severity, timestamp, properties,
+				errorClass != null ? new ExceptionInfo(errorClass, errorMessage, errorStack, errorStackHash) : null,
+				messageId != null ? new MessagePart(messageId, partIndex, partCount) : null);
 	}
 
 	public String getMessage() {
@@ -89,4 +96,12 @@ public class LogEntry {
 	public Map<String, Object> getProperties() { // Add getter for custom
 		return properties;
 	}
+
+	public ExceptionInfo getError() {
+		return error;
+	}
+
+	public MessagePart getPart() {
+		return part;
+	}
 }
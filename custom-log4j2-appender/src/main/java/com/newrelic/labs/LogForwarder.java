@@ -5,26 +5,41 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPOutputStream;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.newrelic.labs.StackTraceCache.RenderedTrace;
 
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 
 public class LogForwarder {
+	private static final MediaType JSON = MediaType.parse("application/json");
+	private static final byte[] EMPTY_PAYLOAD = emptyPayload(); // what pre-warming sends
+	static final long DEFAULT_KEEP_ALIVE = 300000; // 5 minutes
+	private static final double SEND_TIME_SMOOTHING = 0.3; // weight of the latest request
+
 	private final NRBufferWithFifoEviction<LogEntry> logQueue;
+	private final NRBufferWithFifoEviction<LogEntry> retryQueue; // where entries of a failed flush go
 	private final String apiKey;
 	private final String apiURL;
+	// destinations.get(0) is apiURL/apiKey; its failures are requeued through the
+	// flush callback, the others retry their own payloads
+	private final List<LogDestination> destinations;
 	private final OkHttpClient client;
 	private final ObjectMapper objectMapper;
 	private final long maxMessageSize;
@@ -33,52 +48,116 @@ public class LogForwarder {
 	private final int connPoolSize;
 	private final long timeout; // New parameter for connection timeout
 	// 1.0.5
+	private final AppenderMetrics metrics;
+	private final AtomicInteger inFlightCalls = new AtomicInteger(0);
+	private final AtomicLong inFlightEvents = new AtomicLong(0);
+	private final Object inFlightLock = new Object();
+	private volatile boolean sendSlotWaitsCancelled = false;
+	private volatile long lastSendAt = 0; // when execute last sent a payload
+	private final AtomicLong sendTime = new AtomicLong(0); // smoothed request duration in milliseconds
+	private final String hostname = resolveHostname();
 
 	public LogForwarder(String apiKey, String apiURL, long maxMessageSize, NRBufferWithFifoEviction<LogEntry> queue,
 			int maxRetries, long timeout, int connPoolSize) {
+		this(apiKey, apiURL, maxMessageSize, queue, maxRetries, timeout, connPoolSize, connPoolSize,
+				Collections.<LogDestination>emptyList(), new AppenderMetrics(), queue, DEFAULT_KEEP_ALIVE, 0);
+	}
+
+	public LogForwarder(String apiKey, String apiURL, long maxMessageSize, NRBufferWithFifoEviction<LogEntry> queue,
+			int maxRetries, long timeout, int connPoolSize, int maxInFlight,
+			List<LogDestination> additionalDestinations, AppenderMetrics metrics,
+			NRBufferWithFifoEviction<LogEntry> retryQueue, long keepAlive, long dnsCacheTtl) {
 		this.apiKey = apiKey;
 		this.apiURL = apiURL;
+		this.metrics = metrics;
+		List<LogDestination> all = new ArrayList<>();
+		all.add(new LogDestination(apiURL, apiKey, maxInFlight));
+		all.addAll(additionalDestinations);
+		for (LogDestination destination : all) {
+			destination.setRateLimiter(new SendRateLimiter(metrics));
+		}
+		this.destinations = Collections.unmodifiableList(all);
 		this.maxMessageSize = maxMessageSize;
 		this.logQueue = queue;
+		this.retryQueue = retryQueue;
 		this.maxRetries = maxRetries;
 		this.timeout = timeout;
 		this.connPoolSize = connPoolSize;
-		// Configure connection pooling 1.1.0
-		ConnectionPool connectionPool = new ConnectionPool(connPoolSize, 5, TimeUnit.MINUTES); // 10 connections,
-		// 5-minute
-		// keep-alive
+		// Configure connection pooling 1.1.0; idle connections are closed after keepAlive
+		ConnectionPool connectionPool = new ConnectionPool(connPoolSize, keepAlive, TimeUnit.MILLISECONDS);
+
+		// Allow as many concurrent requests as there are pooled connections, so a
+		// shutdown drain can send several payloads in parallel
+		Dispatcher dispatcher = new Dispatcher();
+		dispatcher.setMaxRequestsPerHost(Math.max(connPoolSize, dispatcher.getMaxRequestsPerHost()));
+		dispatcher.setMaxRequests(Math.max(dispatcher.getMaxRequests(), connPoolSize * all.size()));
 
 		// Initialize OkHttpClient with connection pooling 1.1.0
-		this.client = new OkHttpClient.Builder().connectTimeout(timeout, TimeUnit.MILLISECONDS)
-				.connectionPool(connectionPool).build();
+		OkHttpClient.Builder builder = new OkHttpClient.Builder().connectTimeout(timeout, TimeUnit.MILLISECONDS)
+				.connectionPool(connectionPool).dispatcher(dispatcher);
+		if (dnsCacheTtl > 0) {
+			builder.dns(new CachingDns(dnsCacheTtl));
+		}
+		this.client = builder.build();
 		// this.client = new OkHttpClient.Builder().connectTimeout(timeout,
 		// TimeUnit.MILLISECONDS).build();
 		this.objectMapper = new ObjectMapper();
 
 	}
 
+	private static String resolveHostname() {
+		try {
+			InetAddress localhost = InetAddress.getLocalHost();
+			return localhost != null ? localhost.getHostName() : "unknown";
+		} catch (UnknownHostException e) {
+			System.err.println("Error resolving local host: " + e.getMessage());
+			return null;
+		}
+	}
+
 	public boolean isInitialized() {
 		return apiKey != null && apiURL != null;
 	}
 
+	/**
+	 * @return true while the primary destination has asked us to back off; callers
+	 *         should leave entries in the queue instead of draining them.
+	 */
+	public boolean isPaused() {
+		return destinations.get(0).getRateLimiter().isPaused();
+	}
+
 	public boolean flush(List<LogEntry> logEntries, boolean mergeCustomFields, Map<String, Object> customFields) {
+		return flush(logEntries, mergeCustomFields, customFields, false);
+	}
+
+	/**
+	 * @param primaryOnly true for entries requeued after a failed send; they are
+	 *                    sent to the primary destination only, since the others
+	 *                    already received them.
+	 */
+	public boolean flush(List<LogEntry> logEntries, boolean mergeCustomFields, Map<String, Object> customFields,
+			boolean primaryOnly) {
 		boolean bStatus = false;
 
 		try {
 			List<Map<String, Object>> logEvents = convertToLogEvents(logEntries, mergeCustomFields, customFields);
+			List<RenderedTrace> eventTraces = carriedTraces(logEntries, logEvents);
+			List<RenderedTrace> traces = shareStacks(logEvents, eventTraces);
 
 			String jsonPayload = objectMapper.writeValueAsString(logEvents);
 			byte[] compressedPayload = gzipCompress(jsonPayload);
 
-			// System.out.println("compressedPayload size " + compressedPayload.length);
-			// System.out.println("jsonPayload size " + jsonPayload.length());
-
-			if (compressedPayload.length > maxMessageSize) {
-				// System.out.println("splitAndSendLogs: Called size exceeded " +
-				// compressedPayload.length);
-				bStatus = splitAndSendLogs(logEntries, mergeCustomFields, customFields);
+			if (compressedPayload.length > maxMessageSize && logEvents.size() > 1) {
+				bStatus = true;
+				for (int[] run : split(logEvents, eventTraces)) {
+					List<Map<String, Object>> subBatch = new ArrayList<>(logEvents.subList(run[0], run[1]));
+					List<RenderedTrace> subTraces = shareStacks(subBatch, subList(eventTraces, run));
+					bStatus &= sendLogs(subBatch, gzipCompress(objectMapper.writeValueAsString(subBatch)), primaryOnly,
+							subTraces);
+				}
 			} else {
-				bStatus = sendLogs(logEvents);
+				bStatus = sendLogs(logEvents, compressedPayload, primaryOnly, traces);
 			}
 		} catch (IOException e) {
 			System.err.println("Error during log forwarding: " + e.getMessage());
@@ -90,71 +169,209 @@ public class LogForwarder {
 
 	public void flushAsync(List<LogEntry> logEntries, boolean mergeCustomFields, Map<String, Object> customFields,
 			FlushCallback callback) {
+		flushAsync(logEntries, mergeCustomFields, customFields, callback, false);
+	}
+
+	/**
+	 * Converts each entry once; when the compressed batch is larger than
+	 * maxMessageSize, the converted events are split into several payloads.
+	 *
+	 * @param primaryOnly true for entries requeued after a failed send; they are
+	 *                    sent to the primary destination only, since the others
+	 *                    already received them.
+	 */
+	public void flushAsync(List<LogEntry> logEntries, boolean mergeCustomFields, Map<String, Object> customFields,
+			FlushCallback callback, boolean primaryOnly) {
 		List<Map<String, Object>> logEvents = convertToLogEvents(logEntries, mergeCustomFields, customFields);
+		List<RenderedTrace> eventTraces = carriedTraces(logEntries, logEvents);
+		List<RenderedTrace> traces = shareStacks(logEvents, eventTraces);
+
+		// Serialize and compress once; the same bytes go to every destination
+		byte[] compressedPayload;
+		try {
+			long serializeStart = System.nanoTime();
+			String json = objectMapper.writeValueAsString(logEvents);
+			compressedPayload = gzipCompress(json);
+			AppenderEvents.get().payloadSerialized(logEvents.size(), json.length(), compressedPayload.length,
+					System.nanoTime() - serializeStart);
+		} catch (IOException e) {
+			System.err.println("Error during log forwarding: " + e.getMessage());
+			callback.onFailure(restoreStacks(logEvents, traces));
+			return;
+		}
 
-		if (logEvents.size() > maxMessageSize) {
+		if (compressedPayload.length > maxMessageSize && logEvents.size() > 1) {
+			List<int[]> runs;
 			try {
-				splitAndSendLogsAsync(logEntries, mergeCustomFields, customFields, callback);
+				runs = split(logEvents, eventTraces);
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				System.err.println("Error during log forwarding: " + e.getMessage());
+				callback.onFailure(restoreStacks(logEvents, traces));
+				return;
+			}
+			for (int[] run : runs) {
+				List<Map<String, Object>> subBatch = new ArrayList<>(logEvents.subList(run[0], run[1]));
+				sendLogsAsync(subBatch, callback, primaryOnly, shareStacks(subBatch, subList(eventTraces, run)));
 			}
 		} else {
-			sendLogsAsync(logEvents, callback);
+			sendPayloadAsync(logEvents, compressedPayload, callback, primaryOnly, traces);
 		}
 	}
 
-	private boolean splitAndSendLogs(List<LogEntry> logEntries, boolean mergeCustomFields,
-			Map<String, Object> customFields) throws IOException {
-		List<LogEntry> subBatch = new ArrayList<>();
-		int currentSize = 0;
-		boolean bStatus = false;
+	/**
+	 * Starts a request body that entries are compressed into one by one, see
+	 * {@link CompressionStage}.
+	 */
+	OpenBatch openBatch(int maxEvents) throws IOException {
+		return new OpenBatch(objectMapper, maxMessageSize, maxEvents);
+	}
 
-		for (LogEntry entry : logEntries) {
-			subBatch.add(entry);
-			String entryJson = objectMapper
-					.writeValueAsString(convertToLogEvent(entry, mergeCustomFields, customFields));
-			int entrySize = gzipCompress(entryJson).length;
-
-			if (currentSize + entrySize > maxMessageSize) {
-				bStatus = sendLogs(convertToLogEvents(subBatch, mergeCustomFields, customFields));
-				subBatch.clear();
-				currentSize = 0;
-			}
+	Map<String, Object> toLogEvent(LogEntry entry, boolean mergeCustomFields, Map<String, Object> customFields) {
+		return convertToLogEvent(entry, mergeCustomFields, customFields);
+	}
 
-			currentSize += entrySize;
+	/**
+	 * Seals an open batch and sends it like {@link #flushAsync}. The batch stops
+	 * taking entries before it reaches maxMessageSize, so it is never split.
+	 */
+	public void sendAsync(OpenBatch batch, FlushCallback callback) {
+		byte[] compressedPayload;
+		try {
+			compressedPayload = batch.seal();
+		} catch (IOException e) {
+			System.err.println("Error during log forwarding: " + e.getMessage());
+			callback.onFailure(restoreStacks(batch.getLogEvents(), batch.getTraces()));
+			return;
 		}
+		AppenderEvents.get().payloadSerialized(batch.size(), batch.getJsonBytes(), compressedPayload.length,
+				batch.getBusyNanos());
+		sendPayloadAsync(batch.getLogEvents(), compressedPayload, callback, false, batch.getTraces());
+	}
 
-		if (!subBatch.isEmpty()) {
-			bStatus = sendLogs(convertToLogEvents(subBatch, mergeCustomFields, customFields));
+	/**
+	 * @return The cached trace whose full stack the converted event carries, or
+	 *         null.
+	 */
+	static RenderedTrace carriedTrace(LogEntry entry, Map<String, Object> logEvent) {
+		ExceptionInfo error = entry.getError();
+		if (error == null || error.getTrace() == null || !logEvent.containsKey("error.stack")) {
+			return null;
 		}
-
-		return bStatus;
+		return error.getTrace();
 	}
 
-	private void splitAndSendLogsAsync(List<LogEntry> logEntries, boolean mergeCustomFields,
-			Map<String, Object> customFields, FlushCallback callback) throws IOException {
-		List<LogEntry> subBatch = new ArrayList<>();
-		int currentSize = 0;
+	/**
+	 * @return For each converted event, the trace whose full stack it carries; null
+	 *         when no event carries a cached trace.
+	 */
+	private static List<RenderedTrace> carriedTraces(List<LogEntry> logEntries, List<Map<String, Object>> logEvents) {
+		List<RenderedTrace> eventTraces = null;
+		for (int i = 0; i < logEvents.size(); i++) {
+			RenderedTrace trace = carriedTrace(logEntries.get(i), logEvents.get(i));
+			if (trace != null) {
+				if (eventTraces == null) {
+					eventTraces = new ArrayList<>(Collections.<RenderedTrace>nCopies(logEvents.size(), null));
+				}
+				eventTraces.set(i, trace);
+			}
+		}
+		return eventTraces;
+	}
 
-		for (LogEntry entry : logEntries) {
-			subBatch.add(entry);
-			String entryJson = objectMapper
-					.writeValueAsString(convertToLogEvent(entry, mergeCustomFields, customFields));
-			int entrySize = gzipCompress(entryJson).length;
-
-			if (currentSize + entrySize > maxMessageSize) {
-				sendLogsAsync(convertToLogEvents(subBatch, mergeCustomFields, customFields), callback);
-				subBatch.clear();
-				currentSize = 0;
+	/**
+	 * Puts the full stack on the first event of the payload that carries each
+	 * trace. Later events with a deduplicated trace only keep the hash, and
+	 * events that lost their stack to an event that went into another payload
+	 * get it back.
+	 *
+	 * @return The traces the payload carries in full, or null when there are
+	 *         none.
+	 */
+	private static List<RenderedTrace> shareStacks(List<Map<String, Object>> logEvents,
+			List<RenderedTrace> eventTraces) {
+		if (eventTraces == null) {
+			return null;
+		}
+		List<RenderedTrace> carried = null;
+		for (int i = 0; i < logEvents.size(); i++) {
+			RenderedTrace trace = eventTraces.get(i);
+			if (trace == null) {
+				continue;
+			}
+			if (carried == null) {
+				carried = new ArrayList<>(4);
 			}
+			if (carried.contains(trace)) {
+				if (trace.isDeduplicated()) {
+					logEvents.get(i).remove("error.stack");
+				}
+			} else {
+				logEvents.get(i).put("error.stack", trace.stack);
+				carried.add(trace);
+			}
+		}
+		return carried;
+	}
 
-			currentSize += entrySize;
+	/**
+	 * Puts the full stack back on the events that only kept the hash of a trace
+	 * the payload carried. Each event is requeued as an entry of its own, and
+	 * the one that carried the stack may be evicted or go into another payload.
+	 *
+	 * @return The given events.
+	 */
+	private static List<Map<String, Object>> restoreStacks(List<Map<String, Object>> logEvents,
+			List<RenderedTrace> traces) {
+		if (logEvents == null || traces == null) {
+			return logEvents;
 		}
+		for (Map<String, Object> logEvent : logEvents) {
+			Object hash = logEvent.get("error.stack.hash");
+			if (hash == null || logEvent.containsKey("error.stack")) {
+				continue;
+			}
+			for (RenderedTrace trace : traces) {
+				if (trace.hash.equals(hash)) {
+					logEvent.put("error.stack", trace.stack);
+					break;
+				}
+			}
+		}
+		return logEvents;
+	}
 
-		if (!subBatch.isEmpty()) {
-			sendLogsAsync(convertToLogEvents(subBatch, mergeCustomFields, customFields), callback);
+	private static List<RenderedTrace> subList(List<RenderedTrace> eventTraces, int[] run) {
+		return eventTraces != null ? eventTraces.subList(run[0], run[1]) : null;
+	}
+
+	/**
+	 * Splits converted events into runs whose separately compressed sizes add up
+	 * to at most maxMessageSize. Every event is measured with its full stack, so
+	 * a run stays within the limit whichever of its events ends up carrying it.
+	 *
+	 * @return The start (inclusive) and end (exclusive) index of each run.
+	 */
+	private List<int[]> split(List<Map<String, Object>> logEvents, List<RenderedTrace> eventTraces)
+			throws IOException {
+		List<int[]> runs = new ArrayList<>();
+		int start = 0;
+		long currentSize = 0;
+		for (int i = 0; i < logEvents.size(); i++) {
+			Map<String, Object> logEvent = logEvents.get(i);
+			RenderedTrace trace = eventTraces != null ? eventTraces.get(i) : null;
+			if (trace != null) {
+				logEvent.put("error.stack", trace.stack);
+			}
+			int entrySize = gzipCompress(objectMapper.writeValueAsString(logEvent)).length;
+			if (i > start && currentSize + entrySize > maxMessageSize) {
+				runs.add(new int[] { start, i });
+				start = i;
+				currentSize = 0;
+			}
+			currentSize += entrySize;
 		}
+		runs.add(new int[] { start, logEvents.size() });
+		return runs;
 	}
 
 	private List<Map<String, Object>> convertToLogEvents(List<LogEntry> logEntries, boolean mergeCustomFields,
@@ -169,21 +386,43 @@ public class LogForwarder {
 	private Map<String, Object> convertToLogEvent(LogEntry entry, boolean mergeCustomFields,
 			Map<String, Object> customFields) {
 		
-		Map<String, Object> logEvent = objectMapper.convertValue(entry, LowercaseKeyMap.class);
-		
-		try {
-			InetAddress localhost = InetAddress.getLocalHost();
-			String hostname = localhost != null ? localhost.getHostName() : "unknown";
-			logEvent.put("hostname", hostname);
-		} catch (UnknownHostException e) {
-			System.err.println("Error resolving local host: " + e.getMessage());
+		// Same attributes the bean conversion used to produce, written directly with
+		// their lowercase names; the context data snapshot is serialized as is
+		LowercaseKeyMap logEvent = new LowercaseKeyMap(32);
+		logEvent.putLowercase("message", entry.getMessage());
+		logEvent.putLowercase("logger", entry.getLogger());
+		logEvent.putLowercase("severity", entry.getSeverity());
+		logEvent.putLowercase("properties", entry.getProperties());
+
+		if (hostname != null) {
+			logEvent.putLowercase("hostname", hostname);
+		}
+		logEvent.putLowercase("logtype", entry.getLogType());
+		logEvent.putLowercase("timestamp", entry.getTimestamp());
+		logEvent.putLowercase("applicationname", entry.getApplicationName());
+		logEvent.putLowercase("name", entry.getName());
+		logEvent.putLowercase("source", "NRBatchingAppender");
+		logEvent.putLowercase("version", "1.1.10");
+
+		ExceptionInfo error = entry.getError();
+		if (error != null) {
+			logEvent.putLowercase("error.class", error.getErrorClass());
+			logEvent.putLowercase("error.message", error.getErrorMessage());
+			logEvent.putLowercase("error.stack.hash", error.getStackHash());
+			// Left out when a payload carrying the same trace was accepted within the
+			// dedup window
+			String stack = error.stackToSend(System.currentTimeMillis());
+			if (stack != null) {
+				logEvent.putLowercase("error.stack", stack);
+			}
+		}
+
+		MessagePart part = entry.getPart();
+		if (part != null) {
+			logEvent.putLowercase("message.id", part.getMessageId());
+			logEvent.putLowercase("part.index", part.getIndex());
+			logEvent.putLowercase("part.count", part.getCount());
 		}
-		logEvent.put("logtype", entry.getLogType());
-		logEvent.put("timestamp", entry.getTimestamp());
-		logEvent.put("applicationName", entry.getApplicationName());
-		logEvent.put("name", entry.getName());
-		logEvent.put("source", "NRBatchingAppender");
-		logEvent.put("version", "1.1.10");
 
 		// Add custom fields
 		if (customFields != null) {
@@ -199,23 +438,31 @@ public class LogForwarder {
 		return logEvent;
 	}
 
-	private boolean sendLogs(List<Map<String, Object>> logEvents) throws IOException {
-		String jsonPayload = objectMapper.writeValueAsString(logEvents);
-		byte[] compressedPayload = gzipCompress(jsonPayload);
-
-		MediaType mediaType = MediaType.parse("application/json");
+	private boolean sendLogs(List<Map<String, Object>> logEvents, byte[] compressedPayload, boolean primaryOnly,
+			List<RenderedTrace> traces) {
+		// Additional destinations get the same bytes asynchronously
+		for (int i = 1; i < destinations.size() && !primaryOnly; i++) {
+			sendToSecondary(destinations.get(i), compressedPayload);
+		}
 
-		RequestBody requestBody = RequestBody.create(compressedPayload, mediaType);
-		Request request = new Request.Builder().url(apiURL).post(requestBody).addHeader("X-License-Key", apiKey)
-				.addHeader("Content-Type", "application/json").addHeader("Content-Encoding", "gzip").build();
+		LogDestination primary = destinations.get(0);
+		Request request = buildRequest(primary, compressedPayload);
 
 		try (Response response = client.newCall(request).execute()) {
 			if (!response.isSuccessful()) {
 				System.err.println("Failed to send logs to New Relic: " + response.code() + " - " + response.message());
 				System.err.println("Response body: " + response.body().string());
-				requeueLogs(logEvents); // Requeue logs if the response is not successful
+				SendStatus status = classify(primary, response.code(), response.header("Retry-After"));
+				if (status == SendStatus.REJECTED) {
+					metrics.recordRejected(logEvents.size());
+				} else {
+					requeueLogs(restoreStacks(logEvents, traces)); // Requeue logs if the response is not successful
+				}
 				return false;
 			} else {
+				primary.getRateLimiter().onSuccess();
+				metrics.recordSent();
+				markSent(traces);
 				// Comment out the following lines to prevent infinite loop
 				// LocalDateTime timestamp = LocalDateTime.now();
 				// System.out.println("Logs sent to New Relic successfully: " + "at " +
@@ -225,13 +472,15 @@ public class LogForwarder {
 			}
 		} catch (IOException e) {
 			System.err.println("Error during log forwarding: " + e.getMessage());
-			requeueLogs(logEvents); // Requeue logs if an exception occurs
+			classify(primary, -1, null);
+			requeueLogs(restoreStacks(logEvents, traces)); // Requeue logs if an exception occurs
 			return false;
 		}
 		return true;
 	}
 
 	private void requeueLogs(List<Map<String, Object>> logEvents) {
+		AppenderEvents.get().requeued(logEvents.size());
 
 		for (Map<String, Object> logEvent : logEvents) {
 			try {
@@ -250,7 +499,7 @@ public class LogForwarder {
 				// System.out.println(" timestamp: " + logEntry.getTimestamp());
 
 				// Requeue the log entry
-				boolean added = logQueue.add(logEntry); // 1.1.0
+				boolean added = retryQueue.add(logEntry, OverflowPolicy.EVICT); // 1.1.0
 
 				if (!added) {
 					System.err.println("Failed to add log entry to the queue, possibly due to size constraints.");
@@ -261,7 +510,19 @@ public class LogForwarder {
 		}
 
 		System.err.println("Network issue - NewRelicBatchingAppenderhas re-queued " + logEvents.size() + " entries"
-				+ " : queue size " + logQueue.size());
+				+ " : retry queue size " + retryQueue.size());
+	}
+
+	// A gzipped empty array, built once
+	private static byte[] emptyPayload() {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzipOS = new GZIPOutputStream(bos)) {
+			gzipOS.write('[');
+			gzipOS.write(']');
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // not thrown by an in-memory stream
+		}
+		return bos.toByteArray();
 	}
 
 	private byte[] gzipCompress(String input) throws IOException {
@@ -291,42 +552,440 @@ public class LogForwarder {
 		}
 	}
 
-	private void sendLogsAsync(List<Map<String, Object>> logEvents, FlushCallback callback) {
+	private void sendLogsAsync(List<Map<String, Object>> logEvents, FlushCallback callback, boolean primaryOnly,
+			List<RenderedTrace> traces) {
 		try {
 			String jsonPayload = objectMapper.writeValueAsString(logEvents);
-			byte[] compressedPayload = gzipCompress(jsonPayload);
+			sendPayloadAsync(logEvents, gzipCompress(jsonPayload), callback, primaryOnly, traces);
+		} catch (IOException e) {
+			System.err.println("Error during log forwarding: " + e.getMessage());
+			callback.onFailure(restoreStacks(logEvents, traces)); // Requeue logs if an exception occurs
+		}
+	}
 
-			MediaType mediaType = MediaType.parse("application/json");
-			RequestBody requestBody = RequestBody.create(compressedPayload, mediaType);
-			Request request = new Request.Builder().url(apiURL).post(requestBody).addHeader("X-License-Key", apiKey)
-					.addHeader("Content-Type", "application/json").addHeader("Content-Encoding", "gzip").build();
+	/**
+	 * A compressed request body and what to do once a destination has accepted or
+	 * rejected it.
+	 */
+	static final class Payload {
+		final byte[] body;
+		final List<Map<String, Object>> logEvents; // null for secondary destinations
+		final FlushCallback callback; // null for secondary destinations
+		// Traces carried in full, marked as sent once the primary accepts the payload
+		final List<RenderedTrace> traces;
+		int attempts;
+
+		Payload(byte[] body, List<Map<String, Object>> logEvents, FlushCallback callback) {
+			this(body, logEvents, callback, null);
+		}
+
+		Payload(byte[] body, List<Map<String, Object>> logEvents, FlushCallback callback,
+				List<RenderedTrace> traces) {
+			this.body = body;
+			this.logEvents = logEvents;
+			this.callback = callback;
+			this.traces = traces;
+		}
+
+		int eventCount() {
+			return logEvents != null ? logEvents.size() : 0;
+		}
+	}
 
-			client.newCall(request).enqueue(new Callback() {
-				@Override
-				public void onFailure(Call call, IOException e) {
-					System.err.println("Failed to send logs asynchronously: " + e.getMessage());
-					callback.onFailure(logEvents); // Requeue logs if the request fails
+	private void sendPayloadAsync(List<Map<String, Object>> logEvents, byte[] compressedPayload,
+			FlushCallback callback, boolean primaryOnly, List<RenderedTrace> traces) {
+		dispatch(destinations.get(0), new Payload(compressedPayload, logEvents, callback, traces));
+		// Secondary destinations retry their own failures, so requeued entries are
+		// only new to the primary
+		for (int i = 1; i < destinations.size() && !primaryOnly; i++) {
+			sendToSecondary(destinations.get(i), compressedPayload);
+		}
+	}
+
+	private void sendToSecondary(LogDestination destination, byte[] compressedPayload) {
+		if (destination.getRateLimiter().isPaused()) {
+			// Keep it for when the destination accepts requests again
+			destination.addRetry(new Payload(compressedPayload, null, null), logQueue.getCapacity());
+			return;
+		}
+		// Earlier failures go out first, sharing the destination's in-flight limit
+		Payload retry;
+		while ((retry = destination.pollRetry()) != null) {
+			dispatch(destination, retry);
+		}
+		dispatch(destination, new Payload(compressedPayload, null, null));
+	}
+
+	/**
+	 * Sends the payload now if the destination has a free in-flight slot, otherwise
+	 * parks it until a running request completes.
+	 */
+	private void dispatch(LogDestination destination, Payload payload) {
+		inFlightEvents.addAndGet(payload.eventCount());
+		inFlightCalls.incrementAndGet();
+		destination.getWaiting().add(payload);
+		drainWaiting(destination);
+	}
+
+	private void drainWaiting(LogDestination destination) {
+		while (!destination.getWaiting().isEmpty() && destination.tryAcquire()) {
+			Payload next = destination.getWaiting().poll();
+			if (next == null) {
+				destination.release();
+				continue;
+			}
+			execute(destination, next);
+		}
+	}
+
+	private Request buildRequest(LogDestination destination, byte[] compressedPayload) {
+		RequestBody requestBody = RequestBody.create(compressedPayload, JSON);
+		return new Request.Builder().url(destination.getApiUrl()).post(requestBody)
+				.addHeader("X-License-Key", destination.getApiKey()).addHeader("Content-Type", "application/json")
+				.addHeader("Content-Encoding", "gzip").build();
+	}
+
+	private void execute(LogDestination destination, Payload payload) {
+		Request request;
+		try {
+			request = buildRequest(destination, payload.body);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Invalid New Relic destination " + destination + ": " + e.getMessage());
+			completed(destination, payload, SendStatus.REJECTED, -1);
+			return;
+		}
+		lastSendAt = System.currentTimeMillis();
+		final AppenderEvents events = AppenderEvents.get();
+		final long sentAt = System.nanoTime();
+		events.requestSent(destination.getApiUrl(), payload.eventCount(), payload.body.length);
+		client.newCall(request).enqueue(new Callback() {
+			@Override
+			public void onFailure(Call call, IOException e) {
+				System.err.println("Failed to send logs asynchronously to " + destination + ": " + e.getMessage());
+				SendStatus status = classify(destination, -1, null);
+				long elapsed = System.nanoTime() - sentAt;
+				recordSendTime(elapsed);
+				events.requestCompleted(destination.getApiUrl(), payload.eventCount(), -1, status.name(), elapsed);
+				completed(destination, payload, status, -1);
+			}
+
+			@Override
+			public void onResponse(Call call, Response response) throws IOException {
+				SendStatus status;
+				int code = response.code();
+				try {
+					if (!response.isSuccessful()) {
+						System.err.println("Failed to send logs asynchronously to " + destination + ": "
+								+ response.code() + " - " + response.message());
+					}
+					status = classify(destination, code, response.header("Retry-After"));
+				} finally {
+					response.close();
 				}
+				long elapsed = System.nanoTime() - sentAt;
+				recordSendTime(elapsed);
+				events.requestCompleted(destination.getApiUrl(), payload.eventCount(), code, status.name(), elapsed);
+				completed(destination, payload, status, code);
+			}
+		});
+	}
 
-				@Override
-				public void onResponse(Call call, Response response) throws IOException {
-					try {
-						if (!response.isSuccessful()) {
-							System.err.println("Failed to send logs asynchronously: " + response.code() + " - "
-									+ response.message());
-							callback.onFailure(logEvents); // Requeue logs if the response is not successful
-						} else {
-							callback.onSuccess();
-						}
-					} finally {
-						response.close();
+	/**
+	 * Opens the pooled connections to every destination ahead of the next send,
+	 * with an empty payload carrying the license key, which the Logs API accepts
+	 * without storing anything. One request goes out first; only if it was served
+	 * over HTTP/1.1 do up to connPoolSize - 1 more follow concurrently, as HTTP/2
+	 * carries every request on that one connection. Each request takes an
+	 * in-flight slot of its destination like a send, and a destination without a
+	 * free slot, or paused, is skipped. The responses are discarded and nothing is
+	 * counted as sent or failed.
+	 */
+	public void prewarm() {
+		for (LogDestination destination : destinations) {
+			if (destination.getRateLimiter().isPaused()) {
+				continue;
+			}
+			Request request;
+			try {
+				request = buildRequest(destination, EMPTY_PAYLOAD);
+			} catch (IllegalArgumentException e) {
+				continue; // reported when the first payload is sent
+			}
+			prewarm(destination, request, true);
+		}
+	}
+
+	private void prewarm(final LogDestination destination, final Request request, final boolean first) {
+		if (!destination.tryAcquire()) {
+			return;
+		}
+		client.newCall(request).enqueue(new Callback() {
+			@Override
+			public void onFailure(Call call, IOException e) {
+				// Not reachable yet; the next pre-warm or send tries again
+				prewarmCompleted(destination);
+			}
+
+			@Override
+			public void onResponse(Call call, Response response) {
+				Protocol protocol = response.protocol();
+				response.close();
+				prewarmCompleted(destination);
+				if (first && protocol == Protocol.HTTP_1_1) {
+					for (int i = 1; i < connPoolSize; i++) {
+						prewarm(destination, request, false);
 					}
 				}
-			});
-		} catch (IOException e) {
-			System.err.println("Error during log forwarding: " + e.getMessage());
-			callback.onFailure(logEvents); // Requeue logs if an exception occurs
+			}
+		});
+	}
+
+	private void prewarmCompleted(LogDestination destination) {
+		destination.release();
+		drainWaiting(destination);
+		synchronized (inFlightLock) {
+			inFlightLock.notifyAll();
+		}
+	}
+
+	// Smooths like the arrival rate in AdaptiveLinger, so one slow request
+	// does not move the flush deadline on its own
+	private void recordSendTime(long elapsedNanos) {
+		long sample = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+		sendTime.accumulateAndGet(sample, (current, next) -> current == 0 ? next
+				: Math.round(SEND_TIME_SMOOTHING * next + (1 - SEND_TIME_SMOOTHING) * current));
+	}
+
+	/**
+	 * @return Smoothed time a request takes from sending to its response, in
+	 *         milliseconds, or 0 before the first response.
+	 */
+	public long getSendTime() {
+		return sendTime.get();
+	}
+
+	/**
+	 * @return true if a payload was sent within the given time, so pooled
+	 *         connections are worth keeping warm.
+	 */
+	public boolean hasSentWithin(long millis) {
+		long last = lastSendAt;
+		return last != 0 && System.currentTimeMillis() - last < millis;
+	}
+
+	/**
+	 * How a request ended, which decides whether and when it is retried.
+	 */
+	enum SendStatus {
+		SENT, // 2xx
+		THROTTLED, // 429 or 503: honor Retry-After, retry without counting an attempt
+		FAILED, // other 5xx, 408 or network error: back off, retry up to maxRetries
+		REJECTED // other 4xx: will never succeed, drop without retry
+	}
+
+	/**
+	 * Classifies the response and updates the destination's rate limiter and the
+	 * metrics accordingly.
+	 *
+	 * @param code HTTP status code, or -1 for a network error.
+	 */
+	private SendStatus classify(LogDestination destination, int code, String retryAfter) {
+		SendRateLimiter limiter = destination.getRateLimiter();
+		if (code >= 200 && code < 300) {
+			limiter.onSuccess();
+			metrics.recordSent();
+			return SendStatus.SENT;
+		}
+		if (code == 429 || code == 503) {
+			metrics.recordThrottled();
+			limiter.onThrottled(retryAfter);
+			return SendStatus.THROTTLED;
+		}
+		if (code >= 400 && code < 500 && code != 408) {
+			return SendStatus.REJECTED;
+		}
+		if (code < 0) {
+			metrics.recordNetworkError();
+		} else {
+			metrics.recordServerError();
+		}
+		limiter.onError();
+		return SendStatus.FAILED;
+	}
+
+	private void completed(LogDestination destination, Payload payload, SendStatus status, int code) {
+		try {
+			if (status == SendStatus.SENT) {
+				destination.recordSent();
+				markSent(payload.traces);
+				if (payload.callback != null) {
+					payload.callback.onSuccess(payload.eventCount());
+				}
+				return;
+			}
+			destination.recordFailed();
+			if (status == SendStatus.REJECTED) {
+				metrics.recordRejected(payload.eventCount());
+			}
+			if (payload.callback != null) {
+				switch (status) {
+				case THROTTLED:
+					payload.callback.onThrottled(restoreStacks(payload.logEvents, payload.traces));
+					break;
+				case REJECTED:
+					payload.callback.onRejected(payload.logEvents, code);
+					break;
+				default:
+					payload.callback.onFailure(restoreStacks(payload.logEvents, payload.traces)); // Requeue logs if the request fails
+				}
+			} else if (status == SendStatus.THROTTLED
+					|| (status == SendStatus.FAILED && ++payload.attempts < maxRetries)) {
+				destination.addRetry(payload, logQueue.getCapacity());
+			} else {
+				destination.recordDropped();
+			}
+		} finally {
+			destination.release();
+			// Hand the slot to a parked payload before waking anyone waiting for one
+			drainWaiting(destination);
+			callCompleted(payload.eventCount());
+		}
+	}
+
+	/**
+	 * Starts the dedup window of the traces an accepted payload carried in full.
+	 */
+	private static void markSent(List<RenderedTrace> traces) {
+		if (traces != null) {
+			long now = System.currentTimeMillis();
+			for (RenderedTrace trace : traces) {
+				trace.markSent(now);
+			}
+		}
+	}
+
+	/**
+	 * @return The counters shared by this forwarder and its destinations.
+	 */
+	public AppenderMetrics getMetrics() {
+		return metrics;
+	}
+
+	private void callCompleted(int eventCount) {
+		inFlightEvents.addAndGet(-eventCount);
+		inFlightCalls.decrementAndGet();
+		// Wakes awaitInFlight as well as awaitSendSlot
+		synchronized (inFlightLock) {
+			inFlightLock.notifyAll();
+		}
+	}
+
+	/**
+	 * @return The primary destination followed by any additional destinations.
+	 */
+	public List<LogDestination> getDestinations() {
+		return destinations;
+	}
+
+	/**
+	 * @return The number of asynchronous requests that have not completed yet.
+	 */
+	public int getInFlightCalls() {
+		return inFlightCalls.get();
+	}
+
+	/**
+	 * @return The number of log events carried by requests that have not completed
+	 *         yet.
+	 */
+	public long getInFlightEvents() {
+		return inFlightEvents.get();
+	}
+
+	/**
+	 * Waits until all asynchronous requests have completed or the deadline passes.
+	 *
+	 * @param deadline Wall-clock time in milliseconds.
+	 * @return true if no request is in flight any more.
+	 */
+	public boolean awaitInFlight(long deadline) {
+		synchronized (inFlightLock) {
+			long remaining;
+			while (inFlightCalls.get() > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					inFlightLock.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		return inFlightCalls.get() == 0;
+	}
+
+	/**
+	 * Waits until no payload is parked behind the primary destination's in-flight
+	 * limit. The caller can then prepare the next payload while the current ones
+	 * are being sent, without piling up serialized payloads.
+	 *
+	 * @param deadline Wall-clock time in milliseconds.
+	 * @return true if the next payload can be dispatched without waiting behind
+	 *         another, false at the deadline or once waits have been cancelled.
+	 */
+	public boolean awaitSendSlot(long deadline) {
+		LogDestination primary = destinations.get(0);
+		synchronized (inFlightLock) {
+			long remaining;
+			while (!sendSlotWaitsCancelled && !primary.getWaiting().isEmpty()
+					&& (remaining = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					inFlightLock.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return !sendSlotWaitsCancelled && primary.getWaiting().isEmpty();
+	}
+
+	/**
+	 * @return true if the next payload can be dispatched without waiting behind
+	 *         another, see {@link #awaitSendSlot}.
+	 */
+	public boolean hasSendSlot() {
+		return !sendSlotWaitsCancelled && destinations.get(0).getWaiting().isEmpty();
+	}
+
+	/**
+	 * Makes current and future {@link #awaitSendSlot} calls return false right
+	 * away, so a flush loop does not hold up a shutdown.
+	 */
+	public void cancelSendSlotWaits() {
+		sendSlotWaitsCancelled = true;
+		synchronized (inFlightLock) {
+			inFlightLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Cancels outstanding requests and releases the HTTP client's threads and
+	 * pooled connections. The forwarder cannot send afterwards.
+	 */
+	public void shutdown() {
+		// Payloads that never got an in-flight slot fail without being sent
+		for (LogDestination destination : destinations) {
+			Payload waiting;
+			while ((waiting = destination.getWaiting().poll()) != null) {
+				if (waiting.callback != null) {
+					waiting.callback.onFailure(restoreStacks(waiting.logEvents, waiting.traces));
+				}
+				callCompleted(waiting.eventCount());
+			}
 		}
+		client.dispatcher().cancelAll();
+		client.dispatcher().executorService().shutdown();
+		client.connectionPool().evictAll();
 	}
 
 	// Method to convert a map to a LogEntry
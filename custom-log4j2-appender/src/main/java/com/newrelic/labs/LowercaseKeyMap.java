@@ -1,20 +1,59 @@
-
 package com.newrelic.labs;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @SuppressWarnings("serial")
 public class LowercaseKeyMap extends HashMap<String, Object> {
+
+    // Attribute names repeat across events, so their lowercase form is cached
+    // instead of calling toLowerCase() for every key of every event
+    private static final int MAX_CACHED_KEYS = 1024;
+    private static final ConcurrentHashMap<String, String> LOWERCASE_KEYS = new ConcurrentHashMap<>();
+
+    public LowercaseKeyMap() {
+	super();
+    }
+
+    public LowercaseKeyMap(int initialCapacity) {
+	super(initialCapacity);
+    }
+
+    /**
+     * @return The lowercase form of the key, shared across events while the cache
+     *         has room.
+     */
+    static String lowercase(String key) {
+	String lower = LOWERCASE_KEYS.get(key);
+	if (lower == null) {
+	    lower = key.toLowerCase();
+	    if (LOWERCASE_KEYS.size() < MAX_CACHED_KEYS) {
+		String existing = LOWERCASE_KEYS.putIfAbsent(key, lower);
+		if (existing != null) {
+		    lower = existing;
+		}
+	    }
+	}
+	return lower;
+    }
+
     @Override
     public Object put(String key, Object value) {
-	return super.put(key.toLowerCase(), value);
+	return super.put(lowercase(key), value);
+    }
+
+    /**
+     * Puts a key that is already known to be lowercase.
+     */
+    Object putLowercase(String key, Object value) {
+	return super.put(key, value);
     }
 
     @Override
     public void putAll(Map<? extends String, ? extends Object> m) {
 	for (Map.Entry<? extends String, ? extends Object> entry : m.entrySet()) {
-	    this.put(entry.getKey().toLowerCase(), entry.getValue());
+	    this.put(entry.getKey(), entry.getValue());
 	}
     }
-}
\ No newline at end of file
+}
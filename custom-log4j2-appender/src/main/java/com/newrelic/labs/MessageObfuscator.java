@@ -3,14 +3,71 @@ package com.newrelic.labs;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Utility class for obfuscating parts of a string based on regular expressions.
+ * An instance holds the patterns compiled once and bounds the time they may
+ * take on one message.
  */
 public class MessageObfuscator {
 
+	private final Pattern[] patterns;
+	private final long budgetNanos;
+
+	/**
+	 * @param commaSeparatedPatterns Double caret (^^) separated regular
+	 *                               expressions; invalid ones are skipped.
+	 * @param budgetMillis           Time all patterns together may take on one
+	 *                               message.
+	 */
+	public MessageObfuscator(String commaSeparatedPatterns, long budgetMillis) {
+		List<Pattern> compiled = new ArrayList<>();
+		if (commaSeparatedPatterns != null && !commaSeparatedPatterns.isEmpty()) {
+			for (String regex : commaSeparatedPatterns.split("\\^\\^")) {
+				try {
+					compiled.add(Pattern.compile(regex.trim()));
+				} catch (java.util.regex.PatternSyntaxException e) {
+					// Skipped, as in obfuscateMessage
+				}
+			}
+		}
+		this.patterns = compiled.toArray(new Pattern[0]);
+		this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+	}
+
+	public boolean isEmpty() {
+		return patterns.length == 0;
+	}
+
+	/**
+	 * Same replacement as {@link #obfuscateMessage(String, String)}, with the
+	 * precompiled patterns.
+	 *
+	 * @throws DeadlineCharSequence.DeadlineExceededException if matching takes
+	 *                                                        longer than the
+	 *                                                        budget.
+	 */
+	public String obfuscate(String message) {
+		if (message == null || message.isEmpty() || patterns.length == 0) {
+			return message;
+		}
+		StringBuilder obfuscatedMessage = new StringBuilder(message);
+		// Replacements keep the length, so one wrapper serves all patterns
+		CharSequence text = new DeadlineCharSequence(obfuscatedMessage, System.nanoTime() + budgetNanos);
+		for (Pattern pattern : patterns) {
+			Matcher matcher = pattern.matcher(text);
+			while (matcher.find()) {
+				for (int i = matcher.start(); i < matcher.end(); i++) {
+					obfuscatedMessage.setCharAt(i, 'X');
+				}
+			}
+		}
+		return obfuscatedMessage.toString();
+	}
+
 	/**
 	 * Obfuscates substrings in a given message that match any of the provided regex
 	 * patterns. Matched substrings are replaced with 'X' characters at random
@@ -0,0 +1,111 @@
+package com.newrelic.labs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The {@code message.id}, {@code part.index} and {@code part.count} attributes
+ * of one part of a message that was too large to send as a single event. The
+ * parts share the id and are numbered from 0, so the message can be put back
+ * together from the events that carry it.
+ */
+public final class MessagePart {
+
+    private final String messageId;
+    private final int index;
+    private final int count;
+
+    public MessagePart(String messageId, int index, int count) {
+	this.messageId = messageId;
+	this.index = index;
+	this.count = count;
+    }
+
+    public String getMessageId() {
+	return messageId;
+    }
+
+    public int getIndex() {
+	return index;
+    }
+
+    public int getCount() {
+	return count;
+    }
+
+    /**
+     * @return Queued size of the attributes.
+     */
+    long cost() {
+	return messageId.length() + 2 * Integer.BYTES;
+    }
+
+    /**
+     * @return A random id for the parts of one message; unique enough to tell the
+     *         messages of one application apart without the locking of
+     *         {@code UUID.randomUUID()}.
+     */
+    static String newMessageId() {
+	ThreadLocalRandom random = ThreadLocalRandom.current();
+	return Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+    }
+
+    /**
+     * @return The attributes of each of {@code count} parts of one message: a new
+     *         shared id and the indexes 0 to count - 1.
+     */
+    static MessagePart[] number(int count) {
+	String messageId = newMessageId();
+	MessagePart[] parts = new MessagePart[count];
+	for (int i = 0; i < count; i++) {
+	    parts[i] = new MessagePart(messageId, i, count);
+	}
+	return parts;
+    }
+
+    /**
+     * Splits a message into parts of at most {@code maxBytes} bytes in UTF-8. The
+     * cuts fall between characters and never inside a surrogate pair, so every
+     * part is valid text on its own. A character wider than maxBytes gets a part
+     * of its own.
+     *
+     * @return The message itself as the only element when it already fits.
+     */
+    static List<String> split(String message, int maxBytes) {
+	List<String> parts = new ArrayList<>();
+	// Every char takes at most 3 bytes, so short messages need no counting
+	if (message.length() <= maxBytes / 3) {
+	    parts.add(message);
+	    return parts;
+	}
+	int start = 0;
+	int bytes = 0;
+	int i = 0;
+	while (i < message.length()) {
+	    char c = message.charAt(i);
+	    int width;
+	    int chars = 1;
+	    if (c < 0x80) {
+		width = 1;
+	    } else if (c < 0x800) {
+		width = 2;
+	    } else if (Character.isHighSurrogate(c) && i + 1 < message.length()
+		    && Character.isLowSurrogate(message.charAt(i + 1))) {
+		width = 4;
+		chars = 2;
+	    } else {
+		width = 3;
+	    }
+	    if (bytes + width > maxBytes && i > start) {
+		parts.add(message.substring(start, i));
+		start = i;
+		bytes = 0;
+	    }
+	    bytes += width;
+	    i += chars;
+	}
+	parts.add(message.substring(start));
+	return parts;
+    }
+}
@@ -9,7 +9,7 @@ import java.util.Collection;
  */
 public abstract class NRBufferWithEviction<Q> {
 
-    private long capacity;
+    private volatile long capacity;
 
     public NRBufferWithEviction(long capacity) {
 	this.capacity = capacity;
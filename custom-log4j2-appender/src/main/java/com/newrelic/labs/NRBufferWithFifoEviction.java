@@ -1,34 +1,135 @@
 package com.newrelic.labs;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import com.newrelic.labs.NRCostBoundedConcurrentQueue.CostAssigner;
 
 public class NRBufferWithFifoEviction<T> extends NRBufferWithEviction<T> {
 
+    // Producers parked under OverflowPolicy.BLOCK re-check the closed flag at this
+    // interval so that stopping the appender never leaves them stuck
+    private static final long BLOCK_RECHECK_MILLIS = 100;
+
     private final NRCostBoundedConcurrentQueue<T> queue;
     private final CostAssigner<T> costAssigner;
+    private final OverflowPolicy overflowPolicy;
+    private final long overflowMaxWait;
+    private final AtomicLong evictedCount = new AtomicLong(0);
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    private volatile Runnable overflowListener;
+    private volatile ByteQuotas<T> quotas;
+    private volatile boolean closed = false;
 
     public NRBufferWithFifoEviction(long capacity, CostAssigner<T> costAssigner) {
+	this(capacity, costAssigner, OverflowPolicy.EVICT, 0);
+    }
+
+    public NRBufferWithFifoEviction(long capacity, CostAssigner<T> costAssigner, OverflowPolicy overflowPolicy,
+	    long overflowMaxWait) {
 	super(capacity);
 	this.queue = new NRCostBoundedConcurrentQueue<>(capacity, costAssigner);
 	this.costAssigner = costAssigner;
+	this.overflowPolicy = overflowPolicy != null ? overflowPolicy : OverflowPolicy.EVICT;
+	this.overflowMaxWait = overflowMaxWait;
     }
 
     @Override
     protected T evict() {
-	return queue.poll();
+	T evicted = queue.poll();
+	if (evicted != null) {
+	    recordEvicted(evicted, costAssigner.cost(evicted));
+	}
+	return evicted;
+    }
+
+    private void recordEvicted(T evicted, long cost) {
+	evictedCount.incrementAndGet();
+	ByteQuotas<T> quotas = this.quotas;
+	if (quotas != null) {
+	    quotas.evicted(evicted, cost);
+	}
     }
 
     @Override
     protected boolean evict(long cost) {
 	if (cost > getCapacity())
 	    return false;
+	evictUntil(getCapacity() - cost, null);
+	return true;
+    }
+
+    /**
+     * Evicts the oldest elements that match the filter, or the oldest elements
+     * overall when the filter is null, until the buffer's cost is at most the
+     * target.
+     *
+     * @return true if the target was reached.
+     */
+    private boolean evictUntil(long targetCost, Predicate<T> filter) {
+	long[] totals = new long[2]; // entries, cost
+	Consumer<T> evicted = e -> {
+	    long cost = costAssigner.cost(e);
+	    recordEvicted(e, cost);
+	    totals[0]++;
+	    totals[1] += cost;
+	};
+	boolean reached;
+	if (filter == null) {
+	    T e;
+	    while (queue.cost() > targetCost && (e = queue.poll()) != null) {
+		evicted.accept(e);
+	    }
+	    reached = queue.cost() <= targetCost;
+	} else {
+	    reached = queue.pollWhile(filter, targetCost, evicted);
+	}
+	if (totals[0] > 0) {
+	    AppenderEvents.get().evicted((int) totals[0], totals[1]);
+	}
+	return reached;
+    }
+
+    /**
+     * Makes room for an element under the logger quotas: a logger over its quota
+     * loses its own oldest entries first, then entries that sit in the shared pool
+     * go, oldest first. Entries within their quota are only evicted when the
+     * quotas reserve more than the whole capacity.
+     */
+    private boolean evict(T element, long cost, ByteQuotas<T> quotas) {
+	if (cost > getCapacity()) {
+	    return false;
+	}
 	long targetCost = getCapacity() - cost;
-	while (queue.cost() > targetCost) {
-	    evict();
+	ByteQuotas.Group group = quotas.groupOf(element);
+	if (group.exceedsQuota(cost) && evictUntil(targetCost, e -> quotas.groupOf(e) == group)) {
+	    return true;
 	}
-	return true;
+	if (evictUntil(targetCost, e -> quotas.groupOf(e).exceedsQuota(0))) {
+	    return true;
+	}
+	return evict(cost);
+    }
+
+    /**
+     * Changes the capacity, evicting the oldest entries when it is lowered below
+     * what is queued. Under logger quotas, entries over their quota or in the
+     * shared pool go first.
+     */
+    @Override
+    public void setCapacity(long capacity) {
+	super.setCapacity(capacity);
+	queue.setCapacity(capacity);
+	ByteQuotas<T> quotas = this.quotas;
+	if (quotas != null && evictUntil(capacity, e -> quotas.groupOf(e).exceedsQuota(0))) {
+	    return;
+	}
+	evictUntil(capacity, null);
     }
 
     @Override
@@ -36,26 +137,198 @@ public class NRBufferWithFifoEviction<T> extends NRBufferWithEviction<T> {
 	return queue.size();
     }
 
+    /**
+     * @return The total cost of the elements currently in the buffer.
+     */
+    public long cost() {
+	return queue.cost();
+    }
+
+    /**
+     * @return The cost the buffer assigns to the given element.
+     */
+    public long cost(T element) {
+	return costAssigner.cost(element);
+    }
+
+    /**
+     * @return The oldest element, left in the buffer, or null if it is empty.
+     */
+    public T peek() {
+	return queue.peek();
+    }
+
     @Override
     public int drainTo(Collection<T> collection, int atMost) {
-	return queue.drainTo(collection, atMost);
+	ByteQuotas<T> quotas = this.quotas;
+	if (quotas == null) {
+	    return queue.drainTo(collection, atMost);
+	}
+	// Only the elements drained now leave the quotas, not what the collection held
+	List<T> drained = new ArrayList<>();
+	queue.drainTo(drained, atMost);
+	for (T element : drained) {
+	    quotas.removed(element, costAssigner.cost(element));
+	}
+	collection.addAll(drained);
+	return drained.size();
     }
 
+    /**
+     * Adds an element, applying the configured {@link OverflowPolicy} when the
+     * buffer is full.
+     */
     @Override
     public boolean add(T element) {
-	boolean wasSuccessful = queue.offer(element);
-	if (!wasSuccessful) {
-	    evict(costAssigner.cost(element));
-	    return queue.offer(element);
+	return add(element, overflowPolicy);
+    }
+
+    /**
+     * Adds an element, applying the given {@link OverflowPolicy} when the buffer is
+     * full. Requeues from network callbacks use {@link OverflowPolicy#EVICT} so
+     * they never park an HTTP thread.
+     */
+    public boolean add(T element, OverflowPolicy policy) {
+	if (offer(element)) {
+	    return true;
+	}
+	ByteQuotas<T> quotas = this.quotas;
+	if (quotas != null && !quotas.groupOf(element).exceedsQuota(costAssigner.cost(element))) {
+	    // A logger within its quota takes its reserved space back whatever the policy
+	    return addEvicting(element);
+	}
+	switch (policy) {
+	case DROP_NEW:
+	    droppedCount.incrementAndGet();
+	    return false;
+	case BLOCK:
+	case BLOCK_WITH_TIMEOUT:
+	    if (offerBlocking(element, policy == OverflowPolicy.BLOCK ? Long.MAX_VALUE : overflowMaxWait)) {
+		return true;
+	    }
+	    if (policy == OverflowPolicy.BLOCK && !closed) {
+		// Interrupted or the element can never fit
+		droppedCount.incrementAndGet();
+		return false;
+	    }
+	    return addEvicting(element);
+	default:
+	    return addEvicting(element);
+	}
+    }
+
+    private boolean addEvicting(T element) {
+	long cost = costAssigner.cost(element);
+	ByteQuotas<T> quotas = this.quotas;
+	if (quotas != null) {
+	    evict(element, cost, quotas);
+	} else {
+	    evict(cost);
+	}
+	if (offer(element)) {
+	    return true;
+	}
+	droppedCount.incrementAndGet();
+	return false;
+    }
+
+    private boolean offer(T element) {
+	if (!queue.offer(element)) {
+	    return false;
+	}
+	ByteQuotas<T> quotas = this.quotas;
+	if (quotas != null) {
+	    quotas.added(element, costAssigner.cost(element));
 	}
 	return true;
     }
 
+    private boolean offerBlocking(T element, long maxWaitMillis) {
+	Runnable listener = overflowListener;
+	if (listener != null) {
+	    listener.run();
+	}
+	long deadline = maxWaitMillis == Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() + maxWaitMillis;
+	try {
+	    while (!closed) {
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+		    return false;
+		}
+		if (queue.offer(element, Math.min(remaining, BLOCK_RECHECK_MILLIS), TimeUnit.MILLISECONDS)) {
+		    ByteQuotas<T> quotas = this.quotas;
+		    if (quotas != null) {
+			quotas.added(element, costAssigner.cost(element));
+		    }
+		    return true;
+		}
+		if (costAssigner.cost(element) > getCapacity()) {
+		    return false;
+		}
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+	return false;
+    }
+
+    /**
+     * Registers a callback that is run before a producer parks on a full buffer,
+     * typically to trigger a drain.
+     */
+    public void setOverflowListener(Runnable overflowListener) {
+	this.overflowListener = overflowListener;
+    }
+
+    /**
+     * Splits the capacity between logger prefixes. Must be set before the first
+     * element is added.
+     */
+    public void setQuotas(ByteQuotas<T> quotas) {
+	this.quotas = quotas;
+    }
+
+    /**
+     * @return The logger quotas, or null when the capacity is not split.
+     */
+    public ByteQuotas<T> getQuotas() {
+	return quotas;
+    }
+
+    /**
+     * Stops parking producers; any producer still waiting falls back to eviction.
+     */
+    public void close() {
+	closed = true;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+	return overflowPolicy;
+    }
+
+    /**
+     * @return The number of entries evicted to make room for newer ones.
+     */
+    public long getEvictedCount() {
+	return evictedCount.get();
+    }
+
+    /**
+     * @return The number of new entries rejected because the buffer was full.
+     */
+    public long getDroppedCount() {
+	return droppedCount.get();
+    }
+
     /**
      * Clears all elements from the buffer.
      */
     public synchronized void clear() {
 	queue.clear();
+	ByteQuotas<T> quotas = this.quotas;
+	if (quotas != null) {
+	    quotas.clear();
+	}
 	// logger.info("Cleared all elements from the buffer");
     }
 }
@@ -1,8 +1,15 @@
 package com.newrelic.labs;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class NRCostBoundedConcurrentQueue<T> {
 
@@ -10,10 +17,34 @@ public class NRCostBoundedConcurrentQueue<T> {
 	long cost(T e);
     }
 
-    private final LinkedBlockingQueue<T> queue;
+    /**
+     * Holds one element in the queue. Whoever takes the element, a drain, a poll
+     * or {@link #pollWhile}, first claims the slot, so each element is taken and
+     * released exactly once. A slot claimed by pollWhile stays in the queue,
+     * without its element, until a drain or poll reaches it.
+     */
+    @SuppressWarnings("serial")
+    private static final class Slot<T> extends AtomicBoolean {
+	T element; // cleared once claimed by pollWhile
+
+	Slot(T element) {
+	    this.element = element;
+	}
+
+	boolean claim() {
+	    return compareAndSet(false, true);
+	}
+    }
+
+    private final LinkedBlockingQueue<Slot<T>> queue;
     private final CostAssigner<T> costAssigner;
-    private final long capacity;
+    private volatile long capacity;
     private final AtomicLong cost = new AtomicLong(0);
+    // Producers parked in offer(e, timeout, unit); only written while holding the
+    // monitor so that releasing capacity can skip notification when nobody waits
+    private volatile int waiters = 0;
+    // Slots in the queue whose element was taken by pollWhile
+    private final AtomicInteger emptySlots = new AtomicInteger(0);
 
     public NRCostBoundedConcurrentQueue(long capacity, CostAssigner<T> costAssigner) {
 	this.queue = new LinkedBlockingQueue<>();
@@ -25,16 +56,50 @@ public class NRCostBoundedConcurrentQueue<T> {
 	return cost.get();
     }
 
+    public long getCapacity() {
+	return capacity;
+    }
+
+    /**
+     * Changes the capacity for elements offered from now on. Elements already
+     * queued are kept even if they exceed a lowered capacity; producers waiting
+     * for room are woken when it is raised.
+     */
+    public synchronized void setCapacity(long capacity) {
+	long previous = this.capacity;
+	this.capacity = capacity;
+	if (capacity > previous && waiters > 0) {
+	    notifyAll();
+	}
+    }
+
     public int size() {
-	return queue.size();
+	return Math.max(0, queue.size() - emptySlots.get());
     }
 
+    /**
+     * Moves up to atMost of the oldest elements to the collection.
+     *
+     * @return The number of elements added to the collection.
+     */
     public int drainTo(Collection<T> collection, int atMost) {
-	assert collection.isEmpty();
-	int elementsDrained = queue.drainTo(collection, atMost);
-	for (T e : collection) {
-	    cost.addAndGet(-costAssigner.cost(e));
+	List<Slot<T>> slots = new ArrayList<>(Math.min(atMost, queue.size()));
+	int elementsDrained = 0;
+	long drainedCost = 0;
+	// Slots emptied by pollWhile do not count towards atMost
+	while (elementsDrained < atMost && queue.drainTo(slots, atMost - elementsDrained) > 0) {
+	    for (Slot<T> slot : slots) {
+		if (slot.claim()) {
+		    collection.add(slot.element);
+		    drainedCost += costAssigner.cost(slot.element);
+		    elementsDrained++;
+		} else {
+		    emptySlots.decrementAndGet();
+		}
+	    }
+	    slots.clear();
 	}
+	release(drainedCost);
 	return elementsDrained;
     }
 
@@ -47,15 +112,89 @@ public class NRCostBoundedConcurrentQueue<T> {
 		cost.addAndGet(eCost);
 	    }
 	}
-	return queue.add(e);
+	return queue.add(new Slot<>(e));
+    }
+
+    /**
+     * Inserts the element, waiting up to the specified time for enough capacity to
+     * be released by {@link #drainTo}, {@link #poll} or {@link #clear}.
+     *
+     * @return true if the element was added, false if the wait elapsed or the
+     *         element can never fit into this queue.
+     */
+    public boolean offer(T e, long timeout, TimeUnit unit) throws InterruptedException {
+	long eCost = costAssigner.cost(e);
+	if (eCost > capacity) {
+	    return false;
+	}
+	long nanos = unit.toNanos(timeout);
+	synchronized (this) {
+	    waiters++;
+	    try {
+		while (eCost + cost.get() > capacity) {
+		    if (nanos <= 0) {
+			return false;
+		    }
+		    long deadline = System.nanoTime() + nanos;
+		    TimeUnit.NANOSECONDS.timedWait(this, nanos);
+		    nanos = deadline - System.nanoTime();
+		}
+		cost.addAndGet(eCost);
+	    } finally {
+		waiters--;
+	    }
+	}
+	return queue.add(new Slot<>(e));
     }
 
     public T poll() {
-	T e = queue.poll();
-	if (e != null) {
-	    cost.addAndGet(-costAssigner.cost(e));
+	Slot<T> slot;
+	while ((slot = queue.poll()) != null) {
+	    if (slot.claim()) {
+		release(costAssigner.cost(slot.element));
+		return slot.element;
+	    }
+	    emptySlots.decrementAndGet();
+	}
+	return null;
+    }
+
+    /**
+     * @return The oldest element, left in the queue, or null if it is empty.
+     */
+    public T peek() {
+	for (Slot<T> slot : queue) {
+	    T e = slot.element;
+	    if (e != null && !slot.get()) {
+		return e;
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Removes the oldest elements that match the filter until the cost of the
+     * queue is at most the target. One pass from the head finds them all; each
+     * removal only claims the element's slot and does not unlink it, so the whole
+     * call is linear in the queue length however many elements go.
+     *
+     * @param removed Called with each removed element.
+     * @return true if the target was reached.
+     */
+    public boolean pollWhile(Predicate<? super T> filter, long targetCost, Consumer<? super T> removed) {
+	for (Slot<T> slot : queue) {
+	    if (cost.get() <= targetCost) {
+		break;
+	    }
+	    T e = slot.element;
+	    if (e != null && !slot.get() && filter.test(e) && slot.claim()) {
+		slot.element = null; // not kept alive until a drain reaches the slot
+		emptySlots.incrementAndGet();
+		release(costAssigner.cost(e));
+		removed.accept(e);
+	    }
 	}
-	return e;
+	return cost.get() <= targetCost;
     }
 
     /**
@@ -63,6 +202,24 @@ public class NRCostBoundedConcurrentQueue<T> {
      */
     public synchronized void clear() {
 	queue.clear();
+	emptySlots.set(0);
 	cost.set(0); // Reset the cost to zero
+	if (waiters > 0) {
+	    notifyAll();
+	}
+    }
+
+    private void release(long released) {
+	if (released == 0) {
+	    return;
+	}
+	cost.addAndGet(-released);
+	// The cost update above is visible to any producer that registered itself as a
+	// waiter before we read the counter, so the monitor is only taken when needed
+	if (waiters > 0) {
+	    synchronized (this) {
+		notifyAll();
+	    }
+	}
     }
 }
@@ -1,169 +1,141 @@
 package com.newrelic.labs;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.logging.log4j.Logger;
-import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.StringLayout;
 import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.async.InternalAsyncUtil;
 import org.apache.logging.log4j.core.config.Property;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
-import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
-import org.apache.logging.log4j.core.config.plugins.PluginElement;
-import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.impl.LocationAware;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
 import org.apache.logging.log4j.core.layout.PatternLayout;
 import org.apache.logging.log4j.status.StatusLogger;
 
-import com.newrelic.labs.NRCostBoundedConcurrentQueue.CostAssigner;
-
 @Plugin(name = "NewRelicBatchingAppender", category = "Core", elementType = "appender", printObject = true)
 public class NewRelicBatchingAppender extends AbstractAppender {
 
-	private final NRBufferWithFifoEviction<LogEntry> queue; // 1.1.0
+	// Queue, forwarder and harvest scheduling, shared with other appenders using
+	// the same endpoint, key and pipeline settings
+	private final NewRelicPipelineManager manager;
 
-	private final String apiKey;
-	private final String apiUrl;
 	private final String applicationName;
 	private final String logType;
-	private final boolean mergeCustomFields;
 	private final String name;
 	private final String obfuscationPatterns;
+	private final MessageObfuscator obfuscator; // null unless obfuscationPatterns has a valid pattern
+	private final ObfuscationOverrunPolicy obfuscationOverrun;
+	private final int messageChunkSize; // 0 when messages are never split
+	private final KeyRedactor redactor; // null unless redactKeys is set
+	private final HeavyHitters heavyHitters; // null unless heavyHitters is set
 	private final boolean unwrapJson; // 1.1.10 - Flag to control JSON unwrapping behavior (true = unwrap to x.y, false = keep message.x.y)
-	private final LogForwarder logForwarder;
 	private static final Logger logger = StatusLogger.getLogger();
-	private int attempt = 0; // Track attempts across harvest cycles
-
-	private final int batchSize;
-	private final int connPoolSize;
-	private final long maxMessageSize;
-	private final long flushInterval;
-	private final long queueCapacity;
-	private final Map<String, Object> customFields;
-	private final int maxRetries;
-
-	private static final int DEFAULT_BATCH_SIZE = 2000;
-	private static final int DEFAULT_POOL_SIZE = 5;
-	private static final int DEFAULT_MAX_RETRIES = 3;
-	private static final long DEFAULT_MAX_MESSAGE_SIZE = 1048576; // 1 MB
-	private static final long DEFAULT_FLUSH_INTERVAL = 120000; // 2 minutes
-	private static final String LOG_TYPE = "muleLog"; // defaultType
-	private static final boolean MERGE_CUSTOM_FIELDS = false; // by default there will be a separate field custom block
-	// for custom fields i.e. custom.attribute1
-	private static final long DEFAULT_MAX_QUEUE_SIZE_BYTES = 2097152; // 2 MB // 1.1.0
-	private static final boolean DEFAULT_UNWRAP_JSON = false; // 1.1.10 - Default to original behavior (unwrapJson=false means keep message.x.y)
-	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1); // 1.1.0
-
-	protected NewRelicBatchingAppender(String name, Filter filter, Layout<? extends Serializable> layout,
-			final boolean ignoreExceptions, String apiKey, String apiUrl, String applicationName, Integer batchSize,
-			Long maxMessageSize, Long flushInterval, Long queueCapacity, String logType, String customFields,
-			Boolean mergeCustomFields, int maxRetries, long timeout, Integer connPoolSize, String obfuscationPatterns,
-			Boolean unwrapJson) {
-		super(name, filter, layout, ignoreExceptions, Property.EMPTY_ARRAY);
-
-		this.queueCapacity = queueCapacity != null && queueCapacity > 0 ? queueCapacity : DEFAULT_MAX_QUEUE_SIZE_BYTES;
+	// Compiled once; these run for every appended event
+	private static final Pattern MULE_APP_NAME_PATTERN = Pattern.compile("\\[.*?\\]\\..*?\\[([^\\]]+)\\]");
+	private static final Pattern JSON_AFTER_PREFIX_PATTERN = Pattern.compile(".*?-\\s*(.*)$");
+	private static final Pattern ANY_JSON_PATTERN = Pattern.compile("\\{.*\\}");
+	private static final com.fasterxml.jackson.databind.ObjectMapper jsonMapper = new com.fasterxml.jackson.databind.ObjectMapper();
 
-		// Define the cost assigner for LogEntry
-		CostAssigner<LogEntry> logEntryCostAssigner = logEntry -> {
-			long cost = 0;
-
-			// Include the length of the message
-			if (logEntry.getMessage() != null) {
-				cost += logEntry.getMessage().length();
-			}
-
-			// Include the length of the application name
-			if (logEntry.getApplicationName() != null) {
-				cost += logEntry.getApplicationName().length();
-			}
-
-			// Include the length of the log type
-			if (logEntry.getLogType() != null) {
-				cost += logEntry.getLogType().length();
-			}
-
-			// Include the length of the name
-			if (logEntry.getName() != null) {
-				cost += logEntry.getName().length();
-			}
-
-			// Include the length of the LogLevel
-			if (logEntry.getSeverity() != null) {
-				cost += logEntry.getSeverity().length();
-			}
-
-			// Include the length of the Logger Name
-			if (logEntry.getLogger() != null) {
-				cost += logEntry.getLogger().length();
-			}
+	private final StackTraceCache stackTraceCache; // null unless structuredExceptions is enabled
+	private final long slowAppendThresholdNanos;
+	private final RenderStage renderStage; // null when events are rendered on the logging thread
+	private final boolean includeLocation;
 
-			// Include the size of the timestamp (8 bytes for a long)
-			cost += Long.BYTES;
-
-			// Include the cost of the custom fields
-			if (logEntry.getProperties() != null) {
-				for (Map.Entry<String, Object> entry : logEntry.getProperties().entrySet()) {
-					// Add the length of the key
-					cost += entry.getKey().length();
-
-					// If the value is a string, add its length
-					if (entry.getValue() instanceof String) {
-						cost += ((String) entry.getValue()).length();
-					} else if (entry.getValue() != null) {
-						// If the value is not a string, add a generic cost
-						// This can be adjusted based on your specific use case
-						cost += entry.getValue().toString().length();
-					}
-				}
+	private static final String LOG_TYPE = "muleLog"; // defaultType
+	private static final boolean DEFAULT_UNWRAP_JSON = false; // 1.1.10 - Default to original behavior (unwrapJson=false means keep message.x.y)
+	private static final boolean DEFAULT_STRUCTURED_EXCEPTIONS = false;
+	private static final long DEFAULT_SLOW_APPEND_THRESHOLD = 10; // milliseconds
+	private static final long DEFAULT_OBFUSCATION_BUDGET = 50; // milliseconds per event
+	private static final int DEFAULT_RENDER_QUEUE_SIZE = 4096;
+	private static final long DEFAULT_HEAVY_HITTERS_WINDOW = 60000;
+
+	protected NewRelicBatchingAppender(Builder builder, NewRelicPipelineManager.Settings settings) {
+		super(builder.getName(), builder.getFilter(), builder.getOrCreateLayout(), builder.isIgnoreExceptions(),
+				Property.EMPTY_ARRAY);
+
+		this.manager = NewRelicPipelineManager.getPipeline(settings);
+		this.applicationName = builder.applicationName;
+		this.name = builder.getName();
+		this.logType = ((builder.logType != null) && (builder.logType.length() > 0)) ? builder.logType : LOG_TYPE;
+		this.obfuscationPatterns = builder.obfuscationPatterns;
+		long budget = builder.obfuscationBudget != null && builder.obfuscationBudget > 0 ? builder.obfuscationBudget
+				: DEFAULT_OBFUSCATION_BUDGET;
+		MessageObfuscator messageObfuscator = new MessageObfuscator(obfuscationPatterns, budget);
+		this.obfuscator = messageObfuscator.isEmpty() ? null : messageObfuscator;
+		ObfuscationOverrunPolicy overrunPolicy = null;
+		if (builder.obfuscationOverrun != null && !builder.obfuscationOverrun.trim().isEmpty()) {
+			overrunPolicy = ObfuscationOverrunPolicy.fromString(builder.obfuscationOverrun);
+			if (overrunPolicy == null) {
+				logger.warn("Unknown obfuscationOverrun '{}' for NewRelicBatchingAppender, using mask",
+						builder.obfuscationOverrun);
 			}
-
-			return cost;
-		};
-
-		this.queue = new NRBufferWithFifoEviction<>(this.queueCapacity, logEntryCostAssigner);// 1.1.0
-		this.apiKey = apiKey;
-		this.apiUrl = apiUrl;
-		this.applicationName = applicationName;
-		this.name = name;
-		this.maxRetries = maxRetries > 0 ? maxRetries : DEFAULT_MAX_RETRIES;
-
-		this.batchSize = batchSize != null && batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
-		this.connPoolSize = connPoolSize != null && connPoolSize > 0 ? connPoolSize : DEFAULT_POOL_SIZE;
-		this.maxMessageSize = maxMessageSize != null && maxMessageSize > 0 ? maxMessageSize : DEFAULT_MAX_MESSAGE_SIZE;
-		this.flushInterval = flushInterval != null && flushInterval > 0 ? flushInterval : DEFAULT_FLUSH_INTERVAL;
-		this.logType = ((logType != null) && (logType.length() > 0)) ? logType : LOG_TYPE;
-		this.customFields = parsecustomFields(customFields);
-		this.mergeCustomFields = mergeCustomFields != null ? mergeCustomFields : MERGE_CUSTOM_FIELDS;
-		this.logForwarder = new LogForwarder(apiKey, apiUrl, this.maxMessageSize, this.queue, maxRetries, timeout,
-				connPoolSize);
-		this.obfuscationPatterns = obfuscationPatterns;
+		}
+		this.obfuscationOverrun = overrunPolicy != null ? overrunPolicy : ObfuscationOverrunPolicy.MASK;
+		this.messageChunkSize = builder.messageChunkSize != null && builder.messageChunkSize > 0
+				? builder.messageChunkSize
+				: 0;
+		KeyRedactor keyRedactor = new KeyRedactor(builder.redactKeys);
+		this.redactor = keyRedactor.isEmpty() ? null : keyRedactor;
+		this.heavyHitters = builder.heavyHitters != null && builder.heavyHitters > 0
+				? new HeavyHitters(builder.heavyHitters,
+						builder.heavyHittersWindow != null && builder.heavyHittersWindow > 0
+								? builder.heavyHittersWindow
+								: DEFAULT_HEAVY_HITTERS_WINDOW)
+				: null;
 		// unwrapJson=true means unwrap JSON to x.y, unwrapJson=false means keep message.x.y (original behavior)
-		this.unwrapJson = unwrapJson != null ? unwrapJson : DEFAULT_UNWRAP_JSON;
-		
-		startFlushingTask();
-	}
-
-	private Map<String, Object> parsecustomFields(String customFields) {
-		Map<String, Object> custom = new HashMap<>();
-		if (customFields != null && !customFields.isEmpty()) {
-			String[] pairs = customFields.split(",");
-			for (String pair : pairs) {
-				String[] keyValue = pair.split("=");
-				if (keyValue.length == 2) {
-					custom.put(keyValue[0], keyValue[1]);
-				}
-			}
+		this.unwrapJson = builder.unwrapJson != null && !builder.unwrapJson.trim().isEmpty()
+				? Boolean.parseBoolean(builder.unwrapJson.trim())
+				: DEFAULT_UNWRAP_JSON;
+		if (builder.structuredExceptions != null ? builder.structuredExceptions : DEFAULT_STRUCTURED_EXCEPTIONS) {
+			this.stackTraceCache = new StackTraceCache(
+					builder.stackTraceCacheSize != null && builder.stackTraceCacheSize > 0 ? builder.stackTraceCacheSize
+							: StackTraceCache.DEFAULT_SIZE,
+					builder.stackTraceDedupMinutes != null ? builder.stackTraceDedupMinutes : 0);
+		} else {
+			this.stackTraceCache = null;
 		}
-		return custom;
+		this.slowAppendThresholdNanos = TimeUnit.MILLISECONDS.toNanos(
+				builder.slowAppendThreshold != null && builder.slowAppendThreshold > 0 ? builder.slowAppendThreshold
+						: DEFAULT_SLOW_APPEND_THRESHOLD);
+		// Location is only captured on the logging thread if the layout prints it
+		Layout<? extends Serializable> eventLayout = getLayout();
+		this.includeLocation = eventLayout instanceof PatternLayout
+				? ((PatternLayout) eventLayout).requiresLocation()
+				: eventLayout instanceof LocationAware && ((LocationAware) eventLayout).requiresLocation();
+		if (builder.renderThreads != null && builder.renderThreads > 0) {
+			this.renderStage = new RenderStage("NewRelicBatchingAppender-render-" + name, builder.renderThreads,
+					builder.renderQueueSize != null && builder.renderQueueSize > 0 ? builder.renderQueueSize
+							: DEFAULT_RENDER_QUEUE_SIZE,
+					this::doAppend).start();
+		} else {
+			this.renderStage = null;
+		}
+
+		// Log the configuration settings in use; an existing pipeline keeps its settings
+		settings = manager.getSettings();
+		logger.info(
+				"NewRelicBatchingAppender initialized with settings: batchSize={}, maxMessageSize={}, flushInterval={}, queueCapacity={}, maxRetries={}, mergeCustomFields={}, connPoolSize={}, overflowPolicy={}, overflowMaxWait={}, flushOnEndOfBatch={}, endOfBatchMinSize={}, endOfBatchMinAge={}, adaptiveFlush={}, drainMinSize={}, retryQueueCapacity={}, retryMaxAge={}, retryRatio={}, loggerQuotas={}, streamingCompression={}, prewarmConnections={}, keepAlive={}, dnsCacheTtl={}, heapPressureThreshold={}, destinations={}, structuredExceptions={}, redactKeys={}, obfuscationBudget={}, obfuscationOverrun={}, messageChunkSize={}, heavyHitters={}, renderThreads={}, pipeline={}",
+				settings.batchSize, settings.maxMessageSize, settings.flushInterval, settings.queueCapacity,
+				settings.maxRetries, settings.mergeCustomFields, settings.connPoolSize, settings.overflowPolicy,
+				settings.overflowMaxWait, settings.flushOnEndOfBatch, settings.endOfBatchMinSize,
+				settings.endOfBatchMinAge, settings.adaptiveFlush, settings.drainMinSize, settings.retryQueueCapacity,
+				settings.retryMaxAge, settings.retryRatio, settings.loggerQuotas,
+				settings.streamingCompression, settings.prewarmConnections, settings.keepAlive, settings.dnsCacheTtl,
+				settings.heapPressureThreshold, manager.getDestinations(),
+				stackTraceCache != null, builder.redactKeys, budget, this.obfuscationOverrun, this.messageChunkSize,
+				this.heavyHitters != null ? builder.heavyHitters : 0, renderStage != null ? builder.renderThreads : 0,
+				manager.getName());
 	}
 
 	/**
@@ -178,8 +150,7 @@ public class NewRelicBatchingAppender extends AbstractAppender {
 		try {
 			// Strategy 1: Look for JSON after common log prefixes (timestamp, level, etc.)
 			// This regex looks for JSON objects after typical log patterns
-			java.util.regex.Pattern jsonPattern = java.util.regex.Pattern.compile(".*?-\\s*(.*)$");
-			java.util.regex.Matcher matcher = jsonPattern.matcher(message);
+			java.util.regex.Matcher matcher = JSON_AFTER_PREFIX_PATTERN.matcher(message);
 			
 			if (matcher.find()) {
 				String possibleJson = matcher.group(1).trim();
@@ -188,8 +159,7 @@ public class NewRelicBatchingAppender extends AbstractAppender {
 				if (possibleJson.startsWith("{") && possibleJson.endsWith("}")) {
 					try {
 						// Validate it's proper JSON by parsing it
-						com.fasterxml.jackson.databind.ObjectMapper mapper = new com.fasterxml.jackson.databind.ObjectMapper();
-						mapper.readTree(possibleJson);
+						jsonMapper.readTree(possibleJson);
 						return possibleJson;
 					} catch (Exception e) {
 						// Not valid JSON, continue to fallback
@@ -198,16 +168,14 @@ public class NewRelicBatchingAppender extends AbstractAppender {
 			}
 			
 			// Strategy 2: Look for any JSON-like structure anywhere in the message
-			java.util.regex.Pattern anyJsonPattern = java.util.regex.Pattern.compile("\\{.*\\}");
-			java.util.regex.Matcher anyJsonMatcher = anyJsonPattern.matcher(message);
+			java.util.regex.Matcher anyJsonMatcher = ANY_JSON_PATTERN.matcher(message);
 			
 			if (anyJsonMatcher.find()) {
 				String possibleJson = anyJsonMatcher.group().trim();
 				
 				try {
 					// Validate it's proper JSON by parsing it
-					com.fasterxml.jackson.databind.ObjectMapper mapper = new com.fasterxml.jackson.databind.ObjectMapper();
-					mapper.readTree(possibleJson);
+					jsonMapper.readTree(possibleJson);
 					return possibleJson;
 				} catch (Exception e) {
 					// Not valid JSON, continue
@@ -222,123 +190,530 @@ public class NewRelicBatchingAppender extends AbstractAppender {
 		return message;
 	}
 
-	@PluginFactory
-	public static NewRelicBatchingAppender createAppender(@PluginAttribute("name") String name,
-			@PluginElement("Layout") Layout<? extends Serializable> layout,
-			@PluginElement("Filter") final Filter filter, @PluginAttribute("apiKey") String apiKey,
-			@PluginAttribute("apiUrl") String apiUrl, @PluginAttribute("applicationName") String applicationName,
-			@PluginAttribute(value = "batchSize") Integer batchSize,
-			@PluginAttribute(value = "maxMessageSize") Long maxMessageSize, @PluginAttribute("logType") String logType,
-			@PluginAttribute(value = "flushInterval") Long flushInterval,
-			@PluginAttribute(value = "queueCapacity") Long queueCapacity,
-			@PluginAttribute("customFields") String customFields,
-			@PluginAttribute(value = "mergeCustomFields") Boolean mergeCustomFields,
-			@PluginAttribute(value = "maxRetries") Integer maxRetries, @PluginAttribute(value = "timeout") Long timeout,
-			@PluginAttribute(value = "connPoolSize") Integer connPoolSize,
-			@PluginAttribute(value = "obfuscationPatterns") String obfuscationPatterns,
-			@PluginAttribute(value = "unwrapJson") String unwrapJson) {
+	@PluginBuilderFactory
+	public static Builder newBuilder() {
+		return new Builder();
+	}
+
+	/**
+	 * Plugin builder. The pipeline attributes go into a
+	 * {@link NewRelicPipelineManager.Settings} builder, the others configure the
+	 * appender itself.
+	 */
+	public static class Builder extends AbstractAppender.Builder<Builder>
+			implements org.apache.logging.log4j.core.util.Builder<NewRelicBatchingAppender> {
+
+		// Pipeline
+		@PluginBuilderAttribute(sensitive = true)
+		private String apiKey;
+
+		@PluginBuilderAttribute
+		private String apiUrl;
+
+		@PluginBuilderAttribute
+		private Integer batchSize;
+
+		@PluginBuilderAttribute
+		private Long maxMessageSize;
+
+		@PluginBuilderAttribute
+		private Long flushInterval;
+
+		@PluginBuilderAttribute
+		private Long queueCapacity;
+
+		@PluginBuilderAttribute
+		private String customFields;
+
+		@PluginBuilderAttribute
+		private Boolean mergeCustomFields;
+
+		@PluginBuilderAttribute
+		private Integer maxRetries;
+
+		@PluginBuilderAttribute
+		private Long timeout;
+
+		@PluginBuilderAttribute
+		private Integer connPoolSize;
+
+		@PluginBuilderAttribute
+		private String overflowPolicy;
+
+		@PluginBuilderAttribute
+		private Long overflowMaxWait;
+
+		@PluginBuilderAttribute
+		private Boolean flushOnEndOfBatch;
+
+		@PluginBuilderAttribute
+		private Integer endOfBatchMinSize;
+
+		@PluginBuilderAttribute
+		private Long endOfBatchMinAge;
+
+		@PluginBuilderAttribute
+		private Boolean adaptiveFlush;
+
+		@PluginBuilderAttribute
+		private Long latencySlo;
+
+		@PluginBuilderAttribute
+		private Long maxLinger;
+
+		@PluginBuilderAttribute
+		private Long flushBytes;
+
+		@PluginBuilderAttribute
+		private Long shutdownTimeout;
+
+		@PluginBuilderAttribute
+		private Boolean shutdownHook;
+
+		@PluginBuilderAttribute(sensitive = true)
+		private String destinations;
+
+		@PluginBuilderAttribute
+		private Integer maxInFlight;
+
+		@PluginBuilderAttribute
+		private Integer drainMinSize;
+
+		@PluginBuilderAttribute
+		private Long retryQueueCapacity;
+
+		@PluginBuilderAttribute
+		private Long retryMaxAge;
+
+		@PluginBuilderAttribute
+		private Integer retryRatio;
+
+		@PluginBuilderAttribute
+		private String loggerQuotas;
+
+		@PluginBuilderAttribute
+		private Boolean streamingCompression;
+
+		@PluginBuilderAttribute
+		private Boolean prewarmConnections;
+
+		@PluginBuilderAttribute
+		private Long keepAlive;
+
+		@PluginBuilderAttribute
+		private Long dnsCacheTtl;
 
-		if (name == null) {
-			logger.error("No name provided for NewRelicBatchingAppender");
-			return null;
+		@PluginBuilderAttribute
+		private Integer heapPressureThreshold;
+
+		// Appender
+		@PluginBuilderAttribute
+		private String applicationName;
+
+		@PluginBuilderAttribute
+		private String logType;
+
+		@PluginBuilderAttribute
+		private String obfuscationPatterns;
+
+		@PluginBuilderAttribute
+		private String unwrapJson;
+
+		@PluginBuilderAttribute
+		private Boolean structuredExceptions;
+
+		@PluginBuilderAttribute
+		private Integer stackTraceCacheSize;
+
+		@PluginBuilderAttribute
+		private Long stackTraceDedupMinutes;
+
+		@PluginBuilderAttribute
+		private Long slowAppendThreshold;
+
+		@PluginBuilderAttribute
+		private Integer renderThreads;
+
+		@PluginBuilderAttribute
+		private Integer renderQueueSize;
+
+		@PluginBuilderAttribute
+		private String redactKeys;
+
+		@PluginBuilderAttribute
+		private Long obfuscationBudget;
+
+		@PluginBuilderAttribute
+		private String obfuscationOverrun;
+
+		@PluginBuilderAttribute
+		private Integer messageChunkSize;
+
+		@PluginBuilderAttribute
+		private Integer heavyHitters;
+
+		@PluginBuilderAttribute
+		private Long heavyHittersWindow;
+
+		public Builder setApiKey(String apiKey) {
+			this.apiKey = apiKey;
+			return asBuilder();
 		}
 
-		if (layout == null) {
-			layout = PatternLayout.createDefaultLayout();
+		public Builder setApiUrl(String apiUrl) {
+			this.apiUrl = apiUrl;
+			return asBuilder();
 		}
 
-		if (apiKey == null || apiUrl == null || applicationName == null) {
-			logger.error("API key, API URL, and application name must be provided for NewRelicBatchingAppender");
-			return null;
+		public Builder setBatchSize(Integer batchSize) {
+			this.batchSize = batchSize;
+			return asBuilder();
 		}
 
-		int retries = maxRetries != null ? maxRetries : 3; // Default to 3 retries if not specified
-		long connectionTimeout = timeout != null ? timeout : 30000; // Default to 30 seconds if not specified
+		public Builder setMaxMessageSize(Long maxMessageSize) {
+			this.maxMessageSize = maxMessageSize;
+			return asBuilder();
+		}
 
-		// Parse unwrapJson string parameter properly  
-		Boolean unwrapJsonBool = null;
-		if (unwrapJson != null && !unwrapJson.trim().isEmpty()) {
-			unwrapJsonBool = Boolean.parseBoolean(unwrapJson.trim());
+		public Builder setFlushInterval(Long flushInterval) {
+			this.flushInterval = flushInterval;
+			return asBuilder();
 		}
-		
-		return new NewRelicBatchingAppender(name, filter, layout, true, apiKey, apiUrl, applicationName, batchSize,
-				maxMessageSize, flushInterval, queueCapacity, logType, customFields, mergeCustomFields, retries,
-				connectionTimeout, connPoolSize, obfuscationPatterns, unwrapJsonBool);
-	}
 
-	public void appendOld(LogEvent event) {
-		if (!checkEntryConditions()) {
-			logger.warn("Appender not initialized. Dropping log entry");
-			return;
+		public Builder setQueueCapacity(Long queueCapacity) {
+			this.queueCapacity = queueCapacity;
+			return asBuilder();
 		}
 
-		String message = new String(getLayout().toByteArray(event));
-		String loggerName = event.getLoggerName();
-		String logLevel = event.getLevel().name();
-		long timestamp = event.getTimeMillis(); // Capture the log creation timestamp
+		public Builder setCustomFields(String customFields) {
+			this.customFields = customFields;
+			return asBuilder();
+		}
 
-		// Extract MuleAppName from the message
-		String muleAppName = extractMuleAppName(message);
+		public Builder setMergeCustomFields(Boolean mergeCustomFields) {
+			this.mergeCustomFields = mergeCustomFields;
+			return asBuilder();
+		}
 
-		logger.debug("Queueing message for New Relic: " + message);
+		public Builder setMaxRetries(Integer maxRetries) {
+			this.maxRetries = maxRetries;
+			return asBuilder();
+		}
 
-		try {
-			// Extract custom fields from the event context
-			Map<String, Object> custom = new HashMap<>(extractcustom(event));
-			// Add static custom fields from configuration without a prefix
-			// for (Entry<String, Object> entry : this.customFields.entrySet()) {
-			// custom.putIfAbsent(entry.getKey(), entry.getValue());
-			// }
-			// Directly add to the queue
+		public Builder setTimeout(Long timeout) {
+			this.timeout = timeout;
+			return asBuilder();
+		}
 
-			// 1.1.3
-			// process message obfuscation patterns here
-			// obfuscationPatterns is a comma separated list of regex patterns
-			// that will be applied to the message
-			// if the pattern matches, the message will be obfuscated
-			// by replacing the matching substring with "****"
+		public Builder setConnPoolSize(Integer connPoolSize) {
+			this.connPoolSize = connPoolSize;
+			return asBuilder();
+		}
+
+		public Builder setOverflowPolicy(String overflowPolicy) {
+			this.overflowPolicy = overflowPolicy;
+			return asBuilder();
+		}
+
+		public Builder setOverflowMaxWait(Long overflowMaxWait) {
+			this.overflowMaxWait = overflowMaxWait;
+			return asBuilder();
+		}
+
+		public Builder setFlushOnEndOfBatch(Boolean flushOnEndOfBatch) {
+			this.flushOnEndOfBatch = flushOnEndOfBatch;
+			return asBuilder();
+		}
+
+		public Builder setEndOfBatchMinSize(Integer endOfBatchMinSize) {
+			this.endOfBatchMinSize = endOfBatchMinSize;
+			return asBuilder();
+		}
+
+		public Builder setEndOfBatchMinAge(Long endOfBatchMinAge) {
+			this.endOfBatchMinAge = endOfBatchMinAge;
+			return asBuilder();
+		}
+
+		public Builder setAdaptiveFlush(Boolean adaptiveFlush) {
+			this.adaptiveFlush = adaptiveFlush;
+			return asBuilder();
+		}
+
+		public Builder setLatencySlo(Long latencySlo) {
+			this.latencySlo = latencySlo;
+			return asBuilder();
+		}
+
+		public Builder setMaxLinger(Long maxLinger) {
+			this.maxLinger = maxLinger;
+			return asBuilder();
+		}
+
+		public Builder setFlushBytes(Long flushBytes) {
+			this.flushBytes = flushBytes;
+			return asBuilder();
+		}
+
+		public Builder setShutdownTimeout(Long shutdownTimeout) {
+			this.shutdownTimeout = shutdownTimeout;
+			return asBuilder();
+		}
+
+		public Builder setShutdownHook(Boolean shutdownHook) {
+			this.shutdownHook = shutdownHook;
+			return asBuilder();
+		}
+
+		public Builder setDestinations(String destinations) {
+			this.destinations = destinations;
+			return asBuilder();
+		}
+
+		public Builder setMaxInFlight(Integer maxInFlight) {
+			this.maxInFlight = maxInFlight;
+			return asBuilder();
+		}
 
-			if (obfuscationPatterns != null && !obfuscationPatterns.isEmpty()) {
-				message = MessageObfuscator.obfuscateMessage(message, obfuscationPatterns);
+		public Builder setDrainMinSize(Integer drainMinSize) {
+			this.drainMinSize = drainMinSize;
+			return asBuilder();
+		}
+
+		public Builder setRetryQueueCapacity(Long retryQueueCapacity) {
+			this.retryQueueCapacity = retryQueueCapacity;
+			return asBuilder();
+		}
+
+		public Builder setRetryMaxAge(Long retryMaxAge) {
+			this.retryMaxAge = retryMaxAge;
+			return asBuilder();
+		}
+
+		public Builder setRetryRatio(Integer retryRatio) {
+			this.retryRatio = retryRatio;
+			return asBuilder();
+		}
+
+		public Builder setLoggerQuotas(String loggerQuotas) {
+			this.loggerQuotas = loggerQuotas;
+			return asBuilder();
+		}
+
+		public Builder setStreamingCompression(Boolean streamingCompression) {
+			this.streamingCompression = streamingCompression;
+			return asBuilder();
+		}
+
+		public Builder setPrewarmConnections(Boolean prewarmConnections) {
+			this.prewarmConnections = prewarmConnections;
+			return asBuilder();
+		}
+
+		public Builder setKeepAlive(Long keepAlive) {
+			this.keepAlive = keepAlive;
+			return asBuilder();
+		}
+
+		public Builder setDnsCacheTtl(Long dnsCacheTtl) {
+			this.dnsCacheTtl = dnsCacheTtl;
+			return asBuilder();
+		}
+
+		public Builder setHeapPressureThreshold(Integer heapPressureThreshold) {
+			this.heapPressureThreshold = heapPressureThreshold;
+			return asBuilder();
+		}
+
+		public Builder setApplicationName(String applicationName) {
+			this.applicationName = applicationName;
+			return asBuilder();
+		}
+
+		public Builder setLogType(String logType) {
+			this.logType = logType;
+			return asBuilder();
+		}
+
+		public Builder setObfuscationPatterns(String obfuscationPatterns) {
+			this.obfuscationPatterns = obfuscationPatterns;
+			return asBuilder();
+		}
+
+		public Builder setUnwrapJson(String unwrapJson) {
+			this.unwrapJson = unwrapJson;
+			return asBuilder();
+		}
+
+		public Builder setStructuredExceptions(Boolean structuredExceptions) {
+			this.structuredExceptions = structuredExceptions;
+			return asBuilder();
+		}
+
+		public Builder setStackTraceCacheSize(Integer stackTraceCacheSize) {
+			this.stackTraceCacheSize = stackTraceCacheSize;
+			return asBuilder();
+		}
+
+		public Builder setStackTraceDedupMinutes(Long stackTraceDedupMinutes) {
+			this.stackTraceDedupMinutes = stackTraceDedupMinutes;
+			return asBuilder();
+		}
+
+		public Builder setSlowAppendThreshold(Long slowAppendThreshold) {
+			this.slowAppendThreshold = slowAppendThreshold;
+			return asBuilder();
+		}
+
+		public Builder setRenderThreads(Integer renderThreads) {
+			this.renderThreads = renderThreads;
+			return asBuilder();
+		}
+
+		public Builder setRenderQueueSize(Integer renderQueueSize) {
+			this.renderQueueSize = renderQueueSize;
+			return asBuilder();
+		}
+
+		public Builder setRedactKeys(String redactKeys) {
+			this.redactKeys = redactKeys;
+			return asBuilder();
+		}
+
+		public Builder setObfuscationBudget(Long obfuscationBudget) {
+			this.obfuscationBudget = obfuscationBudget;
+			return asBuilder();
+		}
+
+		public Builder setObfuscationOverrun(String obfuscationOverrun) {
+			this.obfuscationOverrun = obfuscationOverrun;
+			return asBuilder();
+		}
+
+		public Builder setMessageChunkSize(Integer messageChunkSize) {
+			this.messageChunkSize = messageChunkSize;
+			return asBuilder();
+		}
+
+		public Builder setHeavyHitters(Integer heavyHitters) {
+			this.heavyHitters = heavyHitters;
+			return asBuilder();
+		}
+
+		public Builder setHeavyHittersWindow(Long heavyHittersWindow) {
+			this.heavyHittersWindow = heavyHittersWindow;
+			return asBuilder();
+		}
 
+		@Override
+		public NewRelicBatchingAppender build() {
+			if (getName() == null) {
+				logger.error("No name provided for NewRelicBatchingAppender");
+				return null;
 			}
 
-			// 1.1.3
+			if (apiKey == null || apiUrl == null || applicationName == null) {
+				logger.error("API key, API URL, and application name must be provided for NewRelicBatchingAppender");
+				return null;
+			}
 
-			queue.add(new LogEntry(message, applicationName, muleAppName, logType, loggerName, logLevel, timestamp,
-					custom, mergeCustomFields));
-
-			// Check if the batch size is reached and flush immediately
-			if (queue.size() >= batchSize) {
-				if (attempt == 0) {
-					boolean bStatus = flushQueue();
-					if (!bStatus) {
-						attempt++;
-						logger.warn("Attempt {} failed. Retrying in next harvest cycle...", attempt);
-						logger.warn("batchsize check is now disabled due to unhealthy connection");
-					} else {
-						logger.debug("Batchsize-check: Successfully sent logs.");
-					}
-				} else {
-					logger.debug(
-							"Skipping {}/{} sending log entries to New Relic ( batchsize check )  - harvest cycle did not report healthy connection",
-							batchSize, queue.size());
+			OverflowPolicy policy = null;
+			if (overflowPolicy != null && !overflowPolicy.trim().isEmpty()) {
+				policy = OverflowPolicy.fromString(overflowPolicy);
+				if (policy == null) {
+					logger.warn("Unknown overflowPolicy '{}' for NewRelicBatchingAppender, using evict",
+							overflowPolicy);
 				}
 			}
-		} catch (Exception e) {
-			logger.error("Unable to insert log entry into log queue. ", e);
+
+			NewRelicPipelineManager.Settings settings = NewRelicPipelineManager.Settings.newBuilder()
+					.setApiKey(apiKey)
+					.setApiUrl(apiUrl)
+					.setBatchSize(batchSize)
+					.setMaxMessageSize(maxMessageSize)
+					.setFlushInterval(flushInterval)
+					.setQueueCapacity(queueCapacity)
+					.setCustomFields(customFields)
+					.setMergeCustomFields(mergeCustomFields)
+					.setMaxRetries(maxRetries)
+					.setTimeout(timeout)
+					.setConnPoolSize(connPoolSize)
+					.setOverflowPolicy(policy)
+					.setOverflowMaxWait(overflowMaxWait)
+					.setFlushOnEndOfBatch(flushOnEndOfBatch)
+					.setEndOfBatchMinSize(endOfBatchMinSize)
+					.setEndOfBatchMinAge(endOfBatchMinAge)
+					.setAdaptiveFlush(adaptiveFlush)
+					.setLatencySlo(latencySlo)
+					.setMaxLinger(maxLinger)
+					.setFlushBytes(flushBytes)
+					.setShutdownTimeout(shutdownTimeout)
+					.setShutdownHook(shutdownHook)
+					.setDestinations(destinations)
+					.setMaxInFlight(maxInFlight)
+					.setDrainMinSize(drainMinSize)
+					.setRetryQueueCapacity(retryQueueCapacity)
+					.setRetryMaxAge(retryMaxAge)
+					.setRetryRatio(retryRatio)
+					.setLoggerQuotas(loggerQuotas)
+					.setStreamingCompression(streamingCompression)
+					.setPrewarmConnections(prewarmConnections)
+					.setKeepAlive(keepAlive)
+					.setDnsCacheTtl(dnsCacheTtl)
+					.setHeapPressureThreshold(heapPressureThreshold).build();
+			return new NewRelicBatchingAppender(this, settings);
 		}
 	}
 
 	@Override
 	public void append(LogEvent event) {
+		AppenderEvents events = AppenderEvents.get();
+		if (events.isTimingAppends()) {
+			long start = System.nanoTime();
+			stageOrAppend(event);
+			long duration = System.nanoTime() - start;
+			if (duration >= slowAppendThresholdNanos) {
+				events.slowAppend(event.getLoggerName(), duration);
+			}
+		} else {
+			stageOrAppend(event);
+		}
+	}
+
+	/**
+	 * Hands a snapshot of the event to the render workers when they are enabled and
+	 * have room, otherwise formats and queues it on the calling thread.
+	 */
+	private void stageOrAppend(LogEvent event) {
+		if (renderStage != null) {
+			// Same snapshot as AsyncAppender: the event may be reused once we return
+			Log4jLogEvent snapshot = Log4jLogEvent.createMemento(event, includeLocation);
+			InternalAsyncUtil.makeMessageImmutable(snapshot.getMessage());
+			if (renderStage.offer(snapshot)) {
+				return;
+			}
+		}
+		doAppend(event);
+	}
+
+	private void doAppend(LogEvent event) {
 		if (!checkEntryConditions()) {
 			logger.warn("Appender not initialized. Dropping log entry");
 			return;
 		}
+		if (manager.isShuttingDown()) {
+			logger.debug("Appender is shutting down. Dropping log entry");
+			return;
+		}
 
-		String message = new String(getLayout().toByteArray(event));
-		
+		Layout<? extends Serializable> layout = getLayout();
+		byte[] bytes = layout.toByteArray(event);
+		String message = layout instanceof StringLayout ? new String(bytes, ((StringLayout) layout).getCharset())
+				: new String(bytes);
+		if (heavyHitters != null) {
+			heavyHitters.record(event.getLoggerName(), HeavyHitters.templateOf(event.getMessage()),
+					HeavyHitters.utf8Length(message));
+		}
 
 		
 		// Begin: Configurable JSON message processing (1.1.10) - unwrapJson=true means unwrap JSON
@@ -347,8 +722,7 @@ public class NewRelicBatchingAppender extends AbstractAppender {
 			if (message.startsWith("{") && message.contains("\"message\":")) {
 				try {
 					// Parse the Log4j2 JSON structure
-					com.fasterxml.jackson.databind.ObjectMapper mapper = new com.fasterxml.jackson.databind.ObjectMapper();
-					com.fasterxml.jackson.databind.JsonNode jsonNode = mapper.readTree(message);
+					com.fasterxml.jackson.databind.JsonNode jsonNode = jsonMapper.readTree(message);
 					
 					// Extract the actual message content from the "message" field
 					com.fasterxml.jackson.databind.JsonNode messageNode = jsonNode.get("message");
@@ -359,7 +733,7 @@ public class NewRelicBatchingAppender extends AbstractAppender {
 						if (actualMessage.startsWith("{") && actualMessage.endsWith("}")) {
 							try {
 								// Validate it's proper JSON by parsing it
-								mapper.readTree(actualMessage);
+								jsonMapper.readTree(actualMessage);
 								message = actualMessage;
 							} catch (Exception e) {
 								// Not valid JSON, keep as string
@@ -388,176 +762,160 @@ public class NewRelicBatchingAppender extends AbstractAppender {
 		// Extract MuleAppName from the message
 		String muleAppName = extractMuleAppName(message);
 
-		logger.debug("Queueing message for New Relic: " + message);
+		logger.debug("Queueing message for New Relic: {}", message);
 
 		try {
 			// Extract custom fields from the event context
-			Map<String, Object> custom = new HashMap<>(extractcustom(event));
+			ContextDataSnapshot custom = ContextDataSnapshot.capture(event.getContextData());
 			// Add static custom fields from configuration without a prefix
 			// for (Entry<String, Object> entry : this.customFields.entrySet()) {
 			// custom.putIfAbsent(entry.getKey(), entry.getValue());
 			// }
 			// Directly add to the queue
+			// Mask sensitive keys before the regexes see the message
+			if (redactor != null) {
+				message = redactor.redactJson(message);
+				custom.redact(redactor);
+			}
 			// 1.1.3
-			if (obfuscationPatterns != null && !obfuscationPatterns.isEmpty()) {
-				message = MessageObfuscator.obfuscateMessage(message, obfuscationPatterns);
-
+			if (obfuscator != null) {
+				message = obfuscate(message);
+				if (message == null) {
+					return; // dropped by obfuscationOverrun
+				}
 			}
 			// 1.1.3
 
-			queue.add(new LogEntry(message, applicationName, muleAppName, logType, loggerName, logLevel, timestamp,
-					custom, mergeCustomFields));
-
-			// Check if the batch size is reached and flush asynchronously
-			if (queue.size() >= batchSize) {
-				if (attempt == 0) {
-					flushQueueAsync();
-				} else {
-					logger.debug(
-							"Skipping {}/{} sending log entries to New Relic ( batchsize check )  - harvest cycle did not report healthy connection",
-							batchSize, queue.size());
+			// Repeats of the same failure share one rendered stack trace
+			ExceptionInfo error = stackTraceCache != null ? stackTraceCache.capture(event.getThrown()) : null;
+
+			if (messageChunkSize > 0) {
+				List<String> parts = MessagePart.split(message, messageChunkSize);
+				if (parts.size() > 1) {
+					// Queued as separate entries, so no batch has to carry the whole message
+					MessagePart[] numbered = MessagePart.number(parts.size());
+					for (int i = 0; i < parts.size(); i++) {
+						// The error attributes go with the first part only
+						manager.add(new LogEntry(parts.get(i), applicationName, muleAppName, logType, loggerName,
+								logLevel, timestamp, custom, i == 0 ? error : null, numbered[i]),
+								event.isEndOfBatch() && i == parts.size() - 1);
+					}
+					return;
 				}
 			}
+
+			manager.add(new LogEntry(message, applicationName, muleAppName, logType, loggerName, logLevel, timestamp,
+					custom, error), event.isEndOfBatch());
 		} catch (Exception e) {
 			logger.error("Unable to insert log entry into log queue. ", e);
 		}
 	}
 
-	private boolean flushQueue() {
-		List<LogEntry> batch = new ArrayList<>();
-		boolean bStatus = false;
-		queue.drainTo(batch, batchSize);
-		if (!batch.isEmpty()) {
-			logger.debug("Flushing {}/{} log entries to New Relic", batch.size(), queue.size() + batch.size());
-			bStatus = logForwarder.flush(batch, mergeCustomFields, customFields);
-		}
-		return bStatus;
-	}
-
-	private void flushQueueAsync() {
-		List<LogEntry> batch = new ArrayList<>();
-		queue.drainTo(batch, batchSize);
-
-		if (!batch.isEmpty()) {
-			logForwarder.flushAsync(batch, mergeCustomFields, customFields, new FlushCallback() {
-				@Override
-				public void onSuccess() {
-					logger.debug("Flush successful.");
-					attempt = 0; // Reset attempt counter on success
-				}
-
-				@Override
-				public void onFailure(List<Map<String, Object>> failedLogEvents) {
-					logger.warn("flushQueueAsync- Flush failed. Requeuing logs...");
-					requeueLogs(failedLogEvents);
-					attempt++;
-					if (attempt >= maxRetries) {
-						logger.error("flushQueueAsync- xhausted all retry attempts. Discarding logs.");
-						queue.clear();
-						attempt = 0; // Reset attempt counter after discarding
-						logger.debug("flushQueueAsync - Discarded log entries - batch size {}/ queue size {}   ",
-								batch.size(), queue.size());
-
-					}
-				}
-			});
+	/**
+	 * Runs the obfuscation patterns within the per-event budget and applies
+	 * obfuscationOverrun when they take longer.
+	 *
+	 * @return The message to send, or null if the event is to be dropped.
+	 */
+	private String obfuscate(String message) {
+		try {
+			return obfuscator.obfuscate(message);
+		} catch (DeadlineCharSequence.DeadlineExceededException | StackOverflowError e) {
+			// Deeply nested alternations can also exhaust the stack before the deadline
+			manager.getMetrics().recordObfuscationOverrun();
+			logger.debug("obfuscationPatterns ran past the budget on a {} character message, applying {}",
+					message.length(), obfuscationOverrun);
+			switch (obfuscationOverrun) {
+			case DROP:
+				return null;
+			case PASS:
+				return message;
+			default:
+				char[] masked = new char[message.length()];
+				Arrays.fill(masked, 'X');
+				return new String(masked);
+			}
 		}
 	}
 
-	private Map<String, Object> extractcustom(LogEvent event) {
-		Map<String, Object> custom = new HashMap<>();
-		event.getContextData().forEach(custom::put);
-		return custom;
-	}
-
 	private String extractMuleAppName(String message) {
-		Pattern pattern = Pattern.compile("\\[.*?\\]\\..*?\\[([^\\]]+)\\]");
-		Matcher matcher = pattern.matcher(message);
+		Matcher matcher = MULE_APP_NAME_PATTERN.matcher(message);
 		if (matcher.find()) {
 			return matcher.group(1);
 		}
 		return "generic";
 	}
 
-	private boolean checkEntryConditions() {
-		boolean initialized = logForwarder != null && logForwarder.isInitialized();
-		logger.debug("Check entry conditions: " + initialized);
-		return initialized;
+	/**
+	 * @return Delivery and throttling counters for this appender's pipeline, shared
+	 *         with any other appender using it.
+	 */
+	public AppenderMetrics getMetrics() {
+		return manager.getMetrics();
 	}
 
-	private void requeueLogs(List<Map<String, Object>> logEvents) {
-		for (Map<String, Object> logEvent : logEvents) {
-			try {
-				// Use LogForwarder to convert logEvent to LogEntry
-				LogEntry logEntry = logForwarder.convertToLogEntry(logEvent);
-				// Attempt to add the log entry back to the queue
-				boolean added = queue.add(logEntry);
-				if (!added) {
-					System.err.println("Failed to requeue log entry due to size constraints.");
-				}
-			} catch (IllegalArgumentException e) {
-				System.err.println("Failed to convert log event to LogEntry: " + logEvent);
-			}
-		}
+	/**
+	 * @return Number of queued entries evicted to make room for newer ones.
+	 */
+	public long getEvictedCount() {
+		return manager.getEvictedCount();
 	}
 
-	private void startFlushingTask() {
-		Runnable flushTask = () -> {
-			try {
-				logger.debug("Flushing task running... ");
-				List<LogEntry> batch = new ArrayList<>();
-				queue.drainTo(batch, batchSize);
-
-				if (!batch.isEmpty()) {
-					logger.debug("Flushing {}/{} log entries to New Relic", batch.size(), queue.size() + batch.size());
-
-					logForwarder.flushAsync(batch, mergeCustomFields, customFields, new FlushCallback() {
-						@Override
-						public void onSuccess() {
-							logger.debug("Harvest Cycle: Successfully sent logs.");
-							attempt = 0; // Reset attempt counter on success
-						}
+	/**
+	 * @return Number of entries that were never queued because the buffer stayed
+	 *         full (dropNew, or block when interrupted or closed).
+	 */
+	public long getDroppedCount() {
+		return manager.getDroppedCount();
+	}
 
-						@Override
-						public void onFailure(List<Map<String, Object>> failedLogEvents) {
-							logger.warn(" startFlushingTask- Flush failed. Requeuing logs...");
-							requeueLogs(failedLogEvents);
-							attempt++;
-							if (attempt >= maxRetries) {
-								logger.error("startFlushingTask- Exhausted all retry attempts. Discarding logs.");
-								queue.clear();
-								attempt = 0; // Reset attempt counter after discarding
-								logger.debug("Discarded log entries - batch size {}/ queue size {}   ", batch.size(),
-										queue.size());
+	/**
+	 * @return The bytes queued per logger prefix, see {@link ByteQuotas#usage()},
+	 *         or an empty map when no loggerQuotas are configured.
+	 */
+	public Map<String, Long> getQuotaUsage() {
+		return manager.getQuotaUsage();
+	}
 
-							}
-						}
-					});
-				}
-			} catch (Exception e) {
-				logger.error("Error during flushing task", e);
-			}
-		};
+	/**
+	 * @return The queue's capacity in bytes, lowered from queueCapacity while the
+	 *         heap is under pressure.
+	 */
+	public long getQueueCapacity() {
+		return manager.getQueueCapacity();
+	}
 
-		scheduler.scheduleAtFixedRate(flushTask, 0, flushInterval, TimeUnit.MILLISECONDS);
+	/**
+	 * @return The noisiest loggers and message templates, or null when
+	 *         heavyHitters is not configured.
+	 */
+	public HeavyHitters getHeavyHitters() {
+		return heavyHitters;
+	}
 
-		// Log the configuration settings in use
-		logger.info(
-				"NewRelicBatchingAppender initialized with settings: batchSize={}, maxMessageSize={}, flushInterval={}, queueCapacity={}, maxRetries={}, mergeCustomFields={}, connPoolSize={}",
-				batchSize, maxMessageSize, flushInterval, queueCapacity, maxRetries, mergeCustomFields, connPoolSize);
+	/**
+	 * @return The pipeline this appender sends through.
+	 */
+	public NewRelicPipelineManager getManager() {
+		return manager;
+	}
+
+	private boolean checkEntryConditions() {
+		boolean initialized = manager.isInitialized();
+		logger.debug("Check entry conditions: {}", initialized);
+		return initialized;
 	}
 
 	// Method to shut down the scheduler gracefully
 	public void shutdown() {
-		flushQueueAsync(); // Flush remaining logs
-		scheduler.shutdown();
-		try {
-			if (!scheduler.awaitTermination(60, TimeUnit.SECONDS)) {
-				scheduler.shutdownNow();
-			}
-		} catch (InterruptedException e) {
-			scheduler.shutdownNow();
-			Thread.currentThread().interrupt();
+		manager.shutdown();
+	}
+
+	@Override
+	public void start() {
+		super.start();
+		if (heavyHitters != null) {
+			heavyHitters.register(getName());
 		}
 	}
 
@@ -565,26 +923,32 @@ public class NewRelicBatchingAppender extends AbstractAppender {
 	public boolean stop(final long timeout, final TimeUnit timeUnit) {
 		logger.debug("Stopping NewRelicBatchingAppender {}", getName());
 		setStopping();
-		final boolean stopped = super.stop(timeout, timeUnit, false);
-
-		try {
-			// Close the log forwarder, flushing any remaining logs
-			logForwarder.close(mergeCustomFields, customFields);
-
-			// Shut down the ScheduledExecutorService
-			scheduler.shutdown();
-			if (!scheduler.awaitTermination(timeout, timeUnit)) {
-				scheduler.shutdownNow(); // Force shutdown if not terminated within the timeout
-				if (!scheduler.awaitTermination(timeout, timeUnit)) {
-					logger.error("Scheduler did not terminate");
-				}
+		if (heavyHitters != null) {
+			heavyHitters.unregister();
+		}
+		boolean stopped = super.stop(timeout, timeUnit, false);
+
+		long stopTimeout = timeout;
+		TimeUnit stopTimeUnit = timeUnit;
+		if (renderStage != null) {
+			// Staged events go to the pipeline first; it drains in the time left
+			long budget = timeout > 0 ? timeUnit.toMillis(timeout) : manager.getSettings().shutdownTimeout;
+			long deadline = System.currentTimeMillis() + budget;
+			int abandoned = renderStage.stop(deadline);
+			if (abandoned > 0) {
+				logger.warn("NewRelicBatchingAppender {}: {} log events were not rendered before the stop timeout",
+						getName(), abandoned);
+				stopped = false;
 			}
-		} catch (Exception e) {
-			logger.error("Unable to close appender", e);
+			stopTimeout = Math.max(1, deadline - System.currentTimeMillis());
+			stopTimeUnit = TimeUnit.MILLISECONDS;
 		}
 
+		// Drains the pipeline within the stop timeout if no other appender uses it
+		stopped &= manager.stop(stopTimeout, stopTimeUnit);
+
 		setStopped();
 		logger.debug("NewRelicBatchingAppender {} has been stopped", getName());
 		return stopped;
 	}
-}
\ No newline at end of file
+}
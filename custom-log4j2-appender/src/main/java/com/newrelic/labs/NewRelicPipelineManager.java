@@ -0,0 +1,1224 @@
+package com.newrelic.labs;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.appender.AbstractManager;
+import org.apache.logging.log4j.core.appender.ManagerFactory;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import com.newrelic.labs.NRCostBoundedConcurrentQueue.CostAssigner;
+
+/**
+ * Queue, HTTP client and harvest scheduling shared by every
+ * NewRelicBatchingAppender that sends to the same endpoint with the same key and
+ * pipeline settings. Managers are reference counted by Log4j: a reconfiguration
+ * creates the new appenders before stopping the old ones, so an unchanged
+ * pipeline carries on with its queue, connections and in-flight requests. A
+ * pipeline is only drained and closed when its last appender is stopped.
+ */
+public class NewRelicPipelineManager extends AbstractManager {
+
+	private static final Logger logger = StatusLogger.getLogger();
+	private static final PipelineFactory FACTORY = new PipelineFactory();
+
+	private final Settings settings;
+	private final NRBufferWithFifoEviction<LogEntry> queue;
+	// Entries requeued after a failed or throttled send, kept apart so they cannot
+	// evict or hold up fresh entries
+	private final NRBufferWithFifoEviction<LogEntry> retryQueue;
+	private int freshSinceRetry = 0; // fresh batches since the last retry batch; races only skew the interleave
+	private final LogForwarder logForwarder;
+	private final AppenderMetrics metrics = new AppenderMetrics();
+	private final ScheduledThreadPoolExecutor scheduler = createScheduler();
+	private int attempt = 0; // Track attempts across harvest cycles
+	// Time the oldest entry still waiting in the queue was logged, 0 when none
+	private final AtomicLong pendingSince = new AtomicLong(0);
+	private final AdaptiveLinger adaptiveLinger; // null when the fixed flushInterval is used
+	private final CompressionStage compressionStage; // null unless streamingCompression is enabled
+	private final HeapPressureMonitor heapPressureMonitor; // null unless heapPressureThreshold is set
+	private final Object flushScheduleLock = new Object();
+	private ScheduledFuture<?> nextFlush; // guarded by flushScheduleLock
+	private long nextFlushAt = Long.MAX_VALUE; // guarded by flushScheduleLock
+	private Runnable harvestTask;
+	// Set by the first logging thread that finds a flush due, cleared when the flush
+	// thread picks the request up
+	private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+	private final Runnable requestedFlush = () -> {
+		flushRequested.set(false);
+		harvestTask.run();
+	};
+	private final AtomicBoolean shutdownStarted = new AtomicBoolean(false);
+	private Thread shutdownHookThread;
+
+	/**
+	 * @return The running pipeline for these settings, or a new one when no
+	 *         appender uses them yet. Every call must be paired with a
+	 *         {@link #stop(long, TimeUnit)}.
+	 */
+	public static NewRelicPipelineManager getPipeline(Settings settings) {
+		return getManager(settings.pipelineName(), FACTORY, settings);
+	}
+
+	private NewRelicPipelineManager(String name, Settings settings) {
+		super(null, name);
+		this.settings = settings;
+
+		// Define the cost assigner for LogEntry
+		CostAssigner<LogEntry> logEntryCostAssigner = logEntry -> {
+			long cost = 0;
+
+			// Include the length of the message
+			if (logEntry.getMessage() != null) {
+				cost += logEntry.getMessage().length();
+			}
+
+			// Include the length of the application name
+			if (logEntry.getApplicationName() != null) {
+				cost += logEntry.getApplicationName().length();
+			}
+
+			// Include the length of the log type
+			if (logEntry.getLogType() != null) {
+				cost += logEntry.getLogType().length();
+			}
+
+			// Include the length of the name
+			if (logEntry.getName() != null) {
+				cost += logEntry.getName().length();
+			}
+
+			// Include the length of the LogLevel
+			if (logEntry.getSeverity() != null) {
+				cost += logEntry.getSeverity().length();
+			}
+
+			// Include the length of the Logger Name
+			if (logEntry.getLogger() != null) {
+				cost += logEntry.getLogger().length();
+			}
+
+			// Include the size of the timestamp (8 bytes for a long)
+			cost += Long.BYTES;
+
+			// Include the cost of the custom fields
+			if (logEntry.getProperties() instanceof ContextDataSnapshot) {
+				cost += ((ContextDataSnapshot) logEntry.getProperties()).cost();
+			} else if (logEntry.getProperties() != null) {
+				for (Map.Entry<String, Object> entry : logEntry.getProperties().entrySet()) {
+					// Add the length of the key
+					cost += entry.getKey().length();
+
+					// If the value is a string, add its length
+					if (entry.getValue() instanceof String) {
+						cost += ((String) entry.getValue()).length();
+					} else if (entry.getValue() != null) {
+						// If the value is not a string, add a generic cost
+						// This can be adjusted based on your specific use case
+						cost += entry.getValue().toString().length();
+					}
+				}
+			}
+
+			// Include the error attributes, if any
+			if (logEntry.getError() != null) {
+				cost += logEntry.getError().cost();
+			}
+			if (logEntry.getPart() != null) {
+				cost += logEntry.getPart().cost();
+			}
+
+			return cost;
+		};
+
+		this.queue = new NRBufferWithFifoEviction<>(settings.queueCapacity, logEntryCostAssigner,
+				settings.overflowPolicy, settings.overflowMaxWait);// 1.1.0
+		if (!settings.loggerQuotas.isEmpty()) {
+			ByteQuotas<LogEntry> quotas = new ByteQuotas<>(settings.loggerQuotas, settings.queueCapacity,
+					LogEntry::getLogger);
+			if (!quotas.isEmpty()) {
+				this.queue.setQuotas(quotas);
+			}
+		}
+		this.retryQueue = new NRBufferWithFifoEviction<>(settings.retryQueueCapacity, logEntryCostAssigner);
+		this.logForwarder = new LogForwarder(settings.apiKey, settings.apiUrl, settings.maxMessageSize, this.queue,
+				settings.maxRetries, settings.timeout, settings.connPoolSize, settings.maxInFlight,
+				LogDestination.parse(settings.destinations, settings.maxInFlight), metrics, this.retryQueue,
+				settings.keepAlive, settings.dnsCacheTtl);
+		if (settings.streamingCompression) {
+			// Fresh entries are compressed as they arrive; the harvest keeps the retry lane
+			if (settings.adaptiveFlush || settings.flushOnEndOfBatch) {
+				logger.warn("adaptiveFlush and flushOnEndOfBatch do not apply with streamingCompression");
+			}
+			this.adaptiveLinger = null;
+			this.compressionStage = new CompressionStage("NewRelicBatchingAppender-compress", queue,
+					logForwarder, settings.batchSize, settings.flushInterval, settings.mergeCustomFields,
+					settings.customFields, () -> attempt == 0, this::harvestCallback).start();
+		} else if (settings.adaptiveFlush) {
+			// The fixed flushInterval becomes the upper bound of the linger
+			this.adaptiveLinger = new AdaptiveLinger(settings.latencySlo, settings.maxLinger, settings.flushBytes);
+			this.compressionStage = null;
+		} else {
+			this.adaptiveLinger = null;
+			this.compressionStage = null;
+		}
+
+		// Producers about to park on a full buffer kick off a drain instead of waiting
+		// for the next harvest cycle
+		if (settings.overflowPolicy == OverflowPolicy.BLOCK
+				|| settings.overflowPolicy == OverflowPolicy.BLOCK_WITH_TIMEOUT) {
+			this.queue.setOverflowListener(() -> {
+				if (compressionStage != null) {
+					compressionStage.wake();
+				} else if (attempt == 0) {
+					requestFlush();
+				}
+			});
+		}
+
+		startFlushingTask();
+		// Both lanes hold entries through an outage, so both give way under heap pressure
+		this.heapPressureMonitor = settings.heapPressureThreshold > 0
+				? new HeapPressureMonitor(settings.heapPressureThreshold, metrics, scheduler, queue, retryQueue).start()
+				: null;
+		if (settings.prewarmConnections) {
+			startPrewarming();
+		}
+
+		// For deployments where Log4j's own shutdown is not wired up
+		if (settings.shutdownHook) {
+			registerShutdownHook();
+		}
+	}
+
+	/**
+	 * Single daemon thread, so a pipeline that is never stopped cannot keep the JVM
+	 * alive. Pending delayed harvests are dropped on shutdown so that stopping does
+	 * not wait for them.
+	 */
+	private static ScheduledThreadPoolExecutor createScheduler() {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "NewRelicBatchingAppender-flush");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		return executor;
+	}
+
+	public Settings getSettings() {
+		return settings;
+	}
+
+	public boolean isInitialized() {
+		return logForwarder.isInitialized();
+	}
+
+	public boolean isShuttingDown() {
+		return shutdownStarted.get();
+	}
+
+	/**
+	 * Queues one entry and starts a flush when the batch size, the end-of-batch
+	 * rule or the adaptive byte target says so.
+	 *
+	 * @param endOfBatch Whether the event was the last of a batch handed over by an
+	 *                   AsyncLogger or AsyncAppender.
+	 */
+	public void add(LogEntry entry, boolean endOfBatch) {
+		relieveQueue();
+		if (compressionStage != null) {
+			// The open batch decides when to send
+			if (queue.add(entry)) {
+				compressionStage.wake();
+			}
+			return;
+		}
+		if (queue.add(entry)) {
+			boolean firstPending = pendingSince.compareAndSet(0, waitingSince(entry, System.currentTimeMillis()));
+			if (adaptiveLinger != null) {
+				adaptiveLinger.recordArrival();
+				if (firstPending) {
+					// Pull the next harvest in so this entry is delivered within the SLO
+					scheduleFlush(adaptiveLinger.firstArrivalDelay(logForwarder.getSendTime()));
+				}
+			}
+		}
+
+		// Check if the batch size is reached and ask the flush thread to send; nothing
+		// to check while a flush is already pending
+		if (!flushRequested.get() && (queue.size() >= settings.batchSize || isEndOfBatchFlushDue(endOfBatch)
+				|| (adaptiveLinger != null && adaptiveLinger.isFull(queue.cost())))) {
+			if (attempt == 0) {
+				requestFlush();
+			} else {
+				logger.debug(
+						"Skipping {}/{} sending log entries to New Relic ( batchsize check )  - harvest cycle did not report healthy connection",
+						settings.batchSize, queue.size());
+			}
+		}
+	}
+
+	/**
+	 * Asks the flush thread to drain the queue now. Only the first request after a
+	 * drain has started submits a task; later ones return right away, so logging
+	 * threads never form or send batches themselves and a full queue does not set
+	 * off a stampede of small concurrent requests.
+	 */
+	private void requestFlush() {
+		if (flushRequested.compareAndSet(false, true)) {
+			try {
+				scheduler.execute(requestedFlush);
+			} catch (RejectedExecutionException e) {
+				logger.debug("Pipeline is stopping, flush not scheduled");
+			}
+		}
+	}
+
+	/**
+	 * Lets the logging thread send one batch itself once the queue is three
+	 * quarters full, waiting up to overflowMaxWait for a free send slot first. A
+	 * burst then slows down to the rate batches can be sent, and the work is spread
+	 * over the logging threads, instead of the single flush thread falling behind
+	 * and entries that could still be delivered being evicted. Skipped while sends
+	 * fail or are paused: the queue then holds what it can, as overflowPolicy says.
+	 */
+	private void relieveQueue() {
+		if (queue.cost() < queue.getCapacity() / 4 * 3 || attempt != 0 || logForwarder.isPaused()
+				|| shutdownStarted.get()) {
+			return;
+		}
+		if (!logForwarder.awaitSendSlot(System.currentTimeMillis() + settings.overflowMaxWait)) {
+			return;
+		}
+		List<LogEntry> batch = new ArrayList<>();
+		queue.drainTo(batch, settings.batchSize);
+		if (batch.isEmpty()) {
+			return;
+		}
+		logger.debug("Queue nearly full, sending {} log entries from a logging thread", batch.size());
+		logForwarder.flushAsync(batch, settings.mergeCustomFields, settings.customFields,
+				harvestCallback(batch.size()), false);
+	}
+
+	/**
+	 * When running behind an AsyncLogger or AsyncAppender, end-of-batch signals that
+	 * the producer side has drained. Flushing then, once a minimum fill or age is
+	 * reached, gives prompt delivery at low volume and full batches at high volume.
+	 */
+	private boolean isEndOfBatchFlushDue(boolean endOfBatch) {
+		if (!settings.flushOnEndOfBatch || !endOfBatch) {
+			return false;
+		}
+		if (queue.size() >= settings.endOfBatchMinSize) {
+			return true;
+		}
+		long since = pendingSince.get();
+		return since != 0 && System.currentTimeMillis() - since >= settings.endOfBatchMinAge;
+	}
+
+	/**
+	 * @return When the entry started waiting: its event time, which is no later
+	 *         than the time it was queued, so that time spent in an AsyncLogger
+	 *         ring or on a render worker counts as well.
+	 */
+	private static long waitingSince(LogEntry entry, long now) {
+		long timestamp = entry.getTimestamp();
+		return timestamp > 0 && timestamp < now ? timestamp : now;
+	}
+
+	/**
+	 * Drains up to batchSize entries; the age of whatever is left runs from the
+	 * oldest remaining entry.
+	 * Every retryRatio fresh batches, the batch comes from the retry lane instead,
+	 * and either lane is used when the other one is empty.
+	 */
+	private boolean drainBatch(List<LogEntry> batch) {
+		boolean retries = false;
+		boolean retryTurn = freshSinceRetry >= settings.retryRatio || queue.size() == 0;
+		if (retryTurn && drainRetries(batch) > 0) {
+			freshSinceRetry = 0;
+			retries = true;
+		} else {
+			queue.drainTo(batch, settings.batchSize);
+			if (batch.isEmpty()) {
+				retries = drainRetries(batch) > 0;
+			} else {
+				freshSinceRetry++;
+			}
+		}
+		LogEntry oldest = queue.peek();
+		pendingSince.set(oldest != null ? waitingSince(oldest, System.currentTimeMillis()) : 0);
+		AppenderEvents events = AppenderEvents.get();
+		if (!batch.isEmpty() && events.isRecordingBatches()) {
+			long cost = 0;
+			for (LogEntry entry : batch) {
+				cost += queue.cost(entry);
+			}
+			events.batchDrained(batch.size(), cost);
+		}
+		return retries;
+	}
+
+	/**
+	 * Drains up to batchSize requeued entries, dropping those older than
+	 * retryMaxAge.
+	 *
+	 * @return The number of entries added to the batch.
+	 */
+	private int drainRetries(List<LogEntry> batch) {
+		int start = batch.size();
+		long oldest = System.currentTimeMillis() - settings.retryMaxAge;
+		while (batch.size() == start && retryQueue.size() > 0) {
+			retryQueue.drainTo(batch, settings.batchSize);
+			int expired = 0;
+			for (int i = batch.size() - 1; i >= start; i--) {
+				if (batch.get(i).getTimestamp() < oldest) {
+					batch.remove(i);
+					expired++;
+				}
+			}
+			if (expired > 0) {
+				metrics.recordExpiredRetries(expired);
+				logger.debug("Dropped {} requeued log entries older than {} ms", expired, settings.retryMaxAge);
+			}
+		}
+		return batch.size() - start;
+	}
+
+	/**
+	 * Gives up on everything in the retry lane once maxRetries sends in a row have
+	 * failed. Fresh entries are kept.
+	 */
+	private void discardRetries() {
+		int discarded = retryQueue.size();
+		retryQueue.clear();
+		metrics.recordDiscardedRetries(discarded);
+	}
+
+	/**
+	 * @return Delivery and throttling counters for this pipeline.
+	 */
+	public AppenderMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return Number of queued or requeued entries evicted to make room for newer
+	 *         ones.
+	 */
+	public long getEvictedCount() {
+		return queue.getEvictedCount() + retryQueue.getEvictedCount();
+	}
+
+	/**
+	 * @return Number of entries that were never queued because the buffer stayed
+	 *         full (dropNew, or block when interrupted or closed).
+	 */
+	public long getDroppedCount() {
+		return queue.getDroppedCount();
+	}
+
+	/**
+	 * @return The queue's capacity in bytes; lower than queueCapacity while heap
+	 *         pressure has reduced it.
+	 */
+	public long getQueueCapacity() {
+		return queue.getCapacity();
+	}
+
+	HeapPressureMonitor getHeapPressureMonitor() {
+		return heapPressureMonitor;
+	}
+
+	/**
+	 * @return The bytes queued per logger prefix, or an empty map when no
+	 *         loggerQuotas are configured.
+	 */
+	public Map<String, Long> getQuotaUsage() {
+		ByteQuotas<LogEntry> quotas = queue.getQuotas();
+		return quotas != null ? quotas.usage() : Collections.<String, Long>emptyMap();
+	}
+
+	public List<LogDestination> getDestinations() {
+		return logForwarder.getDestinations();
+	}
+
+	private void requeueLogs(List<Map<String, Object>> logEvents) {
+		AppenderEvents.get().requeued(logEvents.size());
+		for (Map<String, Object> logEvent : logEvents) {
+			try {
+				// Use LogForwarder to convert logEvent to LogEntry
+				LogEntry logEntry = logForwarder.convertToLogEntry(logEvent);
+				// Attempt to add the log entry to the retry lane
+				boolean added = retryQueue.add(logEntry, OverflowPolicy.EVICT);
+				if (!added) {
+					System.err.println("Failed to requeue log entry due to size constraints.");
+				}
+			} catch (IllegalArgumentException e) {
+				System.err.println("Failed to convert log event to LogEntry: " + logEvent);
+			}
+		}
+	}
+
+	private void startFlushingTask() {
+		harvestTask = () -> {
+			try {
+				logger.debug("Flushing task running... ");
+				if (logForwarder.isPaused()) {
+					logger.debug("Sending is paused for another {} ms, skipping harvest",
+							logForwarder.getDestinations().get(0).getRateLimiter().remainingPause());
+					return;
+				}
+				// Keep going while a backlog is left and a send slot is free. The flush
+				// thread never waits for a slot: once they are all taken, the next
+				// completed send requests another harvest.
+				int batches = 0;
+				do {
+					List<LogEntry> batch = new ArrayList<>();
+					boolean retries;
+					if (compressionStage != null) {
+						retries = drainRetries(batch) > 0;
+					} else {
+						retries = drainBatch(batch);
+					}
+					if (batch.isEmpty()) {
+						break;
+					}
+					batches++;
+					logger.debug("Flushing {}/{} log entries to New Relic", batch.size(), queue.size() + batch.size());
+					logForwarder.flushAsync(batch, settings.mergeCustomFields, settings.customFields,
+							harvestCallback(batch.size()), retries);
+				} while (isBacklogged() && logForwarder.hasSendSlot());
+				if (batches > 1) {
+					logger.debug("Harvest Cycle: sent {} batches, {} log entries left in the queue", batches,
+							queue.size());
+				}
+			} catch (Exception e) {
+				logger.error("Error during flushing task", e);
+			}
+		};
+
+		if (adaptiveLinger != null) {
+			scheduleFlush(0);
+		} else {
+			// A new pipeline starts empty, so the first harvest is one interval away
+			scheduler.scheduleAtFixedRate(harvestTask, settings.flushInterval, settings.flushInterval,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Opens the pooled connections now, so the first batch does not pay for DNS,
+	 * TCP and TLS. After that, connections are only kept from reaching keepAlive
+	 * while payloads have been sent within it; an idle pipeline lets them close.
+	 */
+	private void startPrewarming() {
+		long interval = Math.max(1, settings.keepAlive * 3 / 4);
+		scheduler.execute(logForwarder::prewarm);
+		scheduler.scheduleAtFixedRate(() -> {
+			if (logForwarder.hasSentWithin(settings.keepAlive)) {
+				logForwarder.prewarm();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return true while at least drainMinSize entries are queued and nothing
+	 *         suggests holding back: no failed send, no pause and no shutdown.
+	 */
+	private boolean isBacklogged() {
+		return queue.size() + retryQueue.size() >= settings.drainMinSize && attempt == 0 && !logForwarder.isPaused()
+				&& !shutdownStarted.get();
+	}
+
+	private FlushCallback harvestCallback(final int batchSize) {
+		return new FlushCallback() {
+			@Override
+			public void onSuccess() {
+				logger.debug("Harvest Cycle: Successfully sent logs.");
+				attempt = 0; // Reset attempt counter on success
+				// A slot is free again; keep working through the backlog
+				if (isBacklogged()) {
+					requestFlush();
+				}
+			}
+
+			@Override
+			public void onFailure(List<Map<String, Object>> failedLogEvents) {
+				logger.warn(" startFlushingTask- Flush failed. Requeuing logs...");
+				requeueLogs(failedLogEvents);
+				attempt++;
+				if (attempt >= settings.maxRetries) {
+					logger.error("startFlushingTask- Exhausted all retry attempts. Discarding requeued logs.");
+					discardRetries();
+					attempt = 0; // Reset attempt counter after discarding
+					logger.debug("Discarded log entries - batch size {}/ queue size {}   ", batchSize,
+							queue.size());
+
+				}
+			}
+
+			@Override
+			public void onThrottled(List<Map<String, Object>> throttledLogEvents) {
+				logger.warn("startFlushingTask- Throttled by New Relic, pausing sends for {} ms. Requeuing logs...",
+						logForwarder.getDestinations().get(0).getRateLimiter().remainingPause());
+				requeueLogs(throttledLogEvents);
+			}
+
+			@Override
+			public void onRejected(List<Map<String, Object>> rejectedLogEvents, int statusCode) {
+				logger.error("startFlushingTask- New Relic rejected {} log entries with status {}. Discarding logs.",
+						rejectedLogEvents.size(), statusCode);
+			}
+		};
+	}
+
+	/**
+	 * Schedules the next adaptive harvest in delay milliseconds, unless one is
+	 * already due earlier. Only one harvest is pending at any time: a run whose
+	 * deadline has been superseded does nothing.
+	 */
+	private void scheduleFlush(long delay) {
+		synchronized (flushScheduleLock) {
+			long at = System.currentTimeMillis() + delay;
+			if (nextFlushAt <= at || scheduler.isShutdown()) {
+				return;
+			}
+			if (nextFlush != null) {
+				nextFlush.cancel(false);
+			}
+			final long deadline = at;
+			try {
+				nextFlush = scheduler.schedule(() -> runAdaptiveHarvest(deadline), delay, TimeUnit.MILLISECONDS);
+				nextFlushAt = deadline;
+			} catch (RejectedExecutionException e) {
+				logger.debug("Pipeline is stopping, adaptive flush not scheduled");
+			}
+		}
+	}
+
+	private void runAdaptiveHarvest(long deadline) {
+		synchronized (flushScheduleLock) {
+			if (nextFlushAt != deadline) {
+				return; // superseded by an earlier deadline
+			}
+			nextFlushAt = Long.MAX_VALUE;
+			nextFlush = null;
+		}
+		try {
+			harvestTask.run();
+		} finally {
+			// A paused harvest leaves the queue as it is; run again once the pause ends
+			long delay = adaptiveLinger.nextDelay(queue.cost(), queue.size(), pendingSince.get(),
+					logForwarder.getSendTime());
+			scheduleFlush(Math.max(delay,
+					logForwarder.getDestinations().get(0).getRateLimiter().remainingPause()));
+		}
+	}
+
+	/**
+	 * Drains and closes the pipeline within shutdownTimeout, whether or not other
+	 * appenders still use it.
+	 */
+	public void shutdown() {
+		drainOnShutdown(System.currentTimeMillis() + settings.shutdownTimeout);
+	}
+
+	/**
+	 * Called by Log4j once the last appender using this pipeline has been stopped.
+	 */
+	@Override
+	protected boolean releaseSub(final long timeout, final TimeUnit timeUnit) {
+		boolean drained = true;
+		try {
+			// Send any remaining logs within the stop timeout
+			long budget = timeout > 0 ? timeUnit.toMillis(timeout) : settings.shutdownTimeout;
+			drainOnShutdown(System.currentTimeMillis() + budget);
+		} catch (Exception e) {
+			logger.error("Unable to close New Relic pipeline " + getName(), e);
+			drained = false;
+		}
+		removeShutdownHook();
+		return drained;
+	}
+
+	/**
+	 * Stops harvesting, sends everything still queued as concurrent batches and
+	 * waits for in-flight requests until the deadline. Requests still running at
+	 * the deadline are cancelled and their entries reported as lost. Runs once.
+	 *
+	 * @param deadline Wall-clock time in milliseconds.
+	 */
+	private void drainOnShutdown(long deadline) {
+		if (!shutdownStarted.compareAndSet(false, true)) {
+			return;
+		}
+		queue.close(); // Release producers parked on a full buffer
+		if (heapPressureMonitor != null) {
+			heapPressureMonitor.stop();
+		}
+		logForwarder.cancelSendSlotWaits(); // Stop harvests and the compression stage taking send slots
+
+		// Let a running harvest hand its batch to the forwarder, then stop the timer
+		scheduler.shutdown();
+		try {
+			if (!scheduler.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()),
+					TimeUnit.MILLISECONDS)) {
+				scheduler.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			scheduler.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		// The open batch goes out first; the rounds below send what is still queued
+		if (compressionStage != null && !compressionStage.stop(deadline)) {
+			logger.warn("New Relic pipeline {}: compression stage was interrupted at the shutdown deadline",
+					getName());
+		}
+
+		final AtomicLong delivered = new AtomicLong(0);
+		final AtomicLong failed = new AtomicLong(0);
+		final AtomicBoolean deadlinePassed = new AtomicBoolean(false);
+		long drained = 0;
+		int batches = 0;
+		int failedRounds = 0;
+		long abandoned = 0;
+		// Throttled batches go back in the queue for another round after the pause;
+		// failed batches too, up to maxRetries rounds
+		for (int round = 0;; round++) {
+			final boolean retryFailures = failedRounds < settings.maxRetries;
+			final AtomicBoolean roundFailed = new AtomicBoolean(false);
+			while (true) {
+				List<LogEntry> batch = new ArrayList<>();
+				queue.drainTo(batch, settings.batchSize);
+				boolean retries = batch.isEmpty() && drainRetries(batch) > 0;
+				if (batch.isEmpty()) {
+					break;
+				}
+				if (round == 0) {
+					drained += batch.size();
+				}
+				batches++;
+				logForwarder.flushAsync(batch, settings.mergeCustomFields, settings.customFields, new FlushCallback() {
+					@Override
+					public void onSuccess() {
+					}
+
+					@Override
+					public void onSuccess(int sentCount) {
+						delivered.addAndGet(sentCount);
+					}
+
+					@Override
+					public void onFailure(List<Map<String, Object>> failedLogEvents) {
+						// Calls cancelled at the deadline are already counted as in flight
+						if (deadlinePassed.get()) {
+							return;
+						}
+						if (retryFailures) {
+							roundFailed.set(true);
+							requeueLogs(failedLogEvents);
+						} else {
+							failed.addAndGet(failedLogEvents.size());
+						}
+					}
+
+					@Override
+					public void onThrottled(List<Map<String, Object>> throttledLogEvents) {
+						if (!deadlinePassed.get()) {
+							requeueLogs(throttledLogEvents);
+						}
+					}
+				}, retries);
+			}
+			pendingSince.set(0);
+
+			if (!logForwarder.awaitInFlight(deadline)) {
+				deadlinePassed.set(true);
+				abandoned = logForwarder.getInFlightEvents();
+				logger.warn("New Relic pipeline {}: {} requests still in flight at the shutdown deadline, cancelling",
+						getName(), logForwarder.getInFlightCalls());
+				break;
+			}
+			if (queue.size() == 0 && retryQueue.size() == 0) {
+				break;
+			}
+			if (roundFailed.get()) {
+				failedRounds++;
+			}
+			// Wait out the pause set by the throttled or failed send, if it ends in time
+			long pause = logForwarder.getDestinations().get(0).getRateLimiter().remainingPause();
+			if (System.currentTimeMillis() + pause >= deadline) {
+				break;
+			}
+			if (pause > 0) {
+				try {
+					Thread.sleep(pause);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		logForwarder.shutdown();
+
+		// Entries requeued but not sent again before the deadline are lost too
+		long lost = abandoned + failed.get() + queue.size() + retryQueue.size();
+		queue.clear();
+		retryQueue.clear();
+		if (lost > 0) {
+			logger.warn("New Relic pipeline {} shut down: sent {} of {} queued log entries in {} batches, {} lost",
+					getName(), delivered.get(), drained, batches, lost);
+		} else {
+			logger.debug("New Relic pipeline {} shut down: sent {} log entries in {} batches", getName(),
+					delivered.get(), batches);
+		}
+	}
+
+	private void registerShutdownHook() {
+		shutdownHookThread = new Thread(() -> {
+			logger.debug("JVM shutdown: draining New Relic pipeline {}", getName());
+			drainOnShutdown(System.currentTimeMillis() + settings.shutdownTimeout);
+		}, "NewRelicBatchingAppender-shutdown-" + getName());
+		try {
+			Runtime.getRuntime().addShutdownHook(shutdownHookThread);
+		} catch (IllegalStateException e) {
+			shutdownHookThread = null; // JVM is already shutting down
+		}
+	}
+
+	private void removeShutdownHook() {
+		if (shutdownHookThread == null || Thread.currentThread() == shutdownHookThread) {
+			return;
+		}
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
+		} catch (IllegalStateException e) {
+			// JVM is already shutting down; the hook has run or is running
+		}
+	}
+
+	private static class PipelineFactory implements ManagerFactory<NewRelicPipelineManager, Settings> {
+		@Override
+		public NewRelicPipelineManager createManager(String name, Settings settings) {
+			logger.debug("Starting New Relic pipeline {}", name);
+			return new NewRelicPipelineManager(name, settings);
+		}
+	}
+
+	/**
+	 * Pipeline settings with their defaults applied. Two appenders share a pipeline
+	 * when all of these are equal; changing any of them on reconfiguration starts a
+	 * new pipeline and drains the old one.
+	 */
+	public static final class Settings {
+
+		private static final int DEFAULT_BATCH_SIZE = 2000;
+		private static final int DEFAULT_POOL_SIZE = 5;
+		private static final int DEFAULT_MAX_RETRIES = 3;
+		private static final long DEFAULT_TIMEOUT = 30000; // 30 seconds
+		private static final long DEFAULT_MAX_MESSAGE_SIZE = 1048576; // 1 MB
+		private static final long DEFAULT_FLUSH_INTERVAL = 120000; // 2 minutes
+		private static final boolean MERGE_CUSTOM_FIELDS = false; // by default there will be a separate field custom block
+		// for custom fields i.e. custom.attribute1
+		private static final long DEFAULT_MAX_QUEUE_SIZE_BYTES = 2097152; // 2 MB // 1.1.0
+		private static final long DEFAULT_OVERFLOW_MAX_WAIT = 1000; // 1 second
+		private static final boolean DEFAULT_FLUSH_ON_END_OF_BATCH = false;
+		private static final int DEFAULT_END_OF_BATCH_MIN_SIZE = 100;
+		private static final long DEFAULT_END_OF_BATCH_MIN_AGE = 1000; // 1 second
+		private static final boolean DEFAULT_ADAPTIVE_FLUSH = false;
+		private static final long DEFAULT_LATENCY_SLO = 5000; // 5 seconds
+		private static final long DEFAULT_FLUSH_BYTES = 1048576; // 1 MB
+		private static final long DEFAULT_SHUTDOWN_TIMEOUT = 10000; // 10 seconds
+		private static final boolean DEFAULT_SHUTDOWN_HOOK = false;
+		private static final long DEFAULT_RETRY_MAX_AGE = 300000; // 5 minutes
+		private static final int DEFAULT_RETRY_RATIO = 1; // fresh batches per retry batch
+		private static final boolean DEFAULT_STREAMING_COMPRESSION = false;
+		private static final boolean DEFAULT_PREWARM_CONNECTIONS = false;
+
+		final String apiKey;
+		final String apiUrl;
+		final int batchSize;
+		final long maxMessageSize;
+		final long flushInterval;
+		final long queueCapacity;
+		final String customFieldsSpec;
+		final Map<String, Object> customFields;
+		final boolean mergeCustomFields;
+		final int maxRetries;
+		final long timeout;
+		final int connPoolSize;
+		final OverflowPolicy overflowPolicy;
+		final long overflowMaxWait;
+		final boolean flushOnEndOfBatch;
+		final int endOfBatchMinSize;
+		final long endOfBatchMinAge;
+		final boolean adaptiveFlush;
+		final long latencySlo;
+		final long maxLinger;
+		final long flushBytes;
+		final long shutdownTimeout;
+		final boolean shutdownHook;
+		final String destinations;
+		final int maxInFlight;
+		final int drainMinSize;
+		final long retryQueueCapacity;
+		final long retryMaxAge;
+		final int retryRatio;
+		final String loggerQuotas;
+		final boolean streamingCompression;
+		final boolean prewarmConnections;
+		final long keepAlive;
+		final long dnsCacheTtl;
+		final int heapPressureThreshold;
+
+		private Settings(Builder builder) {
+			this.apiKey = builder.apiKey;
+			this.apiUrl = builder.apiUrl;
+			this.batchSize = builder.batchSize != null && builder.batchSize > 0 ? builder.batchSize
+					: DEFAULT_BATCH_SIZE;
+			this.maxMessageSize = builder.maxMessageSize != null && builder.maxMessageSize > 0
+					? builder.maxMessageSize
+					: DEFAULT_MAX_MESSAGE_SIZE;
+			this.flushInterval = builder.flushInterval != null && builder.flushInterval > 0 ? builder.flushInterval
+					: DEFAULT_FLUSH_INTERVAL;
+			this.queueCapacity = builder.queueCapacity != null && builder.queueCapacity > 0 ? builder.queueCapacity
+					: DEFAULT_MAX_QUEUE_SIZE_BYTES;
+			this.customFieldsSpec = builder.customFields != null ? builder.customFields : "";
+			this.customFields = parsecustomFields(builder.customFields);
+			this.mergeCustomFields = builder.mergeCustomFields != null ? builder.mergeCustomFields
+					: MERGE_CUSTOM_FIELDS;
+			this.maxRetries = builder.maxRetries != null && builder.maxRetries > 0 ? builder.maxRetries
+					: DEFAULT_MAX_RETRIES;
+			this.timeout = builder.timeout != null ? builder.timeout : DEFAULT_TIMEOUT;
+			this.connPoolSize = builder.connPoolSize != null && builder.connPoolSize > 0 ? builder.connPoolSize
+					: DEFAULT_POOL_SIZE;
+			this.overflowPolicy = builder.overflowPolicy != null ? builder.overflowPolicy : OverflowPolicy.EVICT;
+			this.overflowMaxWait = builder.overflowMaxWait != null && builder.overflowMaxWait >= 0
+					? builder.overflowMaxWait
+					: DEFAULT_OVERFLOW_MAX_WAIT;
+			this.flushOnEndOfBatch = builder.flushOnEndOfBatch != null ? builder.flushOnEndOfBatch
+					: DEFAULT_FLUSH_ON_END_OF_BATCH;
+			this.endOfBatchMinSize = builder.endOfBatchMinSize != null && builder.endOfBatchMinSize > 0
+					? builder.endOfBatchMinSize
+					: Math.min(DEFAULT_END_OF_BATCH_MIN_SIZE, this.batchSize);
+			this.endOfBatchMinAge = builder.endOfBatchMinAge != null && builder.endOfBatchMinAge >= 0
+					? builder.endOfBatchMinAge
+					: DEFAULT_END_OF_BATCH_MIN_AGE;
+			this.adaptiveFlush = builder.adaptiveFlush != null ? builder.adaptiveFlush : DEFAULT_ADAPTIVE_FLUSH;
+			this.latencySlo = builder.latencySlo != null && builder.latencySlo > 0 ? builder.latencySlo
+					: DEFAULT_LATENCY_SLO;
+			this.maxLinger = builder.maxLinger != null && builder.maxLinger > 0 ? builder.maxLinger
+					: this.flushInterval;
+			this.flushBytes = builder.flushBytes != null && builder.flushBytes > 0
+					? Math.min(builder.flushBytes, this.queueCapacity)
+					: Math.min(DEFAULT_FLUSH_BYTES, this.queueCapacity / 2);
+			this.shutdownTimeout = builder.shutdownTimeout != null && builder.shutdownTimeout > 0
+					? builder.shutdownTimeout
+					: DEFAULT_SHUTDOWN_TIMEOUT;
+			this.shutdownHook = builder.shutdownHook != null ? builder.shutdownHook : DEFAULT_SHUTDOWN_HOOK;
+			this.destinations = builder.destinations != null ? builder.destinations : "";
+			this.maxInFlight = builder.maxInFlight != null && builder.maxInFlight > 0 ? builder.maxInFlight
+					: this.connPoolSize;
+			this.drainMinSize = builder.drainMinSize != null && builder.drainMinSize > 0 ? builder.drainMinSize
+					: this.batchSize;
+			this.retryQueueCapacity = builder.retryQueueCapacity != null && builder.retryQueueCapacity > 0
+					? builder.retryQueueCapacity
+					: this.queueCapacity / 4;
+			this.retryMaxAge = builder.retryMaxAge != null && builder.retryMaxAge > 0 ? builder.retryMaxAge
+					: DEFAULT_RETRY_MAX_AGE;
+			this.retryRatio = builder.retryRatio != null && builder.retryRatio > 0 ? builder.retryRatio
+					: DEFAULT_RETRY_RATIO;
+			this.loggerQuotas = builder.loggerQuotas != null ? builder.loggerQuotas.trim() : "";
+			this.streamingCompression = builder.streamingCompression != null ? builder.streamingCompression
+					: DEFAULT_STREAMING_COMPRESSION;
+			this.prewarmConnections = builder.prewarmConnections != null ? builder.prewarmConnections
+					: DEFAULT_PREWARM_CONNECTIONS;
+			this.keepAlive = builder.keepAlive != null && builder.keepAlive > 0 ? builder.keepAlive
+					: LogForwarder.DEFAULT_KEEP_ALIVE;
+			this.dnsCacheTtl = builder.dnsCacheTtl != null && builder.dnsCacheTtl > 0 ? builder.dnsCacheTtl : 0;
+			this.heapPressureThreshold = builder.heapPressureThreshold != null && builder.heapPressureThreshold > 0
+					&& builder.heapPressureThreshold < 100 ? builder.heapPressureThreshold : 0;
+		}
+
+		public static Builder newBuilder() {
+			return new Builder();
+		}
+
+		private static Map<String, Object> parsecustomFields(String customFields) {
+			Map<String, Object> custom = new HashMap<>();
+			if (customFields != null && !customFields.isEmpty()) {
+				String[] pairs = customFields.split(",");
+				for (String pair : pairs) {
+					String[] keyValue = pair.split("=");
+					if (keyValue.length == 2) {
+						custom.put(keyValue[0], keyValue[1]);
+					}
+				}
+			}
+			return custom;
+		}
+
+		/**
+		 * @return The endpoint followed by a digest of the key and every other
+		 *         setting, so the key never appears in the manager name.
+		 */
+		String pipelineName() {
+			String spec = String.join("\n", apiKey, apiUrl, String.valueOf(batchSize), String.valueOf(maxMessageSize),
+					String.valueOf(flushInterval), String.valueOf(queueCapacity), customFieldsSpec,
+					String.valueOf(mergeCustomFields), String.valueOf(maxRetries), String.valueOf(timeout),
+					String.valueOf(connPoolSize), overflowPolicy.name(), String.valueOf(overflowMaxWait),
+					String.valueOf(flushOnEndOfBatch), String.valueOf(endOfBatchMinSize),
+					String.valueOf(endOfBatchMinAge), String.valueOf(adaptiveFlush), String.valueOf(latencySlo),
+					String.valueOf(maxLinger), String.valueOf(flushBytes), String.valueOf(shutdownTimeout),
+					String.valueOf(shutdownHook), destinations, String.valueOf(maxInFlight),
+					String.valueOf(drainMinSize), String.valueOf(retryQueueCapacity), String.valueOf(retryMaxAge),
+					String.valueOf(retryRatio), loggerQuotas, String.valueOf(streamingCompression),
+					String.valueOf(prewarmConnections), String.valueOf(keepAlive), String.valueOf(dnsCacheTtl),
+					String.valueOf(heapPressureThreshold));
+			try {
+				byte[] digest = MessageDigest.getInstance("SHA-256").digest(spec.getBytes(StandardCharsets.UTF_8));
+				StringBuilder name = new StringBuilder(apiUrl).append('#');
+				for (int i = 0; i < 8; i++) {
+					name.append(String.format("%02x", digest[i]));
+				}
+				return name.toString();
+			} catch (NoSuchAlgorithmException e) {
+				// Every Java platform is required to provide SHA-256
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * Collects the pipeline attributes of an appender. Attributes left unset,
+		 * or set out of range, take their defaults when the settings are built.
+		 */
+		public static final class Builder {
+			private String apiKey;
+			private String apiUrl;
+			private Integer batchSize;
+			private Long maxMessageSize;
+			private Long flushInterval;
+			private Long queueCapacity;
+			private String customFields;
+			private Boolean mergeCustomFields;
+			private Integer maxRetries;
+			private Long timeout;
+			private Integer connPoolSize;
+			private OverflowPolicy overflowPolicy;
+			private Long overflowMaxWait;
+			private Boolean flushOnEndOfBatch;
+			private Integer endOfBatchMinSize;
+			private Long endOfBatchMinAge;
+			private Boolean adaptiveFlush;
+			private Long latencySlo;
+			private Long maxLinger;
+			private Long flushBytes;
+			private Long shutdownTimeout;
+			private Boolean shutdownHook;
+			private String destinations;
+			private Integer maxInFlight;
+			private Integer drainMinSize;
+			private Long retryQueueCapacity;
+			private Long retryMaxAge;
+			private Integer retryRatio;
+			private String loggerQuotas;
+			private Boolean streamingCompression;
+			private Boolean prewarmConnections;
+			private Long keepAlive;
+			private Long dnsCacheTtl;
+			private Integer heapPressureThreshold;
+
+			private Builder() {
+			}
+
+			public Builder setApiKey(String apiKey) {
+				this.apiKey = apiKey;
+				return this;
+			}
+
+			public Builder setApiUrl(String apiUrl) {
+				this.apiUrl = apiUrl;
+				return this;
+			}
+
+			public Builder setBatchSize(Integer batchSize) {
+				this.batchSize = batchSize;
+				return this;
+			}
+
+			public Builder setMaxMessageSize(Long maxMessageSize) {
+				this.maxMessageSize = maxMessageSize;
+				return this;
+			}
+
+			public Builder setFlushInterval(Long flushInterval) {
+				this.flushInterval = flushInterval;
+				return this;
+			}
+
+			public Builder setQueueCapacity(Long queueCapacity) {
+				this.queueCapacity = queueCapacity;
+				return this;
+			}
+
+			public Builder setCustomFields(String customFields) {
+				this.customFields = customFields;
+				return this;
+			}
+
+			public Builder setMergeCustomFields(Boolean mergeCustomFields) {
+				this.mergeCustomFields = mergeCustomFields;
+				return this;
+			}
+
+			public Builder setMaxRetries(Integer maxRetries) {
+				this.maxRetries = maxRetries;
+				return this;
+			}
+
+			public Builder setTimeout(Long timeout) {
+				this.timeout = timeout;
+				return this;
+			}
+
+			public Builder setConnPoolSize(Integer connPoolSize) {
+				this.connPoolSize = connPoolSize;
+				return this;
+			}
+
+			public Builder setOverflowPolicy(OverflowPolicy overflowPolicy) {
+				this.overflowPolicy = overflowPolicy;
+				return this;
+			}
+
+			public Builder setOverflowMaxWait(Long overflowMaxWait) {
+				this.overflowMaxWait = overflowMaxWait;
+				return this;
+			}
+
+			public Builder setFlushOnEndOfBatch(Boolean flushOnEndOfBatch) {
+				this.flushOnEndOfBatch = flushOnEndOfBatch;
+				return this;
+			}
+
+			public Builder setEndOfBatchMinSize(Integer endOfBatchMinSize) {
+				this.endOfBatchMinSize = endOfBatchMinSize;
+				return this;
+			}
+
+			public Builder setEndOfBatchMinAge(Long endOfBatchMinAge) {
+				this.endOfBatchMinAge = endOfBatchMinAge;
+				return this;
+			}
+
+			public Builder setAdaptiveFlush(Boolean adaptiveFlush) {
+				this.adaptiveFlush = adaptiveFlush;
+				return this;
+			}
+
+			public Builder setLatencySlo(Long latencySlo) {
+				this.latencySlo = latencySlo;
+				return this;
+			}
+
+			public Builder setMaxLinger(Long maxLinger) {
+				this.maxLinger = maxLinger;
+				return this;
+			}
+
+			public Builder setFlushBytes(Long flushBytes) {
+				this.flushBytes = flushBytes;
+				return this;
+			}
+
+			public Builder setShutdownTimeout(Long shutdownTimeout) {
+				this.shutdownTimeout = shutdownTimeout;
+				return this;
+			}
+
+			public Builder setShutdownHook(Boolean shutdownHook) {
+				this.shutdownHook = shutdownHook;
+				return this;
+			}
+
+			public Builder setDestinations(String destinations) {
+				this.destinations = destinations;
+				return this;
+			}
+
+			public Builder setMaxInFlight(Integer maxInFlight) {
+				this.maxInFlight = maxInFlight;
+				return this;
+			}
+
+			public Builder setDrainMinSize(Integer drainMinSize) {
+				this.drainMinSize = drainMinSize;
+				return this;
+			}
+
+			public Builder setRetryQueueCapacity(Long retryQueueCapacity) {
+				this.retryQueueCapacity = retryQueueCapacity;
+				return this;
+			}
+
+			public Builder setRetryMaxAge(Long retryMaxAge) {
+				this.retryMaxAge = retryMaxAge;
+				return this;
+			}
+
+			public Builder setRetryRatio(Integer retryRatio) {
+				this.retryRatio = retryRatio;
+				return this;
+			}
+
+			public Builder setLoggerQuotas(String loggerQuotas) {
+				this.loggerQuotas = loggerQuotas;
+				return this;
+			}
+
+			public Builder setStreamingCompression(Boolean streamingCompression) {
+				this.streamingCompression = streamingCompression;
+				return this;
+			}
+
+			public Builder setPrewarmConnections(Boolean prewarmConnections) {
+				this.prewarmConnections = prewarmConnections;
+				return this;
+			}
+
+			public Builder setKeepAlive(Long keepAlive) {
+				this.keepAlive = keepAlive;
+				return this;
+			}
+
+			public Builder setDnsCacheTtl(Long dnsCacheTtl) {
+				this.dnsCacheTtl = dnsCacheTtl;
+				return this;
+			}
+
+			public Builder setHeapPressureThreshold(Integer heapPressureThreshold) {
+				this.heapPressureThreshold = heapPressureThreshold;
+				return this;
+			}
+
+			public Settings build() {
+				return new Settings(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package com.newrelic.labs;
+
+/**
+ * What the appender does with a message when {@code obfuscationPatterns} take
+ * longer than {@code obfuscationBudget} to run over it.
+ */
+public enum ObfuscationOverrunPolicy {
+    /** Replace the whole message with 'X' characters (default). */
+    MASK,
+    /** Discard the event. */
+    DROP,
+    /** Send the message without regex obfuscation. */
+    PASS;
+
+    /**
+     * Parses the appender attribute value (mask, drop, pass), ignoring case.
+     *
+     * @return The matching policy, or null if the value is not recognized.
+     */
+    public static ObfuscationOverrunPolicy fromString(String value) {
+	if (value == null) {
+	    return null;
+	}
+	String normalized = value.trim();
+	for (ObfuscationOverrunPolicy policy : values()) {
+	    if (policy.name().equalsIgnoreCase(normalized)) {
+		return policy;
+	    }
+	}
+	return null;
+    }
+}
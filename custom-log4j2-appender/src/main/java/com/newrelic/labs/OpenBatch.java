@@ -0,0 +1,175 @@
+package com.newrelic.labs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.newrelic.labs.StackTraceCache.RenderedTrace;
+
+/**
+ * A request body that is compressed while it is being filled. Each entry is
+ * serialized and fed to the deflater when it is added, so sealing the batch
+ * only writes the closing bracket and the gzip trailer. The deflater is
+ * sync-flushed every {@link #SYNC_INTERVAL} bytes of JSON and when the batch
+ * nears its limit; between flushes the JSON not yet flushed is counted at its
+ * full size, so {@link #fits(int)} never lets the compressed body grow past the
+ * limit.
+ */
+final class OpenBatch {
+
+    static final int SYNC_INTERVAL = 32 * 1024;
+    // gzip trailer, the closing bracket and the empty block written by a sync flush
+    private static final int OVERHEAD = 64;
+
+    private final ObjectMapper objectMapper;
+    private final long maxBytes;
+    private final int maxEvents;
+    private final ByteArrayOutputStream compressed = new ByteArrayOutputStream(8192);
+    private final GZIPOutputStream gzip;
+    private final List<Map<String, Object>> logEvents = new ArrayList<>();
+    private List<RenderedTrace> traces;
+    private final long openedAt = System.currentTimeMillis();
+    private long jsonBytes = 1;
+    private long unflushed = 1;
+    private long busyNanos = 0;
+
+    /**
+     * @param maxBytes  Compressed size the body must not exceed.
+     * @param maxEvents Number of entries after which the batch is full.
+     */
+    OpenBatch(ObjectMapper objectMapper, long maxBytes, int maxEvents) throws IOException {
+	this.objectMapper = objectMapper;
+	this.maxBytes = maxBytes;
+	this.maxEvents = maxEvents;
+	this.gzip = new GZIPOutputStream(compressed, 8192, true);
+	gzip.write('[');
+    }
+
+    /**
+     * Serializes an entry's attributes. The result is passed to
+     * {@link #fits(int)} and {@link #add(Map, byte[], RenderedTrace)}, so an entry that does not
+     * fit can go into the next batch without being serialized again.
+     */
+    byte[] serialize(Map<String, Object> logEvent) throws IOException {
+	long start = System.nanoTime();
+	byte[] json = objectMapper.writeValueAsBytes(logEvent);
+	busyNanos += System.nanoTime() - start;
+	return json;
+    }
+
+    /**
+     * @return true if the batch is empty or an entry of this many bytes of JSON
+     *         cannot take it past maxBytes.
+     */
+    boolean fits(int length) throws IOException {
+	if (logEvents.isEmpty()) {
+	    return true;
+	}
+	if (compressed.size() + unflushed + length + 1 + OVERHEAD <= maxBytes) {
+	    return true;
+	}
+	if (unflushed == 0) {
+	    return false;
+	}
+	// Only near the limit: flush to learn how small the pending JSON really is
+	long start = System.nanoTime();
+	gzip.flush();
+	unflushed = 0;
+	busyNanos += System.nanoTime() - start;
+	return compressed.size() + length + 1 + OVERHEAD <= maxBytes;
+    }
+
+    /**
+     * @param trace The cached trace the entry carries in full, or null.
+     */
+    void add(Map<String, Object> logEvent, byte[] json, RenderedTrace trace) throws IOException {
+	long start = System.nanoTime();
+	if (!logEvents.isEmpty()) {
+	    gzip.write(',');
+	    jsonBytes++;
+	    unflushed++;
+	}
+	gzip.write(json);
+	jsonBytes += json.length;
+	unflushed += json.length;
+	if (unflushed >= SYNC_INTERVAL) {
+	    gzip.flush();
+	    unflushed = 0;
+	}
+	logEvents.add(logEvent);
+	if (trace != null) {
+	    if (traces == null) {
+		traces = new ArrayList<>(4);
+	    }
+	    traces.add(trace);
+	}
+	busyNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * @return true if an entry of the batch already carries the trace in full.
+     */
+    boolean carries(RenderedTrace trace) {
+	return traces != null && traces.contains(trace);
+    }
+
+    /**
+     * @return The traces the batch carries in full, or null when there are none.
+     */
+    List<RenderedTrace> getTraces() {
+	return traces;
+    }
+
+    boolean isEmpty() {
+	return logEvents.isEmpty();
+    }
+
+    boolean isFull() {
+	return logEvents.size() >= maxEvents;
+    }
+
+    int size() {
+	return logEvents.size();
+    }
+
+    long getOpenedAt() {
+	return openedAt;
+    }
+
+    long getJsonBytes() {
+	return jsonBytes;
+    }
+
+    /**
+     * @return Time spent serializing and compressing so far, spread over the
+     *         life of the batch.
+     */
+    long getBusyNanos() {
+	return busyNanos;
+    }
+
+    /**
+     * The attributes of the entries, kept for requeueing them if the send fails.
+     */
+    List<Map<String, Object>> getLogEvents() {
+	return logEvents;
+    }
+
+    /**
+     * Closes the JSON array and the gzip stream.
+     *
+     * @return The request body; the batch cannot be added to afterwards.
+     */
+    byte[] seal() throws IOException {
+	long start = System.nanoTime();
+	gzip.write(']');
+	jsonBytes++;
+	gzip.close();
+	busyNanos += System.nanoTime() - start;
+	return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,38 @@
+package com.newrelic.labs;
+
+/**
+ * What {@link NRBufferWithFifoEviction} does with a new element once the buffer
+ * has reached its capacity.
+ */
+public enum OverflowPolicy {
+    /** Evict the oldest entries to make room for the new one (default). */
+    EVICT,
+    /** Park the producer until the drainer releases enough capacity. */
+    BLOCK,
+    /**
+     * Park the producer for at most the configured wait, then fall back to
+     * {@link #EVICT}.
+     */
+    BLOCK_WITH_TIMEOUT,
+    /** Reject the new entry and keep the buffered ones. */
+    DROP_NEW;
+
+    /**
+     * Parses the appender attribute value (evict, block, blockWithTimeout,
+     * dropNew), ignoring case.
+     *
+     * @return The matching policy, or null if the value is not recognized.
+     */
+    public static OverflowPolicy fromString(String value) {
+	if (value == null) {
+	    return null;
+	}
+	String normalized = value.trim().replace("_", "");
+	for (OverflowPolicy policy : values()) {
+	    if (policy.name().replace("_", "").equalsIgnoreCase(normalized)) {
+		return policy;
+	    }
+	}
+	return null;
+    }
+}
@@ -0,0 +1,117 @@
+package com.newrelic.labs;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * Bounded hand-off between the logging threads and a small pool of daemon
+ * workers that format, enrich and queue the events. Producers never wait: when
+ * the staging queue is full {@link #offer(LogEvent)} returns {@code false} and
+ * the caller handles the event itself.
+ */
+public final class RenderStage {
+
+    private static final Logger logger = StatusLogger.getLogger();
+    // Wakes a worker blocked on an empty queue once the stage is stopping
+    private static final LogEvent STOP = Log4jLogEvent.newBuilder().build();
+
+    private final BlockingQueue<LogEvent> staged;
+    private final Consumer<LogEvent> renderer;
+    private final Thread[] workers;
+    private volatile boolean stopping = false;
+
+    public RenderStage(String name, int threads, int capacity, Consumer<LogEvent> renderer) {
+	this.staged = new ArrayBlockingQueue<>(capacity);
+	this.renderer = renderer;
+	this.workers = new Thread[threads];
+	for (int i = 0; i < threads; i++) {
+	    Thread worker = new Thread(this::run, name + "-" + i);
+	    worker.setDaemon(true);
+	    workers[i] = worker;
+	}
+    }
+
+    public RenderStage start() {
+	for (Thread worker : workers) {
+	    worker.start();
+	}
+	return this;
+    }
+
+    /**
+     * @param event An immutable snapshot; the caller must not reuse it.
+     * @return {@code false} when the stage is full or stopping.
+     */
+    public boolean offer(LogEvent event) {
+	return !stopping && staged.offer(event);
+    }
+
+    public int size() {
+	return staged.size();
+    }
+
+    private void run() {
+	while (true) {
+	    LogEvent event;
+	    try {
+		event = stopping ? staged.poll() : staged.take();
+	    } catch (InterruptedException e) {
+		return;
+	    }
+	    if (event == null) {
+		return; // stopping and nothing left
+	    }
+	    if (event == STOP) {
+		continue;
+	    }
+	    try {
+		renderer.accept(event);
+	    } catch (Exception e) {
+		logger.error("Unable to render log event", e);
+	    }
+	}
+    }
+
+    /**
+     * Stops accepting events and lets the workers finish what is staged until the
+     * deadline. Workers still running at the deadline are interrupted.
+     *
+     * @param deadline Wall-clock time in milliseconds.
+     * @return The number of staged events that were not rendered.
+     */
+    public int stop(long deadline) {
+	stopping = true;
+	for (int i = 0; i < workers.length; i++) {
+	    staged.offer(STOP);
+	}
+	for (Thread worker : workers) {
+	    long remaining = deadline - System.currentTimeMillis();
+	    try {
+		if (remaining > 0) {
+		    worker.join(remaining);
+		}
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		break;
+	    }
+	}
+	int abandoned = 0;
+	LogEvent event;
+	while ((event = staged.poll()) != null) {
+	    if (event != STOP) {
+		abandoned++;
+	    }
+	}
+	for (Thread worker : workers) {
+	    worker.interrupt();
+	}
+	return abandoned;
+    }
+}
@@ -0,0 +1,111 @@
+package com.newrelic.labs;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pauses all sends to one destination after the Logs API asks us to slow down
+ * (429 or 503 with Retry-After) or keeps failing (exponential backoff). Every
+ * sender checks {@link #isPaused()} before building a new request, so a
+ * throttled endpoint sees as few requests as possible until it recovers.
+ */
+public class SendRateLimiter {
+
+    static final long MIN_BACKOFF = 1000; // 1 second
+    static final long MAX_BACKOFF = 60000; // 1 minute
+    static final long MAX_RETRY_AFTER = 300000; // 5 minutes
+
+    private final AppenderMetrics metrics;
+    private final AtomicLong pausedUntil = new AtomicLong(0);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+
+    public SendRateLimiter(AppenderMetrics metrics) {
+	this.metrics = metrics;
+    }
+
+    public boolean isPaused() {
+	return System.currentTimeMillis() < pausedUntil.get();
+    }
+
+    /**
+     * @return Milliseconds until sending resumes, 0 if not paused.
+     */
+    public long remainingPause() {
+	return Math.max(0, pausedUntil.get() - System.currentTimeMillis());
+    }
+
+    /**
+     * Honors a 429/503 response: pauses for the Retry-After value, or for the
+     * current backoff when the header is missing or invalid.
+     */
+    public void onThrottled(String retryAfter) {
+	long delay = parseRetryAfter(retryAfter);
+	if (delay < 0) {
+	    delay = nextBackoff();
+	}
+	pauseFor(delay);
+    }
+
+    /**
+     * Backs off exponentially after a 5xx response or a network error.
+     */
+    public void onError() {
+	pauseFor(nextBackoff());
+    }
+
+    public void onSuccess() {
+	consecutiveFailures.set(0);
+    }
+
+    private long nextBackoff() {
+	int failures = Math.min(consecutiveFailures.incrementAndGet(), 16);
+	long backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << (failures - 1));
+	// Up to 20% jitter so that many instances do not retry in lockstep
+	return backoff + ThreadLocalRandom.current().nextLong(backoff / 5 + 1);
+    }
+
+    private void pauseFor(long millis) {
+	long until = System.currentTimeMillis() + Math.min(millis, MAX_RETRY_AFTER);
+	while (true) {
+	    long current = pausedUntil.get();
+	    if (until <= current) {
+		return;
+	    }
+	    if (pausedUntil.compareAndSet(current, until)) {
+		long start = Math.max(current, System.currentTimeMillis());
+		metrics.recordPause(until - start);
+		return;
+	    }
+	}
+    }
+
+    /**
+     * Parses a Retry-After header, given either as delta-seconds or as an HTTP
+     * date.
+     *
+     * @return The delay in milliseconds, or -1 if the header is absent or invalid.
+     */
+    static long parseRetryAfter(String retryAfter) {
+	if (retryAfter == null || retryAfter.trim().isEmpty()) {
+	    return -1;
+	}
+	String value = retryAfter.trim();
+	try {
+	    long seconds = Long.parseLong(value);
+	    // Clamped before converting, so a huge value cannot overflow
+	    return seconds < 0 ? -1 : Math.min(seconds, MAX_RETRY_AFTER / 1000) * 1000;
+	} catch (NumberFormatException e) {
+	    // Not delta-seconds, try an HTTP date
+	}
+	try {
+	    ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+	    return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+	} catch (DateTimeParseException e) {
+	    return -1;
+	}
+    }
+}
@@ -0,0 +1,213 @@
+package com.newrelic.labs;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded LRU of rendered stack traces keyed by a hash of the exception: the
+ * header line ({@code toString()}, i.e. class and message) of each throwable in
+ * the cause chain and the class, method and line of every frame. A hit is only
+ * used when the headers and frames are equal to the cached ones, so a hash
+ * collision renders the trace again instead of returning another one.
+ * Optionally remembers when a trace was last delivered so repeats within the
+ * dedup window only carry the hash.
+ */
+public final class StackTraceCache {
+
+    public static final int DEFAULT_SIZE = 256;
+    private static final int MAX_CAUSE_DEPTH = 16;
+
+    private final Map<Long, RenderedTrace> traces;
+    private final long dedupWindowMillis;
+    private final ToLongFunction<Structure> hasher;
+
+    public StackTraceCache(final int maxSize, long dedupWindowMinutes) {
+	this(maxSize, dedupWindowMinutes, Structure::hash);
+    }
+
+    StackTraceCache(final int maxSize, long dedupWindowMinutes, ToLongFunction<Structure> hasher) {
+	this.traces = new LinkedHashMap<Long, RenderedTrace>(Math.min(maxSize, 64), 0.75f, true) {
+	    private static final long serialVersionUID = 1L;
+
+	    @Override
+	    protected boolean removeEldestEntry(Map.Entry<Long, RenderedTrace> eldest) {
+		return size() > maxSize;
+	    }
+	};
+	this.dedupWindowMillis = dedupWindowMinutes > 0 ? TimeUnit.MINUTES.toMillis(dedupWindowMinutes) : 0;
+	this.hasher = hasher;
+    }
+
+    /**
+     * @return The error attributes for the given throwable, or {@code null} when
+     *         there is none.
+     */
+    public ExceptionInfo capture(Throwable thrown) {
+	if (thrown == null) {
+	    return null;
+	}
+	Structure structure = new Structure(thrown);
+	long hash = hasher.applyAsLong(structure);
+	RenderedTrace trace;
+	synchronized (traces) {
+	    trace = traces.get(hash);
+	}
+	if (trace == null || !trace.structure.equals(structure)) {
+	    // Render outside the lock; a concurrent duplicate render is harmless
+	    RenderedTrace rendered = new RenderedTrace(Long.toHexString(hash), structure, dedupWindowMillis);
+	    RenderedTrace cached = trace;
+	    if (cached == null) {
+		synchronized (traces) {
+		    cached = traces.putIfAbsent(hash, rendered);
+		}
+	    }
+	    if (cached == null || cached.structure.equals(structure)) {
+		trace = cached != null ? cached : rendered;
+	    } else {
+		// Another trace has this hash: keep the cached one and send this one in
+		// full every time, so neither is deduplicated against the other
+		trace = rendered.withoutDedup();
+	    }
+	}
+	return new ExceptionInfo(thrown.getClass().getName(), thrown.getMessage(), trace);
+    }
+
+    public int size() {
+	synchronized (traces) {
+	    return traces.size();
+	}
+    }
+
+    /**
+     * The header lines and frames of a throwable and its causes, taken once per
+     * event.
+     */
+    static final class Structure {
+	private final String[] headers;
+	private final StackTraceElement[][] frames;
+
+	Structure(Throwable thrown) {
+	    int depth = 0;
+	    for (Throwable current = thrown; current != null && depth < MAX_CAUSE_DEPTH; depth++) {
+		Throwable cause = current.getCause();
+		current = cause != current ? cause : null;
+	    }
+	    headers = new String[depth];
+	    frames = new StackTraceElement[depth][];
+	    Throwable current = thrown;
+	    for (int i = 0; i < depth; i++) {
+		headers[i] = current.toString();
+		frames[i] = current.getStackTrace();
+		current = current.getCause();
+	    }
+	}
+
+	long hash() {
+	    long hash = 1125899906842597L;
+	    for (int i = 0; i < headers.length; i++) {
+		hash = 31 * hash + headers[i].hashCode();
+		for (StackTraceElement frame : frames[i]) {
+		    hash = 31 * hash + frame.getClassName().hashCode();
+		    hash = 31 * hash + frame.getMethodName().hashCode();
+		    hash = 31 * hash + frame.getLineNumber();
+		}
+	    }
+	    return hash;
+	}
+
+	/**
+	 * @return The trace as {@link Throwable#printStackTrace()} prints it,
+	 *         without the "... n more" folding and suppressed exceptions.
+	 */
+	String render() {
+	    StringBuilder sb = new StringBuilder(1024);
+	    for (int i = 0; i < headers.length; i++) {
+		if (i > 0) {
+		    sb.append("Caused by: ");
+		}
+		sb.append(headers[i]).append('\n');
+		for (StackTraceElement frame : frames[i]) {
+		    sb.append("\tat ").append(frame).append('\n');
+		}
+	    }
+	    return sb.toString();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+	    if (this == o) {
+		return true;
+	    }
+	    if (!(o instanceof Structure)) {
+		return false;
+	    }
+	    Structure other = (Structure) o;
+	    return Arrays.equals(headers, other.headers) && Arrays.deepEquals(frames, other.frames);
+	}
+
+	@Override
+	public int hashCode() {
+	    return Long.hashCode(hash());
+	}
+    }
+
+    /**
+     * A cached rendering, shared by every event with the same structure.
+     */
+    static final class RenderedTrace {
+	final String hash;
+	final String stack;
+	private final Structure structure;
+	private final long dedupWindowMillis;
+	private final AtomicLong lastSent = new AtomicLong(0);
+
+	RenderedTrace(String hash, Structure structure, long dedupWindowMillis) {
+	    this(hash, structure.render(), structure, dedupWindowMillis);
+	}
+
+	private RenderedTrace(String hash, String stack, Structure structure, long dedupWindowMillis) {
+	    this.hash = hash;
+	    this.stack = stack;
+	    this.structure = structure;
+	    this.dedupWindowMillis = dedupWindowMillis;
+	}
+
+	RenderedTrace withoutDedup() {
+	    return new RenderedTrace(hash, stack, structure, 0);
+	}
+
+	/**
+	 * @return {@code true} when repeats of this trace may carry only the hash:
+	 *         later events of a payload that already carries the trace, and
+	 *         events within the dedup window after a delivery.
+	 */
+	boolean isDeduplicated() {
+	    return dedupWindowMillis > 0;
+	}
+
+	/**
+	 * @return {@code true} when a payload carrying the full trace was accepted
+	 *         within the dedup window before {@code now}.
+	 */
+	boolean sentWithin(long now) {
+	    if (dedupWindowMillis <= 0) {
+		return false;
+	    }
+	    long last = lastSent.get();
+	    return last != 0 && now - last < dedupWindowMillis;
+	}
+
+	/**
+	 * Records that a payload carrying the full trace was accepted. Only called
+	 * once the send succeeded, so a failed, rejected or evicted payload does not
+	 * suppress the trace.
+	 */
+	void markSent(long now) {
+	    lastSent.accumulateAndGet(now, Math::max);
+	}
+    }
+}
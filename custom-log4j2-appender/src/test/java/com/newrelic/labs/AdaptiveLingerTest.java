@@ -0,0 +1,78 @@
+package com.newrelic.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The next flush deadline: brought forward to when the queue is expected to
+ * reach flushBytes, capped by the latency SLO less the send time, never closer
+ * than 10 ms, and maxLinger while there is nothing to send.
+ */
+public class AdaptiveLingerTest {
+
+	private static final long SLO = 1000;
+	private static final long MAX_LINGER = 5000;
+	private static final long FLUSH_BYTES = 100000;
+
+	private long now;
+
+	// Starts the rate sample at now, then records the given arrivals over 100 ms
+	private AdaptiveLinger lingerAt(int arrivalsPer100ms) {
+		AdaptiveLinger linger = new AdaptiveLinger(SLO, MAX_LINGER, FLUSH_BYTES);
+		now = System.currentTimeMillis() + 1000;
+		assertEquals(MAX_LINGER, linger.nextDelay(0, 0, 0, 0, now));
+		for (int i = 0; i < arrivalsPer100ms; i++) {
+			linger.recordArrival();
+		}
+		now += 100;
+		return linger;
+	}
+
+	@Test
+	public void flushesWhenTheQueueIsExpectedToFill() {
+		AdaptiveLinger linger = lingerAt(1000); // 10 events/ms, smoothed to 3
+
+		// 100 bytes per entry: 90000 bytes to go at 300 bytes/ms
+		long delay = linger.nextDelay(10000, 100, now, 0, now);
+
+		assertEquals(300, delay);
+		assertEquals(3000, linger.getArrivalRate(), 0.001);
+	}
+
+	@Test
+	public void slowTrafficWaitsForTheSloLessTheSendTime() {
+		AdaptiveLinger linger = lingerAt(10);
+
+		assertEquals(SLO - 400, linger.nextDelay(1000, 10, now - 400, 0, now));
+		assertEquals("starts a send early enough to land within the SLO", SLO - 400 - 150,
+				linger.nextDelay(1000, 10, now - 400, 150, now));
+	}
+
+	@Test
+	public void neverSchedulesCloserThanTheFloor() {
+		AdaptiveLinger linger = lingerAt(1000);
+
+		assertEquals("past the SLO", 10, linger.nextDelay(1000, 10, now - 2 * SLO, 0, now));
+		assertEquals("send time beyond the SLO", 10, linger.nextDelay(1000, 10, now, 2 * SLO, now));
+		assertEquals("already over flushBytes", 10, linger.nextDelay(2 * FLUSH_BYTES, 100, now, 0, now));
+	}
+
+	@Test
+	public void idleQueueSleepsUpToMaxLinger() {
+		AdaptiveLinger linger = lingerAt(1000);
+
+		assertEquals(MAX_LINGER, linger.nextDelay(0, 0, 0, 150, now));
+		assertTrue(linger.isFull(FLUSH_BYTES));
+	}
+
+	@Test
+	public void firstArrivalLeavesTimeForTheSend() {
+		AdaptiveLinger linger = new AdaptiveLinger(SLO, MAX_LINGER, FLUSH_BYTES);
+
+		assertEquals(SLO, linger.firstArrivalDelay(0));
+		assertEquals(SLO - 150, linger.firstArrivalDelay(150));
+		assertEquals(10, linger.firstArrivalDelay(2 * SLO));
+	}
+}
@@ -0,0 +1,207 @@
+package com.newrelic.labs;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Bytes allocated per event on the logging thread, measured with
+ * {@code com.sun.management.ThreadMXBean.getThreadAllocatedBytes} after a warm
+ * up. Each case fails when it exceeds its budget; a budget can be overridden
+ * with {@code -Dalloc.budget.<case>=<bytes>}, e.g. to tighten it after an
+ * optimization. The budgets leave some headroom over what the current code
+ * allocates on JDK 17; the JDK and its layout and regex implementations change
+ * the numbers, so the cases only run when asked for, against the JDK they were
+ * set for:
+ *
+ * <pre>
+ * mvn test -Dtest=AllocationBudgetTest -Dalloc.budgets=true
+ * </pre>
+ */
+public class AllocationBudgetTest {
+
+	private static final int WARMUP_EVENTS = 20000;
+	private static final int MEASURED_EVENTS = 20000;
+	private static final int BATCH_SIZE = 1000;
+
+	private static com.sun.management.ThreadMXBean threadBean;
+
+	private LogsApiStandIn standIn;
+	private LoggerContext context;
+
+	@BeforeClass
+	public static void checkAllocationCounting() {
+		Assume.assumeTrue("set -Dalloc.budgets=true to run", Boolean.getBoolean("alloc.budgets"));
+		Assume.assumeTrue("ThreadMXBean allocation counting is not available",
+				ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	@Before
+	public void startStandIn() throws Exception {
+		standIn = new LogsApiStandIn(1).start();
+	}
+
+	@After
+	public void stop() throws Exception {
+		if (context != null) {
+			context.stop();
+		}
+		standIn.close();
+	}
+
+	private static long allocatedBytes() {
+		return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static void assertWithinBudget(String name, long bytesPerEvent, long defaultBudget) {
+		long budget = Long.getLong("alloc.budget." + name, defaultBudget);
+		assertTrue(name + " allocates " + bytesPerEvent + " bytes per event, budget is " + budget,
+				bytesPerEvent <= budget);
+	}
+
+	/**
+	 * Appender with nothing flushing during the measurement: the batch size,
+	 * flush interval and queue are large enough to hold every event.
+	 */
+	private NewRelicBatchingAppender startAppender(String layout, String... attributes) throws Exception {
+		Map<String, String> config = new LinkedHashMap<>();
+		config.put("apiKey", "allocation");
+		config.put("apiUrl", standIn.getUrl());
+		config.put("applicationName", "allocation");
+		config.put("batchSize", "1000000");
+		config.put("flushInterval", "3600000");
+		config.put("queueCapacity", String.valueOf(512L * 1024 * 1024));
+		for (int i = 0; i + 1 < attributes.length; i += 2) {
+			config.put(attributes[i], attributes[i + 1]);
+		}
+		context = LoadHarness.startContext(config, layout);
+		return context.getConfiguration().getAppender(LoadHarness.APPENDER_NAME);
+	}
+
+	private static LogEvent event(String message, int mdcEntries) {
+		SortedArrayStringMap contextData = new SortedArrayStringMap();
+		for (int i = 0; i < mdcEntries; i++) {
+			contextData.putValue("mdc.key" + i, "value-" + i);
+		}
+		contextData.freeze();
+		return Log4jLogEvent.newBuilder().setLoggerName("com.example.orders.OrderService")
+				.setLoggerFqcn(AllocationBudgetTest.class.getName()).setLevel(Level.INFO)
+				.setMessage(new SimpleMessage(message)).setContextData(contextData)
+				.setThreadName("allocation-test").setTimeMillis(System.currentTimeMillis()).build();
+	}
+
+	private static long appendBytesPerEvent(NewRelicBatchingAppender appender, LogEvent event) {
+		for (int i = 0; i < WARMUP_EVENTS; i++) {
+			appender.append(event);
+		}
+		long before = allocatedBytes();
+		for (int i = 0; i < MEASURED_EVENTS; i++) {
+			appender.append(event);
+		}
+		return (allocatedBytes() - before) / MEASURED_EVENTS;
+	}
+
+	@Test
+	public void patternLayout() throws Exception {
+		NewRelicBatchingAppender appender = startAppender("<PatternLayout pattern=\"%d %-5p [%t] %c{1} - %m%n\"/>");
+		LogEvent event = event("Order 12345 accepted for customer 67890 with 3 items", 2);
+
+		assertWithinBudget("patternLayout", appendBytesPerEvent(appender, event), 1100);
+	}
+
+	@Test
+	public void jsonLayout() throws Exception {
+		NewRelicBatchingAppender appender = startAppender("<JsonLayout compact=\"true\" eventEol=\"true\"/>");
+		LogEvent event = event("Order 12345 accepted for customer 67890 with 3 items", 2);
+
+		assertWithinBudget("jsonLayout", appendBytesPerEvent(appender, event), 3900);
+	}
+
+	@Test
+	public void obfuscation() throws Exception {
+		NewRelicBatchingAppender appender = startAppender("<PatternLayout pattern=\"%m\"/>", "obfuscationPatterns",
+				"\\d{4}-\\d{4}-\\d{4}-\\d{4}^^password=\\S+");
+		LogEvent event = event("Payment with card 4111-1111-1111-1111 for user bob password=hunter2 accepted", 2);
+
+		assertWithinBudget("obfuscation", appendBytesPerEvent(appender, event), 6000);
+	}
+
+	@Test
+	public void unwrapJson() throws Exception {
+		NewRelicBatchingAppender appender = startAppender("<PatternLayout pattern=\"%m\"/>", "unwrapJson", "true");
+		LogEvent event = event("{\"orderId\":12345,\"customer\":\"67890\",\"items\":3,\"status\":\"accepted\"}", 2);
+
+		assertWithinBudget("unwrapJson", appendBytesPerEvent(appender, event), 2800);
+	}
+
+	@Test
+	public void mdcHeavy() throws Exception {
+		NewRelicBatchingAppender appender = startAppender("<PatternLayout pattern=\"%m\"/>");
+		LogEvent event = event("Order 12345 accepted for customer 67890 with 3 items", 32);
+
+		assertWithinBudget("mdcHeavy", appendBytesPerEvent(appender, event), 1250);
+	}
+
+	@Test
+	public void serialization() throws Exception {
+		LogForwarder forwarder = new LogForwarder("allocation", standIn.getUrl(), 1048576,
+				new NRBufferWithFifoEviction<LogEntry>(1048576, entry -> 1), 3, 30000, 2);
+		Map<String, Object> customFields = new HashMap<>();
+		customFields.put("env", "test");
+		List<LogEntry> batch = new ArrayList<>();
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			SortedArrayStringMap contextData = new SortedArrayStringMap();
+			contextData.putValue("mdc.key0", "value-0");
+			contextData.putValue("mdc.key1", "value-" + i);
+			Map<String, Object> properties = ContextDataSnapshot.capture(contextData);
+			batch.add(new LogEntry("Order " + i + " accepted for customer 67890 with 3 items", "allocation",
+					"generic", "muleLog", "com.example.orders.OrderService", "INFO", System.currentTimeMillis(),
+					properties, false));
+		}
+		FlushCallback ignore = new FlushCallback() {
+			@Override
+			public void onSuccess() {
+			}
+
+			@Override
+			public void onFailure(List<Map<String, Object>> failedLogEvents) {
+			}
+		};
+
+		try {
+			for (int i = 0; i < WARMUP_EVENTS / BATCH_SIZE; i++) {
+				forwarder.flushAsync(batch, false, customFields, ignore);
+			}
+			long before = allocatedBytes();
+			for (int i = 0; i < MEASURED_EVENTS / BATCH_SIZE; i++) {
+				forwarder.flushAsync(batch, false, customFields, ignore);
+			}
+			long perEvent = (allocatedBytes() - before) / MEASURED_EVENTS;
+
+			assertWithinBudget("serialization", perEvent, 3200);
+		} finally {
+			forwarder.awaitInFlight(System.currentTimeMillis() + 10000);
+			forwarder.shutdown();
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package com.newrelic.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.core.LoggerContext;
+import org.junit.After;
+import org.junit.Test;
+
+import okhttp3.Dns;
+
+/**
+ * Pre-warming with an accepted, authenticated request that takes in-flight
+ * slots like a send, only repeated while the pipeline sends, and the DNS cache:
+ * reuse within the TTL and the last addresses when a refresh fails.
+ */
+public class ConnectionWarmupTest {
+
+	private LogsApiStandIn standIn;
+	private LogForwarder forwarder;
+	private LoggerContext context;
+
+	@After
+	public void stop() throws Exception {
+		if (context != null) {
+			context.stop(10, TimeUnit.SECONDS);
+		}
+		if (forwarder != null) {
+			forwarder.shutdown();
+		}
+		if (standIn != null) {
+			standIn.close();
+		}
+	}
+
+	private void startForwarder(int connPoolSize) throws Exception {
+		standIn = new LogsApiStandIn(1).start();
+		forwarder = new LogForwarder("warm-up", standIn.getUrl(), 1048576,
+				new NRBufferWithFifoEviction<LogEntry>(1048576, entry -> 1), 3, 5000, connPoolSize);
+	}
+
+	private static List<LogEntry> batch(int seq) {
+		return Collections.singletonList(new LogEntry("seq=" + seq + "|warm-up", "warm-up", "warm-up", "log",
+				"com.newrelic.labs.WarmUp", "INFO", System.currentTimeMillis(),
+				Collections.<String, Object>emptyMap(), false));
+	}
+
+	private void awaitPrewarms(long expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (standIn.getPrewarms() < expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(expected, standIn.getPrewarms());
+	}
+
+	@Test
+	public void opensThePoolWithAcceptedEmptyPayloads() throws Exception {
+		startForwarder(3);
+
+		forwarder.prewarm();
+		// One request first, then the rest of the pool, as the stand-in speaks HTTP/1.1
+		awaitPrewarms(3);
+		Thread.sleep(100);
+
+		assertEquals(3, standIn.getPrewarms());
+		assertEquals("not counted as sends", 0, standIn.getRequests());
+		assertEquals(0, forwarder.getDestinations().get(0).getInFlight());
+		assertEquals(0, forwarder.getDestinations().get(0).getSentPayloads());
+	}
+
+	@Test
+	public void takesNoSlotWhileSendsHoldThemAll() throws Exception {
+		startForwarder(2);
+		standIn.withLatency(500);
+		forwarder.flushAsync(batch(0), false, null, null);
+		forwarder.flushAsync(batch(1), false, null, null);
+		assertEquals(2, forwarder.getDestinations().get(0).getInFlight());
+
+		forwarder.prewarm();
+
+		assertTrue(forwarder.awaitInFlight(System.currentTimeMillis() + 5000));
+		Thread.sleep(100);
+		assertEquals(0, standIn.getPrewarms());
+		assertEquals(2, standIn.getDeliveredCount());
+	}
+
+	@Test
+	public void remembersRecentSends() throws Exception {
+		startForwarder(1);
+		assertFalse("nothing sent yet", forwarder.hasSentWithin(60000));
+
+		forwarder.flushAsync(batch(0), false, null, null);
+		assertTrue(forwarder.awaitInFlight(System.currentTimeMillis() + 5000));
+
+		assertTrue(forwarder.hasSentWithin(60000));
+		Thread.sleep(20);
+		assertFalse(forwarder.hasSentWithin(10));
+	}
+
+	@Test
+	public void idlePipelineOnlyWarmsUpOnce() throws Exception {
+		standIn = new LogsApiStandIn(1).start();
+		Map<String, String> attributes = new LinkedHashMap<>();
+		attributes.put("apiKey", "warm-up");
+		attributes.put("apiUrl", standIn.getUrl());
+		attributes.put("applicationName", "warm-up");
+		attributes.put("flushInterval", "100");
+		attributes.put("connPoolSize", "2");
+		attributes.put("prewarmConnections", "true");
+		attributes.put("keepAlive", "400"); // re-warmed every 300 ms while sending
+		context = LoadHarness.startContext(attributes, LoadHarness.PATTERN_LAYOUT);
+
+		awaitPrewarms(2);
+		Thread.sleep(1000);
+		assertEquals("nothing sent, nothing kept warm", 2, standIn.getPrewarms());
+
+		context.getLogger("com.example.WarmUp").info("seq=0|sent");
+		long deadline = System.currentTimeMillis() + 5000;
+		// The next round can start before the stand-in has recorded the payload
+		while ((standIn.getPrewarms() == 2 || standIn.getDeliveredCount() == 0)
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, standIn.getDeliveredCount());
+		assertTrue("kept warm after a send", standIn.getPrewarms() > 2);
+	}
+
+	/**
+	 * Resolves every host to the current address, or fails while unreachable.
+	 */
+	private static final class FakeDns implements Dns {
+		final AtomicInteger lookups = new AtomicInteger();
+		volatile List<InetAddress> addresses;
+		volatile boolean unreachable = false;
+
+		FakeDns(String address) throws UnknownHostException {
+			resolveTo(address);
+		}
+
+		void resolveTo(String address) throws UnknownHostException {
+			List<InetAddress> resolved = new ArrayList<>();
+			resolved.add(InetAddress.getByName(address)); // a literal, not looked up
+			addresses = resolved;
+		}
+
+		@Override
+		public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+			lookups.incrementAndGet();
+			if (unreachable) {
+				throw new UnknownHostException(hostname);
+			}
+			return addresses;
+		}
+	}
+
+	@Test
+	public void reusesAddressesWithinTheTtl() throws Exception {
+		FakeDns system = new FakeDns("10.0.0.1");
+		CachingDns dns = new CachingDns(200, system);
+
+		List<InetAddress> first = dns.lookup("log-api.newrelic.com");
+		assertSame(first, dns.lookup("log-api.newrelic.com"));
+		assertEquals(1, system.lookups.get());
+
+		dns.lookup("log-api.eu.newrelic.com");
+		assertEquals("cached per host", 2, system.lookups.get());
+
+		Thread.sleep(250);
+		system.resolveTo("10.0.0.2");
+		assertEquals(system.addresses, dns.lookup("log-api.newrelic.com"));
+		assertEquals(3, system.lookups.get());
+	}
+
+	@Test
+	public void keepsTheLastAddressesWhenARefreshFails() throws Exception {
+		FakeDns system = new FakeDns("10.0.0.1");
+		CachingDns dns = new CachingDns(50, system);
+		List<InetAddress> resolved = dns.lookup("log-api.newrelic.com");
+
+		system.unreachable = true;
+		Thread.sleep(100);
+		assertSame(resolved, dns.lookup("log-api.newrelic.com"));
+		assertSame(resolved, dns.lookup("log-api.newrelic.com"));
+		assertEquals("every lookup after the TTL retries", 3, system.lookups.get());
+
+		system.resolveTo("10.0.0.2");
+		system.unreachable = false;
+		assertEquals(system.addresses, dns.lookup("log-api.newrelic.com"));
+	}
+
+	@Test
+	public void failsWhenAHostWasNeverResolved() throws Exception {
+		FakeDns system = new FakeDns("10.0.0.1");
+		system.unreachable = true;
+		CachingDns dns = new CachingDns(60000, system);
+
+		try {
+			dns.lookup("log-api.newrelic.com");
+			fail("resolved without addresses");
+		} catch (UnknownHostException expected) {
+			assertEquals(1, system.lookups.get());
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package com.newrelic.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.message.ObjectMessage;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Top loggers and templates of a skewed stream, window rotation, byte counts in
+ * UTF-8, no text of messages that are not templates, and the MBean following
+ * the newest appender across a reconfigure.
+ */
+public class HeavyHittersTest {
+
+	private static final long WINDOW = 1000;
+
+	private LogsApiStandIn standIn;
+	private LoggerContext context;
+
+	@After
+	public void stop() throws Exception {
+		if (context != null) {
+			context.stop(10, TimeUnit.SECONDS);
+		}
+		if (standIn != null) {
+			standIn.close();
+		}
+	}
+
+	private static void record(HeavyHitters hitters, String loggerName, String format, int events, long bytes) {
+		for (int i = 0; i < events; i++) {
+			hitters.record(loggerName, format, bytes);
+		}
+	}
+
+	private static void awaitWindowEnd() throws InterruptedException {
+		Thread.sleep(WINDOW + 100);
+	}
+
+	private static void assertEntry(String expectedPrefix, String line) {
+		assertTrue(line, line.startsWith(expectedPrefix));
+	}
+
+	@Test
+	public void ranksASkewedStreamByEventsAndBytes() throws Exception {
+		HeavyHitters hitters = new HeavyHitters(3, WINDOW);
+		record(hitters, "com.example.Hot", "Order {} accepted", 1000, 50);
+		record(hitters, "com.example.Warm", "Cache miss for {}", 100, 50);
+		for (int i = 0; i < 20; i++) {
+			record(hitters, "com.example.Cold" + i, "Tick {}", 5, 50);
+		}
+		record(hitters, "com.example.Dump", "Payload {}", 10, 100000);
+
+		assertTrue("nothing published before the window ends", hitters.getTopByEvents().isEmpty());
+		awaitWindowEnd();
+
+		List<String> byEvents = hitters.getTopByEvents();
+		assertEquals(byEvents.toString(), 3, byEvents.size());
+		assertEntry("com.example.Hot \"Order {} accepted\" events=1000 bytes=50000", byEvents.get(0));
+		assertEntry("com.example.Warm \"Cache miss for {}\" events=100 ", byEvents.get(1));
+		assertEntry("com.example.Dump \"Payload {}\" events=10 ", byEvents.get(2));
+
+		List<String> byBytes = hitters.getTopByBytes();
+		assertEquals(byBytes.toString(), 3, byBytes.size());
+		assertEntry("com.example.Dump \"Payload {}\" events=10 bytes=1000000", byBytes.get(0));
+		assertEntry("com.example.Hot ", byBytes.get(1));
+		assertEntry("com.example.Warm ", byBytes.get(2));
+	}
+
+	@Test
+	public void countsRestartWithEachWindow() throws Exception {
+		HeavyHitters hitters = new HeavyHitters(3, WINDOW);
+		record(hitters, "com.example.Hot", "Order {} accepted", 1000, 50);
+		awaitWindowEnd();
+		assertEntry("com.example.Hot ", hitters.getTopByEvents().get(0));
+
+		record(hitters, "com.example.Next", "Shipped {}", 3, 20);
+		awaitWindowEnd();
+
+		List<String> byEvents = hitters.getTopByEvents();
+		assertEquals(byEvents.toString(), 1, byEvents.size());
+		assertEntry("com.example.Next \"Shipped {}\" events=3 bytes=60", byEvents.get(0));
+
+		awaitWindowEnd();
+		assertTrue("an empty window publishes nothing", hitters.getTopByEvents().isEmpty());
+	}
+
+	private Map<String, String> attributes(long window) throws Exception {
+		if (standIn == null) {
+			standIn = new LogsApiStandIn(1).start();
+		}
+		Map<String, String> attributes = new LinkedHashMap<>();
+		attributes.put("apiKey", "heavy-hitters");
+		attributes.put("apiUrl", standIn.getUrl());
+		attributes.put("applicationName", "heavy-hitters");
+		attributes.put("flushInterval", "3600000");
+		attributes.put("heavyHitters", "3");
+		attributes.put("heavyHittersWindow", String.valueOf(window));
+		return attributes;
+	}
+
+	private HeavyHitters appenderHitters() {
+		NewRelicBatchingAppender appender = context.getConfiguration().getAppender(LoadHarness.APPENDER_NAME);
+		return appender.getHeavyHitters();
+	}
+
+	@Test
+	public void measuresUtf8Length() {
+		assertEquals(5, HeavyHitters.utf8Length("plain"));
+		assertEquals(2, HeavyHitters.utf8Length("é"));
+		assertEquals(3, HeavyHitters.utf8Length("€"));
+		assertEquals(4, HeavyHitters.utf8Length("😀"));
+		String mixed = "a é € 😀 z";
+		assertEquals(mixed.getBytes(StandardCharsets.UTF_8).length, HeavyHitters.utf8Length(mixed));
+	}
+
+	@Test
+	public void countsEncodedBytesRatherThanChars() throws Exception {
+		// Not the platform charset, which may not carry the euro sign
+		context = LoadHarness.startContext(attributes(WINDOW), "<PatternLayout pattern=\"%m\" charset=\"UTF-8\"/>");
+		Logger log = context.getLogger("com.example.Prices");
+		for (int i = 0; i < 10; i++) {
+			log.info("Price {}", "€€€€"); // 10 chars, 18 bytes
+		}
+		awaitWindowEnd();
+
+		assertEntry("com.example.Prices \"Price {}\" events=10 bytes=180", appenderHitters().getTopByBytes().get(0));
+	}
+
+	@Test
+	public void recordsOnlyParameterizedTemplates() throws Exception {
+		context = LoadHarness.startContext(attributes(WINDOW), LoadHarness.PATTERN_LAYOUT);
+		Logger log = context.getLogger("com.example.Login");
+		for (int i = 0; i < 10; i++) {
+			log.info("password=hunter2"); // no parameters: the format is the text itself
+			log.info(new ObjectMessage("token=abc123"));
+			log.info((Object) "secret {} s3cr3t"); // one placeholder and one "parameter"
+		}
+		log.info("User {} logged in", "bob");
+		awaitWindowEnd();
+
+		List<String> byEvents = appenderHitters().getTopByEvents();
+		assertEntry("com.example.Login \"" + HeavyHitters.NO_TEMPLATE + "\" events=30 ", byEvents.get(0));
+		assertEntry("com.example.Login \"User {} logged in\" events=1 ", byEvents.get(1));
+		assertFalse(byEvents.toString(), byEvents.toString().contains("hunter2"));
+		assertFalse(byEvents.toString(), byEvents.toString().contains("abc123"));
+		assertFalse(byEvents.toString(), byEvents.toString().contains("s3cr3t"));
+	}
+
+	@Test
+	public void mbeanFollowsTheNewestAppenderAcrossAReconfigure() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(
+				"com.newrelic.labs:type=HeavyHitters,name=" + ObjectName.quote(LoadHarness.APPENDER_NAME));
+		context = LoadHarness.startContext(attributes(60000), LoadHarness.PATTERN_LAYOUT);
+		HeavyHitters before = appenderHitters();
+		assertEquals(60000L, server.getAttribute(name, "WindowMillis"));
+
+		// The new appender starts before the old one stops; the old one must not
+		// take the new bean with it
+		context.setConfiguration(
+				LoadHarness.configuration(context, attributes(30000), LoadHarness.PATTERN_LAYOUT));
+		HeavyHitters after = appenderHitters();
+
+		assertNotSame(before, after);
+		assertTrue(server.isRegistered(name));
+		assertEquals(30000L, server.getAttribute(name, "WindowMillis"));
+
+		context.stop(10, TimeUnit.SECONDS);
+		context = null;
+		assertFalse(server.isRegistered(name));
+	}
+}
@@ -0,0 +1,120 @@
+package com.newrelic.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Masking of sensitive keys in JSON messages: nested values, key case, text
+ * around the JSON, and malformed JSON, which is masked rather than passed
+ * through.
+ */
+public class KeyRedactorTest {
+
+	private static final String X = KeyRedactor.MASK;
+
+	private final KeyRedactor redactor = new KeyRedactor("password, token,Secret");
+
+	@Test
+	public void masksKeysThatContainATermIgnoringCase() {
+		assertTrue(redactor.matches("dbPassword"));
+		assertTrue(redactor.matches("PASSWORD_HASH"));
+		assertTrue(redactor.matches("apiToken"));
+		assertTrue(redactor.matches("clientSECRET"));
+		assertFalse(redactor.matches("user"));
+
+		assertEquals("{\"user\":\"bob\",\"Password\":\"" + X + "\",\"PASSWORD\":\"" + X + "\"}",
+				redactor.redactJson("{\"user\":\"bob\",\"Password\":\"a\",\"PASSWORD\":\"b\"}"));
+	}
+
+	@Test
+	public void masksNestedObjectsAndArrays() {
+		String message = "{\"user\":{\"name\":\"bob\",\"apiToken\":\"abc\"},"
+				+ "\"items\":[{\"id\":1,\"secret\":\"s\"},{\"id\":2}],\"count\":2}";
+
+		assertEquals("{\"user\":{\"name\":\"bob\",\"apiToken\":\"" + X + "\"},"
+				+ "\"items\":[{\"id\":1,\"secret\":\"" + X + "\"},{\"id\":2}],\"count\":2}",
+				redactor.redactJson(message));
+	}
+
+	@Test
+	public void masksAnObjectOrArrayValueAsAWhole() {
+		assertEquals("{\"secrets\":\"" + X + "\",\"tokens\":\"" + X + "\",\"id\":1}",
+				redactor.redactJson("{\"secrets\":{\"a\":1,\"b\":[2]},\"tokens\":[\"t1\",\"t2\"],\"id\":1}"));
+	}
+
+	@Test
+	public void keepsTextAroundTheJson() {
+		String prefix = "2024-01-01 12:00:00,000 [main] INFO Login - ";
+
+		assertEquals(prefix + "{\"user\":\"bob\",\"password\":\"" + X + "\"} took 3 ms",
+				redactor.redactJson(prefix + "{\"user\":\"bob\",\"password\":\"hunter2\"} took 3 ms"));
+	}
+
+	@Test
+	public void leavesMessagesWithoutJsonOrTermsUnchanged() {
+		String plain = "password reset requested for bob";
+		String clean = "{\"user\":\"bob\",\"items\":3}";
+		String mentioned = "{\"event\":\"password reset\"}";
+
+		assertSame(plain, redactor.redactJson(plain));
+		assertSame(clean, redactor.redactJson(clean));
+		assertSame("term only in a value", mentioned, redactor.redactJson(mentioned));
+		assertEquals(null, redactor.redactJson(null));
+	}
+
+	@Test
+	public void malformedJsonFailsClosed() {
+		assertEquals("Login - " + X, redactor.redactJson("Login - {\"user\":\"bob\",\"password\":hunter2}"));
+		assertEquals("Login - " + X, redactor.redactJson("Login - {\"user\":\"bob\" \"password\":\"hunter2\"}"));
+	}
+
+	@Test
+	public void truncatedJsonFailsClosed() {
+		assertEquals("Login - " + X, redactor.redactJson("Login - {\"user\":\"bob\",\"password\":\"hunter2\""));
+		assertEquals("Login - " + X, redactor.redactJson("Login - {\"user\":\"bob\",\"password\":\"hun"));
+		assertEquals(X, redactor.redactJson("{\"tokens\":[\"t1\","));
+	}
+
+	@Test
+	public void masksEveryTopLevelValue() {
+		assertEquals("[{\"a\":1},{\"password\":\"" + X + "\"}]",
+				redactor.redactJson("[{\"a\":1},{\"password\":\"s3cr3t\"}]"));
+		assertEquals("ok {\"a\":1} then {\"password\":\"" + X + "\"}",
+				redactor.redactJson("ok {\"a\":1} then {\"password\":\"s3cr3t\"}"));
+		assertEquals("[main] {\"token\":\"" + X + "\"} and {\"secret\":\"" + X + "\"}",
+				redactor.redactJson("[main] {\"token\":\"t1\"} and {\"secret\":\"s1\"}"));
+	}
+
+	@Test
+	public void leavesBracesThatAreNotJsonAlone() {
+		String mdc = "{user=bob, traceId=1} Token refresh failed";
+		String tenant = "Password policy updated for tenant {acme}";
+		String thread = "[token-refresher] {\"password\":\"s3cr3t\"}";
+
+		assertSame(mdc, redactor.redactJson(mdc));
+		assertSame(tenant, redactor.redactJson(tenant));
+		assertEquals("[token-refresher] {\"password\":\"" + X + "\"}", redactor.redactJson(thread));
+	}
+
+	@Test
+	public void keepsValuesThatAreNotMaskedAsWritten() {
+		assertEquals("{ \"price\" : 1.10, \"qty\":1e3, \"name\":\"caf\\u00e9\", \"password\": \"" + X + "\" }",
+				redactor.redactJson(
+						"{ \"price\" : 1.10, \"qty\":1e3, \"name\":\"caf\\u00e9\", \"password\": \"x\\\"y\" }"));
+		assertEquals("{\"password\":\"" + X + "\",\"n\":-0.50}",
+				redactor.redactJson("{\"password\":12.0,\"n\":-0.50}"));
+	}
+
+	@Test
+	public void noTermsMeansNoRedaction() {
+		KeyRedactor empty = new KeyRedactor(" , ");
+		String message = "{\"password\":\"hunter2\"}";
+
+		assertTrue(empty.isEmpty());
+		assertSame(message, empty.redactJson(message));
+	}
+}
@@ -0,0 +1,226 @@
+package com.newrelic.labs;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.ConfigurationSource;
+import org.apache.logging.log4j.core.config.xml.XmlConfiguration;
+
+/**
+ * Drives a {@link LoadProfile} through a NewRelicBatchingAppender configured
+ * against a {@link LogsApiStandIn} and reports throughput, delivery latency,
+ * loss and eviction. Every event carries a sequence number so the stand-in can
+ * tell delivered, duplicated and lost events apart.
+ */
+public class LoadHarness {
+
+	static final String APPENDER_NAME = "NR";
+	static final String PATTERN_LAYOUT = "<PatternLayout pattern=\"%m\"/>";
+
+	/**
+	 * @return The sequence number written by the harness at the start of a
+	 *         message, or -1 when the message was not produced by it.
+	 */
+	static long sequenceOf(String message) {
+		if (message == null || !message.startsWith("seq=")) {
+			return -1;
+		}
+		long seq = 0;
+		for (int i = 4; i < message.length(); i++) {
+			char c = message.charAt(i);
+			if (c < '0' || c > '9') {
+				return i > 4 ? seq : -1;
+			}
+			seq = seq * 10 + (c - '0');
+		}
+		return seq;
+	}
+
+	public static Report run(LoadProfile profile, LogsApiStandIn standIn) throws Exception {
+		Map<String, String> attributes = new LinkedHashMap<>();
+		attributes.put("apiKey", "harness");
+		attributes.put("apiUrl", standIn.getUrl());
+		attributes.put("applicationName", "harness");
+		attributes.put("batchSize", "1000");
+		attributes.put("flushInterval", "1000");
+		attributes.putAll(profile.appenderAttributes);
+
+		LoggerContext context = startContext(attributes, PATTERN_LAYOUT);
+		NewRelicBatchingAppender appender = context.getConfiguration().getAppender(APPENDER_NAME);
+		Logger log = context.getLogger("com.newrelic.labs.harness.Load");
+
+		String padding = padding(profile.messageSize);
+		long intervalNanos = profile.eventsPerSecond > 0
+				? TimeUnit.SECONDS.toNanos(1) * profile.threads / profile.eventsPerSecond
+				: 0;
+
+		long start = System.nanoTime();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < profile.threads; t++) {
+			final long firstSeq = (long) t * profile.eventsPerThread;
+			Thread thread = new Thread(() -> {
+				long next = System.nanoTime();
+				for (int i = 0; i < profile.eventsPerThread; i++) {
+					for (int m = 0; m < profile.mdcEntries; m++) {
+						ThreadContext.put("key" + m, "value-" + (i % 16));
+					}
+					log.info("seq=" + (firstSeq + i) + "|" + padding);
+					if (intervalNanos > 0) {
+						next += intervalNanos;
+						long wait = next - System.nanoTime();
+						if (wait > 0) {
+							LockSupport.parkNanos(wait);
+						}
+					}
+				}
+				ThreadContext.clearMap();
+			}, "harness-load-" + t);
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long appended = System.nanoTime();
+
+		context.stop(profile.stopTimeoutMillis, TimeUnit.MILLISECONDS);
+		long stopped = System.nanoTime();
+
+		return new Report(profile, standIn, appender, appended - start, stopped - start);
+	}
+
+	/**
+	 * Starts a separate LoggerContext whose root logger writes to a
+	 * NewRelicBatchingAppender named {@link #APPENDER_NAME} with the given
+	 * attributes and layout element.
+	 */
+	static LoggerContext startContext(Map<String, String> attributes, String layout) throws IOException {
+		LoggerContext context = new LoggerContext("harness");
+		context.start(configuration(context, attributes, layout));
+		if (context.getConfiguration().getAppender(APPENDER_NAME) == null) {
+			throw new IllegalStateException("Appender was not created, check the attributes: " + attributes);
+		}
+		return context;
+	}
+
+	/**
+	 * @return A configuration for {@link #startContext}, also used to reconfigure
+	 *         a running context.
+	 */
+	static Configuration configuration(LoggerContext context, Map<String, String> attributes, String layout)
+			throws IOException {
+		return new XmlConfiguration(context, configurationSource(attributes, layout));
+	}
+
+	private static ConfigurationSource configurationSource(Map<String, String> attributes, String layout)
+			throws IOException {
+		StringBuilder xml = new StringBuilder();
+		xml.append("<Configuration status=\"ERROR\" packages=\"com.newrelic.labs\">\n");
+		xml.append("  <Appenders>\n");
+		xml.append("    <NewRelicBatchingAppender name=\"").append(APPENDER_NAME).append('"');
+		for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+			xml.append("\n        ").append(attribute.getKey()).append("=\"").append(escape(attribute.getValue()))
+					.append('"');
+		}
+		xml.append(">\n      ").append(layout).append('\n');
+		xml.append("    </NewRelicBatchingAppender>\n");
+		xml.append("  </Appenders>\n");
+		xml.append("  <Loggers><Root level=\"INFO\"><AppenderRef ref=\"").append(APPENDER_NAME)
+				.append("\"/></Root></Loggers>\n");
+		xml.append("</Configuration>\n");
+		return new ConfigurationSource(new ByteArrayInputStream(xml.toString().getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static String escape(String value) {
+		return value.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;");
+	}
+
+	private static String padding(int size) {
+		StringBuilder sb = new StringBuilder(size);
+		for (int i = 0; i < size; i++) {
+			sb.append((char) ('a' + i % 26));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Outcome of one run. Lost events are those generated but never accepted by
+	 * the stand-in, whatever the reason (eviction, rejection, retries exhausted
+	 * or the shutdown deadline).
+	 */
+	public static class Report {
+		public final long generated;
+		public final long delivered;
+		public final long duplicates;
+		public final long lost;
+		public final long evicted;
+		public final long dropped;
+		public final long rejected;
+		public final double appendRate;
+		public final double deliveryRate;
+		public final long latencyP50;
+		public final long latencyP90;
+		public final long latencyP99;
+		public final long latencyMax;
+		public final long requests;
+		public final long bytesReceived;
+		private final String profile;
+		private final String faults;
+		private final Map<String, Long> metrics;
+
+		Report(LoadProfile profile, LogsApiStandIn standIn, NewRelicBatchingAppender appender, long appendNanos,
+				long totalNanos) {
+			this.profile = profile.toString();
+			this.generated = profile.totalEvents();
+			this.delivered = standIn.getDeliveredCount();
+			this.duplicates = standIn.getDuplicateCount();
+			this.lost = generated - delivered;
+			this.evicted = appender.getEvictedCount();
+			this.dropped = appender.getDroppedCount();
+			this.rejected = appender.getMetrics().getRejectedEvents();
+			this.appendRate = generated * 1e9 / Math.max(1, appendNanos);
+			this.deliveryRate = delivered * 1e9 / Math.max(1, totalNanos);
+			this.latencyP50 = standIn.latencyPercentile(50);
+			this.latencyP90 = standIn.latencyPercentile(90);
+			this.latencyP99 = standIn.latencyPercentile(99);
+			this.latencyMax = standIn.latencyPercentile(100);
+			this.requests = standIn.getRequests();
+			this.bytesReceived = standIn.getBytesReceived();
+			this.faults = "500=" + standIn.getServerErrors() + ", 429=" + standIn.getThrottled() + ", 413="
+					+ standIn.getTooLarge() + ", resets=" + standIn.getResets();
+			this.metrics = appender.getMetrics().snapshot();
+		}
+
+		/**
+		 * @return The named counter from {@link AppenderMetrics#snapshot()}.
+		 */
+		public long metrics(String name) {
+			Long value = metrics.get(name);
+			return value != null ? value : 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"profile:    %s%n" + "events:     generated=%d delivered=%d lost=%d duplicates=%d%n"
+							+ "queue:      evicted=%d dropped=%d rejected=%d%n"
+							+ "throughput: append=%.0f/s delivery=%.0f/s%n"
+							+ "latency:    p50=%dms p90=%dms p99=%dms max=%dms%n"
+							+ "requests:   %d (%d compressed bytes accepted), faults: %s%n" + "metrics:    %s",
+					profile, generated, delivered, lost, duplicates, evicted, dropped, rejected, appendRate,
+					deliveryRate, latencyP50, latencyP90, latencyP99, latencyMax, requests, bytesReceived, faults,
+					metrics);
+		}
+	}
+}
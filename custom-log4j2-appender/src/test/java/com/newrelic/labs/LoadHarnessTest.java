@@ -0,0 +1,195 @@
+package com.newrelic.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * End-to-end runs of the appender against the Logs API stand-in. The fault
+ * scenarios are kept short so they run with every build; {@link #benchmark()}
+ * runs the profile given by {@code harness.*} system properties, e.g.
+ *
+ * <pre>
+ * mvn test -Dtest=LoadHarnessTest#benchmark -Dharness.benchmark=true -Dharness.threads=8 \
+ *     -Dharness.eventsPerThread=100000 -Dharness.appender.batchSize=5000
+ * </pre>
+ */
+public class LoadHarnessTest {
+
+	private LogsApiStandIn standIn;
+
+	@Before
+	public void startStandIn() throws Exception {
+		standIn = new LogsApiStandIn(42).start();
+	}
+
+	@After
+	public void stopStandIn() throws Exception {
+		standIn.close();
+	}
+
+	private LoadHarness.Report run(String name, LoadProfile profile) throws Exception {
+		LoadHarness.Report report = LoadHarness.run(profile, standIn);
+		System.out.println("== " + name + System.lineSeparator() + report);
+		assertEquals("duplicates", 0, report.duplicates);
+		assertEquals(report.generated, report.delivered + report.lost);
+		return report;
+	}
+
+	@Test
+	public void deliversEverythingWithoutFaults() throws Exception {
+		LoadHarness.Report report = run("no faults", new LoadProfile().threads(4).eventsPerThread(2500));
+
+		assertEquals(0, report.lost);
+		assertEquals(0, report.evicted);
+		assertTrue(report.latencyMax >= 0);
+	}
+
+	@Test
+	public void compressedSizeDecidesWhenPayloadsAreSplit() throws Exception {
+		// 5000 events compress to far less than maxMessageSize, so each batch must
+		// go out as one request rather than being split by event count
+		LoadHarness.Report report = run("large batches",
+				new LoadProfile().threads(1).eventsPerThread(5000).attribute("batchSize", 5000));
+
+		assertEquals(0, report.lost);
+		assertEquals(1, report.requests);
+	}
+
+	@Test
+	public void rendersOnBackgroundWorkers() throws Exception {
+		LoadHarness.Report report = run("background rendering", new LoadProfile().threads(4).eventsPerThread(2500)
+				.attribute("renderThreads", 2).attribute("renderQueueSize", 1024));
+
+		assertEquals(0, report.lost);
+	}
+
+	@Test
+	public void splitsOversizedMessagesIntoParts() throws Exception {
+		// About 20 KB per message, so five parts each; the sequence number is in the
+		// first part
+		LoadHarness.Report report = run("split messages", new LoadProfile().threads(2).eventsPerThread(250)
+				.messageSize(20000).attribute("messageChunkSize", 4096).attribute("batchSize", 100));
+
+		assertEquals(0, report.lost);
+		assertEquals(5 * report.generated, standIn.getParts());
+	}
+
+	@Test
+	public void boundsBacktrackingObfuscationPatterns() throws Exception {
+		// Backtracks for far longer than the run on 2000 characters without a '!'
+		LoadHarness.Report report = run("backtracking obfuscation", new LoadProfile().threads(2).eventsPerThread(200)
+				.messageSize(2000).attribute("obfuscationPatterns", "([a-z]+[a-z]+)+!")
+				.attribute("obfuscationBudget", 1).attribute("obfuscationOverrun", "pass"));
+
+		assertEquals(0, report.lost);
+		assertEquals(report.generated, report.metrics("obfuscationOverruns"));
+	}
+
+	@Test
+	public void compressesBatchesAsEntriesArrive() throws Exception {
+		LoadHarness.Report report = run("streaming compression", new LoadProfile().threads(1).eventsPerThread(5000)
+				.attribute("streamingCompression", true).attribute("batchSize", 5000));
+
+		assertEquals(0, report.lost);
+		assertEquals(1, report.requests);
+	}
+
+	@Test
+	public void streamingCompressionKeepsPayloadsUnderMaxMessageSize() throws Exception {
+		LoadHarness.Report report = run("streaming compression, small payloads",
+				new LoadProfile().threads(4).eventsPerThread(2500).attribute("streamingCompression", true)
+						.attribute("maxMessageSize", 16384).attribute("batchSize", 10000));
+
+		assertEquals(0, report.lost);
+		assertTrue(report.requests > 1);
+		assertTrue(standIn.getLargestRequest() <= 16384);
+	}
+
+	@Test
+	public void prewarmsConnectionsAtStart() throws Exception {
+		LoadHarness.Report report = run("pre-warmed connections",
+				new LoadProfile().threads(2).eventsPerThread(1000).attribute("prewarmConnections", true)
+						.attribute("connPoolSize", 3).attribute("dnsCacheTtl", 60000));
+
+		assertEquals(0, report.lost);
+		assertTrue(standIn.getPrewarms() >= 3);
+	}
+
+	@Test
+	public void survivesLatencyAndServerErrors() throws Exception {
+		standIn.withLatency(50).withServerErrors(0.2);
+		LoadHarness.Report report = run("latency and 5xx",
+				new LoadProfile().threads(4).eventsPerThread(2500).attribute("batchSize", 500));
+
+		assertTrue("some events delivered", report.delivered > 0);
+		assertTrue("server errors recorded", report.metrics("serverErrors") > 0);
+	}
+
+	@Test
+	public void throttlingDoesNotLoseEvents() throws Exception {
+		standIn.withThrottling(0.3, 1);
+		LoadHarness.Report report = run("429 with Retry-After",
+				new LoadProfile().threads(2).eventsPerThread(2500).attribute("batchSize", 500));
+
+		assertEquals(0, report.lost);
+		assertTrue("throttled responses recorded", report.metrics("throttledResponses") > 0);
+	}
+
+	@Test
+	public void expiresRequeuedEntriesPastTheirMaxAge() throws Exception {
+		standIn.withThrottling(0.3, 1);
+		LoadHarness.Report report = run("429 with retryMaxAge",
+				new LoadProfile().threads(2).eventsPerThread(2500).attribute("batchSize", 500)
+						.attribute("retryMaxAge", 1));
+
+		assertTrue("requeued entries expired", report.metrics("expiredRetries") > 0);
+		assertEquals("only expired entries are lost", report.metrics("expiredRetries"), report.lost);
+	}
+
+	@Test
+	public void tooLargeIsRejectedWithoutRetry() throws Exception {
+		standIn.withTooLarge(0.3);
+		LoadHarness.Report report = run("413",
+				new LoadProfile().threads(2).eventsPerThread(2500).attribute("batchSize", 500));
+
+		assertTrue("some payloads rejected", report.rejected > 0);
+		assertEquals("only rejected events are lost", report.rejected, report.lost);
+	}
+
+	@Test
+	public void survivesConnectionResets() throws Exception {
+		standIn.withConnectionResets(0.5);
+		LoadHarness.Report report = run("connection resets",
+				new LoadProfile().threads(2).eventsPerThread(2500).attribute("batchSize", 500));
+
+		assertTrue("some events delivered", report.delivered > 0);
+		assertTrue("network errors recorded", report.metrics("networkErrors") > 0);
+	}
+
+	@Test
+	public void reportsEvictionWhenTheQueueOverflows() throws Exception {
+		// Every request is throttled for longer than the run, so nothing leaves the queue
+		standIn.withThrottling(1.0, 60);
+		LoadHarness.Report report = run("overflowing queue", new LoadProfile().threads(4).eventsPerThread(5000)
+				.attribute("queueCapacity", 65536).attribute("batchSize", 200).stopTimeout(2000));
+
+		assertTrue("entries evicted", report.evicted > 0);
+		assertTrue("evicted entries are lost", report.lost >= report.evicted);
+	}
+
+	@Test
+	public void benchmark() throws Exception {
+		Assume.assumeTrue("set -Dharness.benchmark=true to run", Boolean.getBoolean("harness.benchmark"));
+		standIn.withLatency(Long.getLong("harness.latency", 0))
+				.withServerErrors(Double.parseDouble(System.getProperty("harness.serverErrors", "0")))
+				.withThrottling(Double.parseDouble(System.getProperty("harness.throttled", "0")), 1)
+				.withTooLarge(Double.parseDouble(System.getProperty("harness.tooLarge", "0")))
+				.withConnectionResets(Double.parseDouble(System.getProperty("harness.resets", "0")));
+		run("benchmark", LoadProfile.fromSystemProperties());
+	}
+}
@@ -0,0 +1,93 @@
+package com.newrelic.labs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shape of the load driven through the appender: number of logging threads,
+ * total event rate, message size and run length, plus the appender attributes
+ * to configure. {@link #fromSystemProperties()} reads the same settings from
+ * {@code harness.*} properties so release benchmarks can be repeated from the
+ * command line.
+ */
+public class LoadProfile {
+
+	int threads = 4;
+	int eventsPerThread = 5000;
+	long eventsPerSecond = 0; // total across threads, 0 for as fast as possible
+	int messageSize = 200;
+	int mdcEntries = 2;
+	long stopTimeoutMillis = 30000;
+	final Map<String, String> appenderAttributes = new LinkedHashMap<>();
+
+	public LoadProfile threads(int threads) {
+		this.threads = threads;
+		return this;
+	}
+
+	public LoadProfile eventsPerThread(int eventsPerThread) {
+		this.eventsPerThread = eventsPerThread;
+		return this;
+	}
+
+	public LoadProfile eventsPerSecond(long eventsPerSecond) {
+		this.eventsPerSecond = eventsPerSecond;
+		return this;
+	}
+
+	public LoadProfile messageSize(int messageSize) {
+		this.messageSize = messageSize;
+		return this;
+	}
+
+	public LoadProfile mdcEntries(int mdcEntries) {
+		this.mdcEntries = mdcEntries;
+		return this;
+	}
+
+	public LoadProfile stopTimeout(long millis) {
+		this.stopTimeoutMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Sets an attribute of the NewRelicBatchingAppender element, e.g.
+	 * {@code batchSize} or {@code overflowPolicy}.
+	 */
+	public LoadProfile attribute(String name, Object value) {
+		appenderAttributes.put(name, String.valueOf(value));
+		return this;
+	}
+
+	public long totalEvents() {
+		return (long) threads * eventsPerThread;
+	}
+
+	/**
+	 * Reads harness.threads, harness.eventsPerThread, harness.eventsPerSecond,
+	 * harness.messageSize, harness.mdcEntries and harness.stopTimeout, and any
+	 * harness.appender.&lt;attribute&gt; as an appender attribute.
+	 */
+	public static LoadProfile fromSystemProperties() {
+		LoadProfile profile = new LoadProfile();
+		profile.threads = Integer.getInteger("harness.threads", profile.threads);
+		profile.eventsPerThread = Integer.getInteger("harness.eventsPerThread", profile.eventsPerThread);
+		profile.eventsPerSecond = Long.getLong("harness.eventsPerSecond", profile.eventsPerSecond);
+		profile.messageSize = Integer.getInteger("harness.messageSize", profile.messageSize);
+		profile.mdcEntries = Integer.getInteger("harness.mdcEntries", profile.mdcEntries);
+		profile.stopTimeoutMillis = Long.getLong("harness.stopTimeout", profile.stopTimeoutMillis);
+		for (String key : System.getProperties().stringPropertyNames()) {
+			if (key.startsWith("harness.appender.")) {
+				profile.attribute(key.substring("harness.appender.".length()), System.getProperty(key));
+			}
+		}
+		return profile;
+	}
+
+	@Override
+	public String toString() {
+		return "threads=" + threads + ", eventsPerThread=" + eventsPerThread + ", eventsPerSecond="
+				+ (eventsPerSecond > 0 ? eventsPerSecond : "max") + ", messageSize=" + messageSize + ", mdcEntries="
+				+ mdcEntries + ", attributes=" + appenderAttributes;
+	}
+}
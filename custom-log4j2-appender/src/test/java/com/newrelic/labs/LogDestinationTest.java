@@ -0,0 +1,187 @@
+package com.newrelic.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * One payload sent to a primary and a secondary destination: each keeps its own
+ * in-flight limit, and a failure on one neither loses nor duplicates entries on
+ * the other. Also the parsing of the Retry-After header each destination's
+ * limiter honors.
+ */
+public class LogDestinationTest {
+
+	private static final int BATCH = 100;
+
+	private LogsApiStandIn primary;
+	private LogsApiStandIn secondary;
+	private NRBufferWithFifoEviction<LogEntry> retryQueue;
+	private LogForwarder forwarder;
+
+	@Before
+	public void start() throws Exception {
+		primary = new LogsApiStandIn(1).start();
+		secondary = new LogsApiStandIn(2).start();
+		NRBufferWithFifoEviction<LogEntry> queue = new NRBufferWithFifoEviction<>(1024 * 1024,
+				entry -> entry.getMessage().length());
+		retryQueue = new NRBufferWithFifoEviction<>(1024 * 1024, entry -> entry.getMessage().length());
+		forwarder = new LogForwarder("primary-key", primary.getUrl(), 1024 * 1024, queue, 3, 5000, 2, 1,
+				LogDestination.parse(secondary.getUrl() + "|secondary-key", 1), new AppenderMetrics(), retryQueue,
+				LogForwarder.DEFAULT_KEEP_ALIVE, 0);
+	}
+
+	@After
+	public void stop() throws Exception {
+		forwarder.shutdown();
+		primary.close();
+		secondary.close();
+	}
+
+	private static List<LogEntry> batch(int firstSeq) {
+		List<LogEntry> batch = new ArrayList<>();
+		for (int i = 0; i < BATCH; i++) {
+			batch.add(new LogEntry("seq=" + (firstSeq + i) + "|destination", "destinations", "destinations",
+					"log", "com.newrelic.labs.Destinations", "INFO", System.currentTimeMillis(),
+					Collections.<String, Object>emptyMap(), false));
+		}
+		return batch;
+	}
+
+	private static final class Outcome implements FlushCallback {
+		final AtomicLong sent = new AtomicLong();
+		final List<Map<String, Object>> failed = Collections.synchronizedList(new ArrayList<>());
+
+		@Override
+		public void onSuccess() {
+		}
+
+		@Override
+		public void onSuccess(int sentCount) {
+			sent.addAndGet(sentCount);
+		}
+
+		@Override
+		public void onFailure(List<Map<String, Object>> failedLogEvents) {
+			failed.addAll(failedLogEvents);
+		}
+	}
+
+	private void send(int firstSeq, Outcome outcome) {
+		forwarder.flushAsync(batch(firstSeq), false, null, outcome);
+	}
+
+	private void awaitInFlight() {
+		assertTrue("requests completed", forwarder.awaitInFlight(System.currentTimeMillis() + 10000));
+	}
+
+	private void awaitResume(LogDestination destination) throws InterruptedException {
+		Thread.sleep(destination.getRateLimiter().remainingPause() + 50);
+	}
+
+	@Test
+	public void eachDestinationHasItsOwnInFlightLimit() throws Exception {
+		secondary.withLatency(500);
+		Outcome outcome = new Outcome();
+		for (int i = 0; i < 3; i++) {
+			send(i * BATCH, outcome);
+		}
+		LogDestination first = forwarder.getDestinations().get(0);
+		LogDestination second = forwarder.getDestinations().get(1);
+
+		// The primary is done while the slow secondary still works through its
+		// payloads one at a time
+		long deadline = System.currentTimeMillis() + 2000;
+		while (outcome.sent.get() < 3 * BATCH && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(3 * BATCH, outcome.sent.get());
+		assertEquals(0, first.getInFlight());
+		assertEquals(1, second.getInFlight());
+		assertTrue(forwarder.getInFlightCalls() >= 2);
+
+		awaitInFlight();
+		assertEquals(0, second.getInFlight());
+		assertEquals(3, second.getSentPayloads());
+		assertEquals(3 * BATCH, secondary.getDeliveredCount());
+		assertEquals(0, secondary.getDuplicateCount());
+	}
+
+	@Test
+	public void secondaryOutageDoesNotAffectThePrimary() throws Exception {
+		secondary.withServerErrors(1.0);
+		Outcome outcome = new Outcome();
+		// Two payloads, so the backoff after their failures stays short
+		for (int i = 0; i < 2; i++) {
+			send(i * BATCH, outcome);
+		}
+		awaitInFlight();
+		LogDestination second = forwarder.getDestinations().get(1);
+
+		assertEquals(2 * BATCH, outcome.sent.get());
+		assertTrue(outcome.failed.isEmpty());
+		assertEquals(0, retryQueue.size());
+		assertEquals(2 * BATCH, primary.getDeliveredCount());
+		assertTrue(second.getFailedPayloads() > 0);
+		assertEquals(0, secondary.getDeliveredCount());
+
+		// The secondary resends what it missed along with its next payload
+		secondary.withServerErrors(0);
+		awaitResume(second);
+		send(2 * BATCH, outcome);
+		awaitInFlight();
+
+		assertEquals(3 * BATCH, primary.getDeliveredCount());
+		assertEquals(0, primary.getDuplicateCount());
+		assertEquals(3 * BATCH, secondary.getDeliveredCount());
+		assertEquals(0, secondary.getDuplicateCount());
+		assertEquals(0, second.getDroppedPayloads());
+	}
+
+	@Test
+	public void primaryRetriesAreNotSentToTheSecondaryAgain() throws Exception {
+		primary.withServerErrors(1.0);
+		Outcome outcome = new Outcome();
+		send(0, outcome);
+		awaitInFlight();
+
+		assertEquals(BATCH, outcome.failed.size());
+		assertEquals(BATCH, secondary.getDeliveredCount());
+		long secondaryRequests = secondary.getRequests();
+
+		// What the pipeline does with entries from its retry lane
+		primary.withServerErrors(0);
+		awaitResume(forwarder.getDestinations().get(0));
+		List<LogEntry> retries = new ArrayList<>();
+		for (Map<String, Object> logEvent : outcome.failed) {
+			retries.add(forwarder.convertToLogEntry(logEvent));
+		}
+		forwarder.flushAsync(retries, false, null, outcome, true);
+		awaitInFlight();
+
+		assertEquals(BATCH, outcome.sent.get());
+		assertEquals(BATCH, primary.getDeliveredCount());
+		assertEquals(secondaryRequests, secondary.getRequests());
+		assertEquals(0, secondary.getDuplicateCount());
+	}
+
+	@Test
+	public void retryAfterIsClampedAndNegativeValuesAreInvalid() {
+		assertEquals(30000, SendRateLimiter.parseRetryAfter(" 30 "));
+		assertEquals(0, SendRateLimiter.parseRetryAfter("0"));
+		assertEquals(SendRateLimiter.MAX_RETRY_AFTER, SendRateLimiter.parseRetryAfter("3600"));
+		// Would overflow when converted to milliseconds before clamping
+		assertEquals(SendRateLimiter.MAX_RETRY_AFTER, SendRateLimiter.parseRetryAfter(String.valueOf(Long.MAX_VALUE)));
+		assertEquals(-1, SendRateLimiter.parseRetryAfter("-5"));
+		assertEquals(-1, SendRateLimiter.parseRetryAfter("soon"));
+	}
+}
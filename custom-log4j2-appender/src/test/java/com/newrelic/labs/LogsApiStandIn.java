@@ -0,0 +1,307 @@
+package com.newrelic.labs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+/**
+ * In-process stand-in for the New Relic Logs API. Accepted payloads are
+ * decompressed and every event is recorded by its sequence number with the
+ * delay between its timestamp and its arrival. Faults (latency, 5xx, 429, 413,
+ * connection resets) are injected per request with fixed probabilities and a
+ * seeded random source, so a run is repeatable.
+ */
+public class LogsApiStandIn implements Closeable {
+
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+	private static final TypeReference<List<Map<String, Object>>> EVENTS = new TypeReference<List<Map<String, Object>>>() {
+	};
+
+	private final MockWebServer server = new MockWebServer();
+	private final Random random;
+	private volatile long latencyMillis;
+	private volatile double serverErrorRate;
+	private volatile double throttleRate;
+	private volatile long retryAfterSeconds = 1;
+	private volatile double tooLargeRate;
+	private volatile double resetRate;
+	private volatile boolean keepMessages;
+
+	private final Map<Long, Boolean> delivered = new ConcurrentHashMap<>();
+	private final AtomicLong duplicates = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong serverErrors = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicLong tooLarge = new AtomicLong();
+	private final AtomicLong resets = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong largestRequest = new AtomicLong();
+	private final AtomicLong prewarms = new AtomicLong();
+	private final AtomicLong parts = new AtomicLong();
+	private final AtomicLong stacks = new AtomicLong();
+	private final ConcurrentLinkedQueue<String> messages = new ConcurrentLinkedQueue<>();
+	private long[] latencies = new long[1024]; // guarded by this
+	private int latencyCount; // guarded by this
+
+	public LogsApiStandIn(long seed) {
+		this.random = new Random(seed);
+		java.util.logging.Logger.getLogger(MockWebServer.class.getName()).setLevel(Level.WARNING);
+		server.setDispatcher(new Dispatcher() {
+			@Override
+			public MockResponse dispatch(RecordedRequest request) {
+				return respond(request);
+			}
+		});
+	}
+
+	public LogsApiStandIn start() throws IOException {
+		server.start();
+		return this;
+	}
+
+	public String getUrl() {
+		return server.url("/log/v1").toString();
+	}
+
+	public LogsApiStandIn withLatency(long millis) {
+		this.latencyMillis = millis;
+		return this;
+	}
+
+	public LogsApiStandIn withServerErrors(double rate) {
+		this.serverErrorRate = rate;
+		return this;
+	}
+
+	public LogsApiStandIn withThrottling(double rate, long retryAfterSeconds) {
+		this.throttleRate = rate;
+		this.retryAfterSeconds = retryAfterSeconds;
+		return this;
+	}
+
+	public LogsApiStandIn withTooLarge(double rate) {
+		this.tooLargeRate = rate;
+		return this;
+	}
+
+	/**
+	 * Keeps the message of every accepted event, sequenced or not, for
+	 * {@link #getMessages()}.
+	 */
+	public LogsApiStandIn keepMessages() {
+		this.keepMessages = true;
+		return this;
+	}
+
+	public LogsApiStandIn withConnectionResets(double rate) {
+		this.resetRate = rate;
+		return this;
+	}
+
+	private MockResponse respond(RecordedRequest request) {
+		if (request.getHeader("X-License-Key") == null) {
+			return new MockResponse().setResponseCode(403);
+		}
+		if (isEmpty(request)) {
+			// Connection pre-warming, not a send
+			prewarms.incrementAndGet();
+			return new MockResponse().setResponseCode(202).setBody("{\"requestId\":\"prewarm\"}");
+		}
+		requests.incrementAndGet();
+		double roll;
+		synchronized (random) {
+			roll = random.nextDouble();
+		}
+		MockResponse response = new MockResponse();
+		if (latencyMillis > 0) {
+			response.setHeadersDelay(latencyMillis, TimeUnit.MILLISECONDS);
+		}
+		if ((roll -= resetRate) < 0) {
+			resets.incrementAndGet();
+			return response.setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+		}
+		if ((roll -= serverErrorRate) < 0) {
+			serverErrors.incrementAndGet();
+			return response.setResponseCode(500);
+		}
+		if ((roll -= throttleRate) < 0) {
+			throttled.incrementAndGet();
+			return response.setResponseCode(429).setHeader("Retry-After", retryAfterSeconds);
+		}
+		if ((roll -= tooLargeRate) < 0) {
+			tooLarge.incrementAndGet();
+			return response.setResponseCode(413);
+		}
+		try {
+			record(request);
+		} catch (IOException e) {
+			return response.setResponseCode(400).setBody(e.toString());
+		}
+		accepted.incrementAndGet();
+		return response.setResponseCode(202).setBody("{\"requestId\":\"" + requests.get() + "\"}");
+	}
+
+	private boolean isEmpty(RecordedRequest request) {
+		if (request.getBodySize() == 0 || request.getBodySize() > 64) {
+			return false;
+		}
+		try (InputStream in = new GZIPInputStream(request.getBody().clone().inputStream())) {
+			return objectMapper.readValue(in, EVENTS).isEmpty();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void record(RecordedRequest request) throws IOException {
+		long now = System.currentTimeMillis();
+		bytesReceived.addAndGet(request.getBodySize());
+		largestRequest.accumulateAndGet(request.getBodySize(), Math::max);
+		List<Map<String, Object>> events;
+		try (InputStream in = new GZIPInputStream(request.getBody().inputStream())) {
+			events = objectMapper.readValue(in, EVENTS);
+		}
+		for (Map<String, Object> event : events) {
+			if (event.containsKey("part.index")) {
+				parts.incrementAndGet();
+			}
+			if (event.containsKey("error.stack")) {
+				stacks.incrementAndGet();
+			}
+			if (keepMessages) {
+				messages.add(String.valueOf(event.get("message")));
+			}
+			long seq = LoadHarness.sequenceOf(String.valueOf(event.get("message")));
+			if (seq < 0) {
+				continue;
+			}
+			if (delivered.putIfAbsent(seq, Boolean.TRUE) != null) {
+				duplicates.incrementAndGet();
+				continue;
+			}
+			Object timestamp = event.get("timestamp");
+			if (timestamp instanceof Number) {
+				addLatency(now - ((Number) timestamp).longValue());
+			}
+		}
+	}
+
+	private synchronized void addLatency(long millis) {
+		if (latencyCount == latencies.length) {
+			latencies = Arrays.copyOf(latencies, latencies.length * 2);
+		}
+		latencies[latencyCount++] = millis;
+	}
+
+	/**
+	 * @return Delivery latency percentile in milliseconds (0-100), or -1 when
+	 *         nothing was delivered.
+	 */
+	public synchronized long latencyPercentile(double percentile) {
+		if (latencyCount == 0) {
+			return -1;
+		}
+		long[] sorted = Arrays.copyOf(latencies, latencyCount);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+
+	public long getDeliveredCount() {
+		return delivered.size();
+	}
+
+	public long getDuplicateCount() {
+		return duplicates.get();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getAccepted() {
+		return accepted.get();
+	}
+
+	public long getServerErrors() {
+		return serverErrors.get();
+	}
+
+	public long getThrottled() {
+		return throttled.get();
+	}
+
+	public long getTooLarge() {
+		return tooLarge.get();
+	}
+
+	public long getResets() {
+		return resets.get();
+	}
+
+	/**
+	 * @return Number of accepted events that carry one part of a split message.
+	 */
+	public long getParts() {
+		return parts.get();
+	}
+
+	/**
+	 * @return Number of accepted events that carry a full stack trace.
+	 */
+	public long getStacks() {
+		return stacks.get();
+	}
+
+	/**
+	 * @return Messages of the accepted events in arrival order; empty unless
+	 *         {@link #keepMessages()} was called.
+	 */
+	public List<String> getMessages() {
+		return new ArrayList<>(messages);
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * @return Number of empty payloads sent to open or keep connections, not
+	 *         counted as requests.
+	 */
+	public long getPrewarms() {
+		return prewarms.get();
+	}
+
+	/**
+	 * @return Compressed size of the largest accepted request.
+	 */
+	public long getLargestRequest() {
+		return largestRequest.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.shutdown();
+	}
+}
@@ -0,0 +1,156 @@
+package com.newrelic.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.core.LoggerContext;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * The obfuscation time budget: a pattern that backtracks catastrophically is
+ * stopped shortly after the budget, and the appender then masks, drops or
+ * passes the message as obfuscationOverrun says and counts the overrun.
+ */
+public class MessageObfuscatorTest {
+
+	// Backtracks for seconds on a long enough list without the X
+	private static final String RUNAWAY_PATTERN = "(.*,){20}X";
+	private static final long BUDGET = 50;
+
+	private LogsApiStandIn standIn;
+	private LoggerContext context;
+
+	@After
+	public void stop() throws Exception {
+		if (context != null) {
+			context.stop(10, TimeUnit.SECONDS);
+		}
+		if (standIn != null) {
+			standIn.close();
+		}
+	}
+
+	private static String runawayInput(int seq) {
+		StringBuilder message = new StringBuilder("seq=" + seq + "|");
+		for (int i = 0; i < 30; i++) {
+			message.append("a,");
+		}
+		return message.toString();
+	}
+
+	@Test
+	public void masksMatchesWithinTheBudget() {
+		MessageObfuscator obfuscator = new MessageObfuscator("\\d{4}-\\d{4}^^secret", BUDGET);
+
+		assertEquals("card XXXXXXXXX, XXXXXX kept", obfuscator.obfuscate("card 1234-5678, secret kept"));
+		assertEquals("nothing to hide", obfuscator.obfuscate("nothing to hide"));
+	}
+
+	@Test
+	public void stopsABacktrackingPatternShortlyAfterTheBudget() {
+		MessageObfuscator obfuscator = new MessageObfuscator(RUNAWAY_PATTERN, BUDGET);
+
+		long start = System.nanoTime();
+		try {
+			obfuscator.obfuscate(runawayInput(0));
+			fail("matched without running past the budget");
+		} catch (DeadlineCharSequence.DeadlineExceededException expected) {
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			assertTrue(elapsed + " ms", elapsed >= BUDGET && elapsed < 1000);
+		}
+	}
+
+	@Test
+	public void deadlineStopsAMatcherOnItsOwn() {
+		DeadlineCharSequence text = new DeadlineCharSequence(runawayInput(0), System.nanoTime());
+
+		try {
+			Pattern.compile(RUNAWAY_PATTERN).matcher(text).find();
+			fail("matched past the deadline");
+		} catch (DeadlineCharSequence.DeadlineExceededException expected) {
+			// Thrown within the first 1024 reads
+		}
+		assertEquals("a,", text.subSequence(6, 8).toString());
+	}
+
+	private NewRelicBatchingAppender startAppender(String overrun) throws Exception {
+		standIn = new LogsApiStandIn(1).keepMessages().start();
+		Map<String, String> attributes = new LinkedHashMap<>();
+		attributes.put("apiKey", "obfuscation");
+		attributes.put("apiUrl", standIn.getUrl());
+		attributes.put("applicationName", "obfuscation");
+		attributes.put("flushInterval", "100");
+		attributes.put("obfuscationPatterns", RUNAWAY_PATTERN + "^^secret");
+		attributes.put("obfuscationBudget", String.valueOf(BUDGET));
+		if (overrun != null) {
+			attributes.put("obfuscationOverrun", overrun);
+		}
+		context = LoadHarness.startContext(attributes, LoadHarness.PATTERN_LAYOUT);
+		return context.getConfiguration().getAppender(LoadHarness.APPENDER_NAME);
+	}
+
+	// Logs the runaway message, then one that obfuscates in time, and returns
+	// what arrived once the expected number of sequenced events has
+	private List<String> logAndCollect(NewRelicBatchingAppender appender, long delivered) throws Exception {
+		context.getLogger("com.example.Obfuscation").info(runawayInput(0));
+		context.getLogger("com.example.Obfuscation").info("seq=1|secret");
+		long deadline = System.currentTimeMillis() + 5000;
+		while (standIn.getDeliveredCount() < delivered && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, appender.getMetrics().getObfuscationOverruns());
+		return standIn.getMessages();
+	}
+
+	@Test
+	public void maskPolicyReplacesTheWholeMessage() throws Exception {
+		NewRelicBatchingAppender appender = startAppender(null); // mask by default
+		String runaway = runawayInput(0);
+
+		List<String> messages = logAndCollect(appender, 1);
+
+		char[] masked = new char[runaway.length()];
+		Arrays.fill(masked, 'X');
+		assertEquals(Arrays.asList(new String(masked), "seq=1|XXXXXX"), messages);
+	}
+
+	@Test
+	public void dropPolicyDiscardsTheEvent() throws Exception {
+		NewRelicBatchingAppender appender = startAppender("drop");
+
+		List<String> messages = logAndCollect(appender, 1);
+
+		assertEquals(Collections.singletonList("seq=1|XXXXXX"), messages);
+	}
+
+	@Test
+	public void passPolicySendsTheMessageUnobfuscated() throws Exception {
+		NewRelicBatchingAppender appender = startAppender("PASS");
+
+		List<String> messages = logAndCollect(appender, 2);
+
+		assertEquals(Arrays.asList(runawayInput(0), "seq=1|XXXXXX"), messages);
+	}
+
+	@Test
+	public void countsEveryOverrun() throws Exception {
+		NewRelicBatchingAppender appender = startAppender("drop");
+
+		for (int seq = 0; seq < 3; seq++) {
+			context.getLogger("com.example.Obfuscation").info(runawayInput(seq));
+		}
+
+		assertEquals(3, appender.getMetrics().getObfuscationOverruns());
+		assertEquals(Long.valueOf(3), appender.getMetrics().snapshot().get("obfuscationOverruns"));
+	}
+}
@@ -0,0 +1,144 @@
+package com.newrelic.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Splitting messages on UTF-8 byte boundaries without cutting a character or a
+ * surrogate pair, and the attributes that link the parts.
+ */
+public class MessagePartTest {
+
+	private static final String E_ACUTE = "é"; // 2 bytes
+	private static final String EURO = "€"; // 3 bytes
+	private static final String SMILE = "😀"; // 4 bytes, a surrogate pair
+
+	private static String repeat(String s, int times) {
+		return String.join("", Collections.nCopies(times, s));
+	}
+
+	private static int utf8(String s) {
+		return s.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	private static void assertValidSplit(String message, int maxBytes, List<String> parts) {
+		assertEquals(message, String.join("", parts));
+		for (String part : parts) {
+			assertFalse(part.isEmpty());
+			assertTrue(part + " is " + utf8(part) + " bytes", utf8(part) <= maxBytes);
+			assertFalse("starts inside a surrogate pair", Character.isLowSurrogate(part.charAt(0)));
+			assertFalse("ends inside a surrogate pair", Character.isHighSurrogate(part.charAt(part.length() - 1)));
+		}
+	}
+
+	@Test
+	public void messageOfExactlyTheLimitIsNotSplit() {
+		String ascii = repeat("a", 12);
+		String twoByte = repeat(E_ACUTE, 6);
+		String fourByte = repeat(SMILE, 3);
+
+		assertEquals(12, utf8(twoByte));
+		assertSame(ascii, MessagePart.split(ascii, 12).get(0));
+		assertEquals(1, MessagePart.split(ascii, 12).size());
+		assertEquals(Arrays.asList(twoByte), MessagePart.split(twoByte, 12));
+		assertEquals(Arrays.asList(fourByte), MessagePart.split(fourByte, 12));
+	}
+
+	@Test
+	public void oneByteOverTheLimitStartsASecondPart() {
+		assertEquals(Arrays.asList(repeat("a", 12), "a"), MessagePart.split(repeat("a", 13), 12));
+		assertEquals(Arrays.asList(repeat(E_ACUTE, 6), E_ACUTE), MessagePart.split(repeat(E_ACUTE, 7), 12));
+	}
+
+	@Test
+	public void multibyteCharactersAreNeverCut() {
+		// 10 bytes hold three 3-byte characters, not three and a third
+		String message = repeat(EURO, 7);
+		List<String> parts = MessagePart.split(message, 10);
+
+		assertValidSplit(message, 10, parts);
+		assertEquals(Arrays.asList(repeat(EURO, 3), repeat(EURO, 3), EURO), parts);
+	}
+
+	@Test
+	public void surrogatePairsStayTogether() {
+		// "a" and the first pair fill 5 of 6 bytes; the second pair goes to the next part
+		String message = "a" + SMILE + SMILE + "b";
+		List<String> parts = MessagePart.split(message, 6);
+
+		assertValidSplit(message, 6, parts);
+		assertEquals(Arrays.asList("a" + SMILE, SMILE + "b"), parts);
+	}
+
+	@Test
+	public void characterWiderThanTheLimitGetsAPartOfItsOwn() {
+		List<String> parts = MessagePart.split("ab" + SMILE + "cd", 3);
+
+		assertEquals(Arrays.asList("ab", SMILE, "cd"), parts);
+	}
+
+	@Test
+	public void randomMixedTextSplitsCleanly() {
+		String[] alphabet = { "a", "Z", " ", E_ACUTE, EURO, SMILE };
+		Random random = new Random(7);
+		for (int round = 0; round < 200; round++) {
+			StringBuilder message = new StringBuilder();
+			int length = random.nextInt(200);
+			for (int i = 0; i < length; i++) {
+				message.append(alphabet[random.nextInt(alphabet.length)]);
+			}
+			int maxBytes = 4 + random.nextInt(40);
+
+			assertValidSplit(message.toString(), maxBytes, MessagePart.split(message.toString(), maxBytes));
+		}
+	}
+
+	@Test
+	public void partsShareAnIdAndAreNumberedFromZero() {
+		MessagePart[] parts = MessagePart.number(4);
+		MessagePart[] other = MessagePart.number(4);
+
+		assertEquals(4, parts.length);
+		for (int i = 0; i < parts.length; i++) {
+			assertEquals(parts[0].getMessageId(), parts[i].getMessageId());
+			assertEquals(i, parts[i].getIndex());
+			assertEquals(4, parts[i].getCount());
+		}
+		assertNotEquals(parts[0].getMessageId(), other[0].getMessageId());
+	}
+
+	@Test
+	public void partAttributesSurviveARequeue() {
+		LogForwarder forwarder = new LogForwarder("parts", "http://localhost:1/log/v1", 1048576,
+				new NRBufferWithFifoEviction<LogEntry>(1048576, entry -> 1), 3, 1000, 1);
+		try {
+			MessagePart part = MessagePart.number(3)[1];
+			LogEntry entry = new LogEntry("middle", "parts", "parts", "log", "com.newrelic.labs.Parts", "INFO",
+					System.currentTimeMillis(), Collections.<String, Object>emptyMap(), null, part);
+
+			Map<String, Object> logEvent = forwarder.toLogEvent(entry, false, null);
+			assertEquals(part.getMessageId(), logEvent.get("message.id"));
+			assertEquals(1, logEvent.get("part.index"));
+			assertEquals(3, logEvent.get("part.count"));
+
+			MessagePart requeued = forwarder.convertToLogEntry(logEvent).getPart();
+			assertEquals(part.getMessageId(), requeued.getMessageId());
+			assertEquals(1, requeued.getIndex());
+			assertEquals(3, requeued.getCount());
+		} finally {
+			forwarder.shutdown();
+		}
+	}
+}
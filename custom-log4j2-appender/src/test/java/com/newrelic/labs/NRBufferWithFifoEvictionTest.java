@@ -0,0 +1,241 @@
+package com.newrelic.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Overflow policies of the queue: eviction, dropping the new entry, and
+ * producers parked until the drainer, a timeout or close() releases them. Also
+ * logger quotas: which entries are evicted, in what order, and a quota being
+ * exhausted and released again by a drain.
+ */
+public class NRBufferWithFifoEvictionTest {
+
+	// Every element costs its length; the buffer holds four "abcd"s
+	private static final long CAPACITY = 16;
+
+	private final ExecutorService producers = Executors.newCachedThreadPool();
+
+	@After
+	public void stop() {
+		producers.shutdownNow();
+	}
+
+	private static NRBufferWithFifoEviction<String> buffer(OverflowPolicy policy, long overflowMaxWait) {
+		NRBufferWithFifoEviction<String> buffer = new NRBufferWithFifoEviction<>(CAPACITY, String::length, policy,
+				overflowMaxWait);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(buffer.add("old" + i));
+		}
+		return buffer;
+	}
+
+	private static List<String> drain(NRBufferWithFifoEviction<String> buffer) {
+		List<String> drained = new ArrayList<>();
+		buffer.drainTo(drained, Integer.MAX_VALUE);
+		return drained;
+	}
+
+	@Test
+	public void evictRemovesTheOldestEntries() {
+		NRBufferWithFifoEviction<String> buffer = buffer(OverflowPolicy.EVICT, 0);
+
+		assertTrue(buffer.add("new0"));
+
+		assertEquals(1, buffer.getEvictedCount());
+		assertEquals(0, buffer.getDroppedCount());
+		assertEquals("[old1, old2, old3, new0]", drain(buffer).toString());
+	}
+
+	@Test
+	public void dropNewKeepsTheQueuedEntries() {
+		NRBufferWithFifoEviction<String> buffer = buffer(OverflowPolicy.DROP_NEW, 0);
+
+		assertFalse(buffer.add("new0"));
+		assertFalse(buffer.add("new1"));
+
+		assertEquals(2, buffer.getDroppedCount());
+		assertEquals(0, buffer.getEvictedCount());
+		assertEquals("[old0, old1, old2, old3]", drain(buffer).toString());
+	}
+
+	@Test
+	public void blockWaitsForTheDrainer() throws Exception {
+		NRBufferWithFifoEviction<String> buffer = buffer(OverflowPolicy.BLOCK, 0);
+		CountDownLatch overflowed = new CountDownLatch(1);
+		buffer.setOverflowListener(overflowed::countDown);
+
+		Future<Boolean> added = producers.submit(() -> buffer.add("new0"));
+		assertTrue("drain requested", overflowed.await(5, TimeUnit.SECONDS));
+		Thread.sleep(200);
+		assertFalse("producer parked", added.isDone());
+
+		List<String> drained = new ArrayList<>();
+		buffer.drainTo(drained, 1);
+		assertTrue(added.get(5, TimeUnit.SECONDS));
+
+		assertEquals(0, buffer.getEvictedCount());
+		assertEquals(0, buffer.getDroppedCount());
+		assertEquals("[old1, old2, old3, new0]", drain(buffer).toString());
+	}
+
+	@Test
+	public void blockWithTimeoutFallsBackToEviction() throws Exception {
+		NRBufferWithFifoEviction<String> buffer = buffer(OverflowPolicy.BLOCK_WITH_TIMEOUT, 300);
+
+		long start = System.nanoTime();
+		assertTrue(buffer.add("new0"));
+		long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		assertTrue("waited " + waited + " ms", waited >= 250);
+		assertEquals(1, buffer.getEvictedCount());
+		assertEquals("[old1, old2, old3, new0]", drain(buffer).toString());
+	}
+
+	@Test
+	public void blockDropsAnEntryThatCanNeverFit() {
+		NRBufferWithFifoEviction<String> buffer = buffer(OverflowPolicy.BLOCK, 0);
+
+		assertFalse(buffer.add("longer than the whole capacity"));
+
+		assertEquals(1, buffer.getDroppedCount());
+		assertEquals(4, buffer.size());
+	}
+
+	@Test
+	public void closeReleasesBlockedProducers() throws Exception {
+		NRBufferWithFifoEviction<String> buffer = buffer(OverflowPolicy.BLOCK, 0);
+		CountDownLatch overflowed = new CountDownLatch(2);
+		buffer.setOverflowListener(overflowed::countDown);
+
+		Future<Boolean> first = producers.submit(() -> buffer.add("new0"));
+		Future<Boolean> second = producers.submit(() -> buffer.add("new1"));
+		assertTrue(overflowed.await(5, TimeUnit.SECONDS));
+		Thread.sleep(200);
+		assertFalse(first.isDone() || second.isDone());
+
+		buffer.close();
+
+		// Released producers fall back to eviction instead of losing their entry
+		assertTrue(first.get(5, TimeUnit.SECONDS));
+		assertTrue(second.get(5, TimeUnit.SECONDS));
+		assertEquals(2, buffer.getEvictedCount());
+		assertEquals(0, buffer.getDroppedCount());
+		assertTrue(drain(buffer).containsAll(Arrays.asList("new0", "new1")));
+	}
+
+	@Test
+	public void interruptedProducerDropsItsEntry() throws Exception {
+		NRBufferWithFifoEviction<String> buffer = buffer(OverflowPolicy.BLOCK, 0);
+		CountDownLatch overflowed = new CountDownLatch(1);
+		buffer.setOverflowListener(overflowed::countDown);
+
+		Future<Boolean> added = producers.submit(() -> buffer.add("new0"));
+		assertTrue(overflowed.await(5, TimeUnit.SECONDS));
+		producers.shutdownNow();
+
+		assertTrue(producers.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals(1, buffer.getDroppedCount());
+		assertEquals("[old0, old1, old2, old3]", drain(buffer).toString());
+		assertTrue(added.isDone());
+	}
+
+	// Loggers are named by what comes before ':'; "pay" may keep two entries
+	private static NRBufferWithFifoEviction<String> quotaBuffer(OverflowPolicy policy) {
+		NRBufferWithFifoEviction<String> buffer = new NRBufferWithFifoEviction<>(40, String::length, policy, 0);
+		buffer.setQuotas(new ByteQuotas<String>("pay=10", 40, e -> e.substring(0, e.indexOf(':'))));
+		return buffer;
+	}
+
+	private static void add(NRBufferWithFifoEviction<String> buffer, String logger, int from, int to) {
+		for (int i = from; i < to; i++) {
+			assertTrue(buffer.add(logger + ":" + i));
+		}
+	}
+
+	private static long usage(NRBufferWithFifoEviction<String> buffer, String group) {
+		return buffer.getQuotas().usage().get(group);
+	}
+
+	@Test
+	public void loggerOverItsQuotaLosesItsOwnOldestEntries() {
+		NRBufferWithFifoEviction<String> buffer = quotaBuffer(OverflowPolicy.EVICT);
+		add(buffer, "pay", 0, 2);
+		add(buffer, "web", 0, 6);
+
+		assertTrue(buffer.add("pay:2"));
+
+		assertEquals(1, (long) buffer.getQuotas().evictions().get("pay"));
+		assertEquals(0, (long) buffer.getQuotas().evictions().get(ByteQuotas.SHARED));
+		assertEquals(10, usage(buffer, "pay"));
+		assertEquals("[pay:1, web:0, web:1, web:2, web:3, web:4, web:5, pay:2]", drain(buffer).toString());
+	}
+
+	@Test
+	public void loggerWithinItsQuotaTakesItsSpaceBackWhateverThePolicy() {
+		NRBufferWithFifoEviction<String> buffer = quotaBuffer(OverflowPolicy.DROP_NEW);
+		add(buffer, "web", 0, 8);
+
+		assertFalse("the shared pool is full", buffer.add("web:8"));
+		assertTrue(buffer.add("pay:0"));
+
+		assertEquals(1, buffer.getDroppedCount());
+		assertEquals(1, buffer.getEvictedCount());
+		assertEquals("[web:1, web:2, web:3, web:4, web:5, web:6, web:7, pay:0]", drain(buffer).toString());
+	}
+
+	@Test
+	public void sharedEntriesAreEvictedOldestFirstAroundReservedOnes() {
+		NRBufferWithFifoEviction<String> buffer = quotaBuffer(OverflowPolicy.EVICT);
+		assertTrue(buffer.add("pay:0"));
+		assertTrue(buffer.add("web:0"));
+		assertTrue(buffer.add("pay:1"));
+		add(buffer, "web", 1, 6);
+
+		buffer.setCapacity(20);
+
+		assertEquals(4, buffer.getEvictedCount());
+		assertEquals(4, buffer.size());
+		assertEquals(20, buffer.cost());
+		assertEquals("pay:0", buffer.peek());
+		assertEquals("[pay:0, pay:1, web:4, web:5]", drain(buffer).toString());
+		assertEquals(0, buffer.size());
+	}
+
+	@Test
+	public void drainingReleasesTheQuotaOfTheDrainedEntriesOnly() {
+		NRBufferWithFifoEviction<String> buffer = quotaBuffer(OverflowPolicy.EVICT);
+		add(buffer, "pay", 0, 2);
+		add(buffer, "web", 0, 6);
+		assertTrue(buffer.add("pay:2")); // quota exhausted: pay:0 goes
+		assertEquals(10, usage(buffer, "pay"));
+
+		// Entries already in the collection are not the buffer's to account for
+		List<String> batch = new ArrayList<>(Arrays.asList("pay:x", "pay:y"));
+		assertEquals(3, buffer.drainTo(batch, 3));
+		assertEquals("[pay:x, pay:y, pay:1, web:0, web:1]", batch.toString());
+		assertEquals(5, usage(buffer, "pay"));
+		assertEquals(20, usage(buffer, ByteQuotas.SHARED));
+
+		// Released: within its quota again, pay takes its space from the shared pool
+		add(buffer, "web", 6, 9);
+		assertTrue(buffer.add("pay:3"));
+		assertEquals(1, (long) buffer.getQuotas().evictions().get(ByteQuotas.SHARED));
+		assertEquals("[web:3, web:4, web:5, pay:2, web:6, web:7, web:8, pay:3]", drain(buffer).toString());
+		assertEquals(0, usage(buffer, "pay"));
+		assertEquals(0, usage(buffer, ByteQuotas.SHARED));
+	}
+}
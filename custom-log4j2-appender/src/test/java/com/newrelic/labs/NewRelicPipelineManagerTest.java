@@ -0,0 +1,327 @@
+package com.newrelic.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Pipeline behavior that spans several flushes: reconfiguring a running context,
+ * where the new appender picks up the old pipeline when its settings are
+ * unchanged and a changed pipeline is drained once its last appender is stopped,
+ * clearing a backlog within one harvest, flushing on end-of-batch once enough
+ * is queued or the oldest entry is old enough, logger quotas that keep a flood
+ * from evicting a quiet logger, and a queue that shrinks under pressure on the
+ * tenured heap pool.
+ */
+public class NewRelicPipelineManagerTest {
+
+	private static final int EVENTS = 500;
+
+	private LogsApiStandIn standIn;
+	private LoggerContext context;
+
+	@Before
+	public void start() throws Exception {
+		standIn = new LogsApiStandIn(7).start();
+	}
+
+	@After
+	public void stop() throws Exception {
+		if (context != null) {
+			context.stop(10, TimeUnit.SECONDS);
+		}
+		standIn.close();
+	}
+
+	private Map<String, String> attributes(String batchSize) {
+		Map<String, String> attributes = new LinkedHashMap<>();
+		attributes.put("apiKey", "pipeline");
+		attributes.put("apiUrl", standIn.getUrl());
+		attributes.put("applicationName", "pipeline");
+		attributes.put("batchSize", batchSize);
+		attributes.put("flushInterval", "3600000");
+		return attributes;
+	}
+
+	private NewRelicPipelineManager pipeline() {
+		NewRelicBatchingAppender appender = context.getConfiguration().getAppender(LoadHarness.APPENDER_NAME);
+		return appender.getManager();
+	}
+
+	private void log(int firstSeq) {
+		Logger log = context.getLogger("com.newrelic.labs.pipeline.Reconfigure");
+		for (int i = 0; i < EVENTS; i++) {
+			log.info("seq={}|reconfigure", firstSeq + i);
+		}
+	}
+
+	/**
+	 * Throttles every request and logs until a send has been throttled. While
+	 * sending is paused, logging threads do not relieve a nearly full queue, so
+	 * the next entries overflow it.
+	 *
+	 * @return The next sequence number.
+	 */
+	private int pauseSends() throws InterruptedException {
+		standIn.withThrottling(1.0, 2);
+		int seq = 0;
+		long deadline = System.currentTimeMillis() + 5000;
+		while (pipeline().getMetrics().getThrottledResponses() == 0 && System.currentTimeMillis() < deadline) {
+			log(seq);
+			seq += EVENTS;
+			Thread.sleep(10);
+		}
+		assertTrue("sends paused", pipeline().getMetrics().getThrottledResponses() > 0);
+		return seq;
+	}
+
+	private void resumeSends() throws InterruptedException {
+		standIn.withThrottling(0, 2);
+		Thread.sleep(pipeline().getDestinations().get(0).getRateLimiter().remainingPause() + 50);
+	}
+
+	@Test
+	public void unchangedSettingsKeepThePipeline() throws Exception {
+		context = LoadHarness.startContext(attributes("100000"), LoadHarness.PATTERN_LAYOUT);
+		NewRelicPipelineManager before = pipeline();
+		log(0);
+
+		context.setConfiguration(LoadHarness.configuration(context, attributes("100000"), LoadHarness.PATTERN_LAYOUT));
+		NewRelicPipelineManager after = pipeline();
+
+		assertSame(before, after);
+		assertFalse("pipeline still running", after.isShuttingDown());
+
+		log(EVENTS);
+		context.stop(10, TimeUnit.SECONDS);
+		context = null;
+
+		assertTrue(after.isShuttingDown());
+		assertEquals(2 * EVENTS, standIn.getDeliveredCount());
+		assertEquals(0, standIn.getDuplicateCount());
+	}
+
+	@Test
+	public void changedSettingsDrainThePreviousPipeline() throws Exception {
+		context = LoadHarness.startContext(attributes("100000"), LoadHarness.PATTERN_LAYOUT);
+		NewRelicPipelineManager before = pipeline();
+		log(0);
+
+		context.setConfiguration(LoadHarness.configuration(context, attributes("50000"), LoadHarness.PATTERN_LAYOUT));
+		NewRelicPipelineManager after = pipeline();
+
+		assertNotSame(before, after);
+		assertTrue("previous pipeline stopped", before.isShuttingDown());
+		assertEquals("previous pipeline drained", EVENTS, standIn.getDeliveredCount());
+
+		log(EVENTS);
+		context.stop(10, TimeUnit.SECONDS);
+		context = null;
+
+		assertEquals(2 * EVENTS, standIn.getDeliveredCount());
+		assertEquals(0, standIn.getDuplicateCount());
+	}
+
+	@Test
+	public void harvestClearsABacklogInOneCycle() throws Exception {
+		Map<String, String> attributes = attributes("500");
+		attributes.put("flushInterval", "2000");
+		attributes.put("maxInFlight", "2");
+		attributes.put("drainMinSize", "1");
+		attributes.put("queueCapacity", String.valueOf(16L * 1024 * 1024));
+		context = LoadHarness.startContext(attributes, LoadHarness.PATTERN_LAYOUT);
+
+		// Sends are paused while the events arrive, so they pile up in the queue
+		standIn.withThrottling(1.0, 1);
+		for (int i = 0; i < 20; i++) {
+			log(i * EVENTS);
+		}
+		standIn.withThrottling(0, 1);
+
+		// One batch per harvest would take 20 cycles; the first one should do
+		long deadline = System.currentTimeMillis() + 3500;
+		while (standIn.getDeliveredCount() < 20 * EVENTS && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+
+		assertEquals(20 * EVENTS, standIn.getDeliveredCount());
+		assertEquals(0, pipeline().getEvictedCount());
+	}
+
+	private static LogEntry entry(int seq, long timestamp) {
+		return new LogEntry("seq=" + seq + "|end-of-batch", "pipeline", "pipeline", "log",
+				"com.newrelic.labs.pipeline.EndOfBatch", "INFO", timestamp, Collections.<String, Object>emptyMap(), false);
+	}
+
+	private Map<String, String> endOfBatchAttributes(String batchSize, String minSize, String minAge) {
+		Map<String, String> attributes = attributes(batchSize);
+		attributes.put("flushOnEndOfBatch", "true");
+		attributes.put("endOfBatchMinSize", minSize);
+		attributes.put("endOfBatchMinAge", minAge);
+		return attributes;
+	}
+
+	private void awaitDelivered(long expected, long millis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + millis;
+		while (standIn.getDeliveredCount() < expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(expected, standIn.getDeliveredCount());
+	}
+
+	@Test
+	public void endOfBatchFlushesOnceEnoughIsQueued() throws Exception {
+		context = LoadHarness.startContext(endOfBatchAttributes("100000", "10", "3600000"),
+				LoadHarness.PATTERN_LAYOUT);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 9; i++) {
+			pipeline().add(entry(i, now), true);
+		}
+		pipeline().add(entry(9, now), false);
+		Thread.sleep(300);
+		assertEquals("not the last of a batch", 0, standIn.getDeliveredCount());
+
+		pipeline().add(entry(10, now), true);
+		awaitDelivered(11, 5000);
+	}
+
+	@Test
+	public void endOfBatchFlushesOnceTheOldestEntryIsOldEnough() throws Exception {
+		context = LoadHarness.startContext(endOfBatchAttributes("100000", "100000", "500"),
+				LoadHarness.PATTERN_LAYOUT);
+		pipeline().add(entry(0, System.currentTimeMillis()), true);
+		Thread.sleep(200);
+		assertEquals("too young", 0, standIn.getDeliveredCount());
+
+		Thread.sleep(400);
+		pipeline().add(entry(1, System.currentTimeMillis()), true);
+		awaitDelivered(2, 5000);
+	}
+
+	@Test
+	public void entriesLeftAfterADrainKeepTheirAge() throws Exception {
+		Map<String, String> attributes = endOfBatchAttributes("5", "100000", "2000");
+		attributes.put("drainMinSize", "100000"); // one batch per flush
+		context = LoadHarness.startContext(attributes, LoadHarness.PATTERN_LAYOUT);
+		long logged = System.currentTimeMillis() - 5000; // e.g. held up in an AsyncLogger ring
+		for (int i = 0; i < 7; i++) {
+			pipeline().add(entry(i, logged), false);
+		}
+		awaitDelivered(5, 5000);
+
+		// The two entries left are older than endOfBatchMinAge, not as old as the drain
+		pipeline().add(entry(7, System.currentTimeMillis()), true);
+		awaitDelivered(8, 1000);
+	}
+
+	@Test
+	public void quotaKeepsAQuietLoggerQueued() throws Exception {
+		Map<String, String> attributes = attributes("100000");
+		attributes.put("queueCapacity", "65536");
+		attributes.put("loggerQuotas", "com.newrelic.labs.pipeline.Payments=8192");
+		context = LoadHarness.startContext(attributes, LoadHarness.PATTERN_LAYOUT);
+		int seq = pauseSends();
+
+		Logger quiet = context.getLogger("com.newrelic.labs.pipeline.Payments.Ledger");
+		for (int i = 0; i < 20; i++) {
+			quiet.info("seq={}|payment", seq + i);
+		}
+		long quietUsage = pipeline().getQuotaUsage().get("com.newrelic.labs.pipeline.Payments");
+		assertTrue(quietUsage > 0);
+
+		// Far more than the queue holds; only the flooding logger's entries may go
+		for (int i = 0; i < 10; i++) {
+			log(seq + 20 + i * EVENTS);
+		}
+		long evicted = pipeline().getEvictedCount();
+
+		assertTrue("flood evicted", evicted > 0);
+		assertEquals(quietUsage, (long) pipeline().getQuotaUsage().get("com.newrelic.labs.pipeline.Payments"));
+
+		resumeSends();
+		evicted = pipeline().getEvictedCount();
+		context.stop(10, TimeUnit.SECONDS);
+		context = null;
+
+		assertEquals(seq + 20 + 10 * EVENTS - evicted, standIn.getDeliveredCount());
+	}
+
+	@Test
+	public void heapPressureLowersAndRestoresCapacity() throws Exception {
+		Map<String, String> attributes = attributes("100000");
+		attributes.put("queueCapacity", "65536");
+		attributes.put("heapPressureThreshold", "90");
+		context = LoadHarness.startContext(attributes, LoadHarness.PATTERN_LAYOUT);
+		int seq = pauseSends();
+		for (int i = 0; i < 10; i++) {
+			log(seq + i * EVENTS);
+		}
+		HeapPressureMonitor monitor = pipeline().getHeapPressureMonitor();
+		long evicted = pipeline().getEvictedCount();
+
+		// Reported by the JVM when a heap pool stays above the threshold after a collection
+		monitor.onHeapPressure(95);
+		assertEquals(32768, pipeline().getQueueCapacity());
+		assertTrue("oldest entries evicted", pipeline().getEvictedCount() > evicted);
+		assertEquals(1, pipeline().getMetrics().getCapacityReductions());
+
+		// Not yet ten points below the threshold
+		monitor.recheck(85);
+		assertEquals(32768, pipeline().getQueueCapacity());
+
+		monitor.recheck(50);
+		assertEquals(65536, pipeline().getQueueCapacity());
+		assertEquals(1, pipeline().getMetrics().getCapacityIncreases());
+		resumeSends();
+	}
+
+	private static Map<String, Long> heapThresholds() {
+		Map<String, Long> thresholds = new LinkedHashMap<>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()) {
+				thresholds.put(pool.getName(), pool.getCollectionUsageThreshold());
+			}
+		}
+		return thresholds;
+	}
+
+	@Test
+	public void heapPressureWatchesOnlyTheTenuredPoolAndRestoresItsThreshold() throws Exception {
+		Map<String, Long> before = heapThresholds();
+		Map<String, String> attributes = attributes("100");
+		attributes.put("heapPressureThreshold", "90");
+		context = LoadHarness.startContext(attributes, LoadHarness.PATTERN_LAYOUT);
+		String watched = pipeline().getHeapPressureMonitor().getPoolName();
+
+		assertTrue(watched, before.containsKey(watched));
+		assertFalse(watched, watched.contains("Eden") || watched.contains("Survivor"));
+		Map<String, Long> running = heapThresholds();
+		for (Map.Entry<String, Long> pool : before.entrySet()) {
+			if (pool.getKey().equals(watched)) {
+				assertTrue(pool.getKey(), running.get(pool.getKey()) > 0);
+			} else {
+				assertEquals("young pools untouched", pool.getValue(), running.get(pool.getKey()));
+			}
+		}
+
+		context.stop(10, TimeUnit.SECONDS);
+		context = null;
+		assertEquals(before, heapThresholds());
+	}
+}
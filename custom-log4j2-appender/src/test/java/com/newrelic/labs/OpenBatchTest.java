@@ -0,0 +1,116 @@
+package com.newrelic.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The compressed body of a batch filled entry by entry stays within
+ * maxMessageSize, whether the entries compress well or not at all, and
+ * decompresses to the entries that were added.
+ */
+public class OpenBatchTest {
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	private static Map<String, Object> logEvent(int seq, String message) {
+		Map<String, Object> logEvent = new LinkedHashMap<>();
+		logEvent.put("message", "seq=" + seq + "|" + message);
+		logEvent.put("logtype", "log");
+		logEvent.put("level", "INFO");
+		return logEvent;
+	}
+
+	private static String randomText(Random random, int length) {
+		StringBuilder text = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			text.append((char) ('!' + random.nextInt(94)));
+		}
+		return text.toString();
+	}
+
+	// Adds entries until the next one does not fit and returns the sealed body
+	private byte[] fill(OpenBatch batch, Random random, int messageLength) throws IOException {
+		for (int seq = 0;; seq++) {
+			String message = random != null ? randomText(random, messageLength) : "order accepted";
+			Map<String, Object> logEvent = logEvent(seq, message);
+			byte[] json = batch.serialize(logEvent);
+			if (!batch.fits(json.length) || batch.isFull()) {
+				return batch.seal();
+			}
+			batch.add(logEvent, json, null);
+		}
+	}
+
+	private List<?> decompress(byte[] body) throws IOException {
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+			return objectMapper.readValue(in, List.class);
+		}
+	}
+
+	@Test
+	public void incompressibleEntriesStayWithinTheLimit() throws Exception {
+		Random random = new Random(3);
+		// Below and well above the sync-flush interval
+		for (long maxBytes : new long[] { 2000, 10000, 100000, 1048576 }) {
+			OpenBatch batch = new OpenBatch(objectMapper, maxBytes, Integer.MAX_VALUE);
+			byte[] body = fill(batch, random, 200 + random.nextInt(800));
+
+			assertTrue(maxBytes + ": " + body.length, body.length <= maxBytes);
+			assertTrue(maxBytes + ": only " + body.length + " used", body.length > maxBytes / 2);
+			assertEquals(batch.size(), decompress(body).size());
+		}
+	}
+
+	@Test
+	public void compressibleEntriesTakeMoreJsonThanTheLimit() throws Exception {
+		long maxBytes = 10000;
+		OpenBatch batch = new OpenBatch(objectMapper, maxBytes, Integer.MAX_VALUE);
+		byte[] body = fill(batch, null, 0);
+
+		assertTrue(body.length + " bytes", body.length <= maxBytes);
+		assertTrue("json " + batch.getJsonBytes(), batch.getJsonBytes() > 2 * maxBytes);
+		List<?> sent = decompress(body);
+		assertEquals(batch.size(), sent.size());
+		assertEquals(logEvent(0, "order accepted"), sent.get(0));
+	}
+
+	@Test
+	public void entryLargerThanTheLimitGoesAlone() throws Exception {
+		long maxBytes = 2000;
+		OpenBatch batch = new OpenBatch(objectMapper, maxBytes, Integer.MAX_VALUE);
+		Map<String, Object> large = logEvent(0, randomText(new Random(5), 5000));
+		byte[] json = batch.serialize(large);
+
+		assertTrue("an empty batch takes any entry", batch.fits(json.length));
+		batch.add(large, json, null);
+		byte[] next = batch.serialize(logEvent(1, "small"));
+		assertFalse(batch.fits(next.length));
+		assertEquals(1, decompress(batch.seal()).size());
+	}
+
+	@Test
+	public void fullAtMaxEvents() throws Exception {
+		OpenBatch batch = new OpenBatch(objectMapper, 1048576, 3);
+		for (int seq = 0; seq < 3; seq++) {
+			assertFalse(batch.isFull());
+			Map<String, Object> logEvent = logEvent(seq, "order accepted");
+			batch.add(logEvent, batch.serialize(logEvent), null);
+		}
+
+		assertTrue(batch.isFull());
+		assertEquals(3, decompress(batch.seal()).size());
+	}
+}
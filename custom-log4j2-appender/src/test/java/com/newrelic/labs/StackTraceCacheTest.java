@@ -0,0 +1,252 @@
+package com.newrelic.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Rendering and caching of stack traces, and the dedup window: a trace is only
+ * left out once a payload carrying it has been accepted, and every entry of a
+ * failed payload is requeued with it.
+ */
+public class StackTraceCacheTest {
+
+	private static final long WINDOW = TimeUnit.MINUTES.toMillis(5);
+
+	private LogsApiStandIn standIn;
+	private LogForwarder forwarder;
+
+	@After
+	public void stop() throws Exception {
+		if (forwarder != null) {
+			forwarder.shutdown();
+		}
+		if (standIn != null) {
+			standIn.close();
+		}
+	}
+
+	private static Throwable failure(String message) {
+		return new IllegalStateException(message, new IOException("connection reset"));
+	}
+
+	private static Throwable otherFailure(String message) {
+		return new IllegalStateException(message, new IOException("connection reset"));
+	}
+
+	// Captures every failure from the same call site, so only the messages differ
+	private static List<ExceptionInfo> capture(StackTraceCache cache, String... messages) {
+		List<ExceptionInfo> captured = new ArrayList<>();
+		for (String message : messages) {
+			captured.add(cache.capture(failure(message)));
+		}
+		return captured;
+	}
+
+	@Test
+	public void repeatsShareOneRendering() {
+		StackTraceCache cache = new StackTraceCache(16, 5);
+		List<ExceptionInfo> captured = capture(cache, "order 1 failed", "order 1 failed", "order 1 failed");
+
+		assertSame(captured.get(0).getTrace(), captured.get(1).getTrace());
+		assertSame(captured.get(0).getTrace(), captured.get(2).getTrace());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void differentMessageOrFrameIsAMiss() {
+		StackTraceCache cache = new StackTraceCache(16, 5);
+		List<ExceptionInfo> captured = capture(cache, "order 1 failed", "order 2 failed");
+		ExceptionInfo first = captured.get(0);
+		ExceptionInfo otherMessage = captured.get(1);
+		ExceptionInfo otherFrame = cache.capture(otherFailure("order 1 failed"));
+
+		assertNotSame(first.getTrace(), otherMessage.getTrace());
+		assertNotSame(first.getTrace(), otherFrame.getTrace());
+		assertFalse(first.getStackHash().equals(otherMessage.getStackHash()));
+		assertFalse(first.getStackHash().equals(otherFrame.getStackHash()));
+		assertEquals(3, cache.size());
+	}
+
+	@Test
+	public void rendersTheMessageOfEveryCause() {
+		String stack = new StackTraceCache(16, 0).capture(failure("order 1 failed")).getTrace().stack;
+
+		assertTrue(stack, stack.startsWith("java.lang.IllegalStateException: order 1 failed\n\tat "));
+		assertTrue(stack, stack.contains("\nCaused by: java.io.IOException: connection reset\n\tat "));
+	}
+
+	@Test
+	public void hashCollisionDoesNotReturnAnotherTrace() {
+		StackTraceCache cache = new StackTraceCache(16, 5, structure -> 42L);
+		List<ExceptionInfo> captured = capture(cache, "order 1 failed", "order 2 failed", "order 1 failed");
+		ExceptionInfo first = captured.get(0);
+		ExceptionInfo second = captured.get(1);
+
+		assertTrue(second.getTrace().stack.contains("order 2 failed"));
+		assertFalse(second.getTrace().stack.contains("order 1 failed"));
+		assertTrue(first.getTrace().isDeduplicated());
+		assertFalse("sent in full every time", second.getTrace().isDeduplicated());
+		assertSame(first.getTrace(), captured.get(2).getTrace());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void stackIsLeftOutOnlyAfterASend() {
+		ExceptionInfo info = new StackTraceCache(16, 5).capture(failure("order 1 failed"));
+		long now = System.currentTimeMillis();
+
+		assertNotNull(info.stackToSend(now));
+		assertNotNull("not sent yet", info.stackToSend(now + 1000));
+
+		info.getTrace().markSent(now);
+		assertNull(info.stackToSend(now + 1000));
+		assertNotNull("window over", info.stackToSend(now + WINDOW));
+	}
+
+	@Test
+	public void noWindowAlwaysSendsTheStack() {
+		ExceptionInfo info = new StackTraceCache(16, 0).capture(failure("order 1 failed"));
+		long now = System.currentTimeMillis();
+
+		info.getTrace().markSent(now);
+		assertNotNull(info.stackToSend(now + 1000));
+	}
+
+	private static final class Outcome implements FlushCallback {
+		final AtomicLong sent = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		final List<Map<String, Object>> failedLogEvents = Collections.synchronizedList(new ArrayList<>());
+
+		@Override
+		public void onSuccess() {
+		}
+
+		@Override
+		public void onSuccess(int sentCount) {
+			sent.addAndGet(sentCount);
+		}
+
+		@Override
+		public void onFailure(List<Map<String, Object>> failedLogEvents) {
+			failed.addAndGet(failedLogEvents.size());
+			this.failedLogEvents.addAll(failedLogEvents);
+		}
+	}
+
+	private void startForwarder(long maxMessageSize) throws Exception {
+		standIn = new LogsApiStandIn(1).start();
+		forwarder = new LogForwarder("stack-traces", standIn.getUrl(), maxMessageSize,
+				new NRBufferWithFifoEviction<LogEntry>(1024 * 1024, entry -> 1), 3, 5000, 2);
+	}
+
+	private static LogEntry entry(String message, ExceptionInfo error) {
+		return new LogEntry(message, "stack-traces", "stack-traces", "log", "com.newrelic.labs.StackTraces", "ERROR",
+				System.currentTimeMillis(), Collections.<String, Object>emptyMap(), error);
+	}
+
+	private static List<LogEntry> batch(int firstSeq, int size, String text, ExceptionInfo error) {
+		List<LogEntry> batch = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			batch.add(entry("seq=" + (firstSeq + i) + "|" + text, error));
+		}
+		return batch;
+	}
+
+	private void send(List<LogEntry> batch, Outcome outcome) {
+		forwarder.flushAsync(batch, false, null, outcome);
+		assertTrue("requests completed", forwarder.awaitInFlight(System.currentTimeMillis() + 10000));
+	}
+
+	@Test
+	public void failedSendDoesNotStartTheWindow() throws Exception {
+		startForwarder(1024 * 1024);
+		ExceptionInfo error = new StackTraceCache(16, 5).capture(failure("order 1 failed"));
+		Outcome outcome = new Outcome();
+
+		standIn.withServerErrors(1.0);
+		send(batch(0, 10, "failing", error), outcome);
+		assertEquals(10, outcome.failed.get());
+		assertNotNull(error.stackToSend(System.currentTimeMillis()));
+
+		standIn.withServerErrors(0);
+		Thread.sleep(forwarder.getDestinations().get(0).getRateLimiter().remainingPause() + 50);
+		send(batch(10, 10, "recovered", error), outcome);
+		assertEquals(10, outcome.sent.get());
+		assertEquals("first event of the payload", 1, standIn.getStacks());
+
+		send(batch(20, 10, "deduplicated", error), outcome);
+		assertEquals(20, outcome.sent.get());
+		assertEquals(20, standIn.getDeliveredCount());
+		assertEquals(1, standIn.getStacks());
+	}
+
+	@Test
+	public void everyRequeuedEntryCarriesTheStack() throws Exception {
+		startForwarder(1024 * 1024);
+		ExceptionInfo error = new StackTraceCache(16, 5).capture(failure("order 1 failed"));
+		Outcome outcome = new Outcome();
+
+		standIn.withServerErrors(1.0);
+		send(batch(0, 10, "failing", error), outcome);
+		assertEquals(10, outcome.failed.get());
+
+		// Requeue all but the entry that carried the stack, as when it is evicted
+		List<LogEntry> requeued = new ArrayList<>();
+		for (Map<String, Object> logEvent : outcome.failedLogEvents.subList(1, 10)) {
+			LogEntry entry = forwarder.convertToLogEntry(logEvent);
+			assertEquals(error.getStackHash(), entry.getError().getStackHash());
+			assertNotNull(entry.getMessage(), entry.getError().stackToSend(System.currentTimeMillis()));
+			requeued.add(entry);
+		}
+
+		standIn.withServerErrors(0);
+		Thread.sleep(forwarder.getDestinations().get(0).getRateLimiter().remainingPause() + 50);
+		send(requeued, outcome);
+		assertEquals(9, standIn.getDeliveredCount());
+		assertEquals(9, standIn.getStacks());
+	}
+
+	@Test
+	public void everyPartOfASplitBatchCarriesTheStack() throws Exception {
+		long maxMessageSize = 2000;
+		startForwarder(maxMessageSize);
+		ExceptionInfo error = new StackTraceCache(16, 5).capture(failure("order 1 failed"));
+		// Random messages, so the batch does not compress below the limit
+		Random random = new Random(1);
+		List<LogEntry> batch = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			StringBuilder message = new StringBuilder("seq=" + i + "|");
+			for (int j = 0; j < 300; j++) {
+				message.append((char) ('a' + random.nextInt(26)));
+			}
+			batch.add(entry(message.toString(), error));
+		}
+		Outcome outcome = new Outcome();
+
+		send(batch, outcome);
+
+		assertEquals(20, outcome.sent.get());
+		assertEquals(20, standIn.getDeliveredCount());
+		assertTrue("split into " + standIn.getRequests(), standIn.getRequests() > 1);
+		assertEquals(standIn.getRequests(), standIn.getStacks());
+		assertTrue(standIn.getLargestRequest() <= maxMessageSize);
+		assertNull("marked once delivered", error.stackToSend(System.currentTimeMillis()));
+	}
+}